@@ -0,0 +1,44 @@
+package gamsa;
+
+import gamsa.population.Individual;
+
+/**
+   Interface for a search engine that aligns a set of sequences.  The
+   scorer is the one in the InfoCenter.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public interface Aligner
+{
+	/**
+	   Returns the best alignment found for the sequences.
+	 */
+	public Individual findSolution(String[] inputSequences);
+
+	/**
+	   Returns the best alignment found for the sequences, stopping
+	   early if the token (which may be null) is cancelled.
+	 */
+	public Individual findSolution(String[] inputSequences, CancellationToken aToken);
+
+	/**
+	   Returns the statistics for the last run.
+	 */
+	public RunStatistics getStatistics();
+
+	/**
+	   Sets the longest a search may run, in milliseconds.  0 means
+	   there is no limit.
+	 */
+	public void setTimeLimit(long aMillis);
+
+	/**
+	   Adds a listener to be told about every round.
+	 */
+	public void addProgressListener(ProgressListener aListener);
+
+	/**
+	   Removes a listener.
+	 */
+	public void removeProgressListener(ProgressListener aListener);
+}
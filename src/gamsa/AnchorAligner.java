@@ -0,0 +1,715 @@
+package gamsa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import gamsa.population.Alignment;
+import gamsa.population.Individual;
+import gamsa.population.Sequence;
+import gamsa.profile.GuideTree;
+import gamsa.profile.ProfileAligner;
+import gamsa.scorer.Scorer;
+
+/**
+   Splits the alignment of long, closely related sequences into small
+   independent problems.  Words that occur exactly once in every
+   sequence are found with a rolling hash; overlapping words are joined
+   into longer anchors, and the heaviest set of anchors that appear in
+   the same order in every sequence is kept.  Anchors are lined up as
+   fixed columns, and each stretch between two anchors is aligned by
+   its own run of the genetic algorithm, several at once.  Anchored
+   columns are never mutated.  Stretches not started before the time
+   limit runs out are aligned without a search.
+
+   Without anchors, this is one run of the genetic algorithm.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class AnchorAligner implements Aligner
+{
+	private static Logger logger = Logger.getLogger(AnchorAligner.class.getName());
+
+	//Base of the rolling hash.
+	private static final long HASH_BASE = 1000003;
+
+	/**
+	   A stretch of residues found in every sequence, with its start in each.
+	 */
+	private static class Anchor
+	{
+		private int[] i_starts;
+		private int i_length;
+
+		public Anchor(int[] starts, int aLength)
+		{
+			i_starts = starts;
+			i_length = aLength;
+		}
+	}
+	////End of anchor class.
+
+	private Properties i_properties;
+	private int i_anchorLength;
+	private int i_threadCount;
+	private long i_timeLimitMillis;
+	private long i_exactMaxCells;
+
+	private List<ProgressListener> i_listeners = new ArrayList<ProgressListener>();
+	private RunStatistics i_statistics = new RunStatistics();
+
+	/**
+	   Constructor.  Default arguments will be used.
+	 */
+	public AnchorAligner()
+	{
+		this(getDefaultProperties());
+	}
+
+	/**
+	   Specifies default properties, in case there is no config.  These
+	   are MultiSeqAligner's, with the settings for anchoring added.
+	 */
+	protected static Properties getDefaultProperties()
+	{
+		Properties p = MultiSeqAligner.getDefaultProperties();
+
+		//0 picks a length to suit the alphabet.
+		p.put("anchorLength", "0");
+		p.put("anchorThreads", Integer.toString(Runtime.getRuntime().availableProcessors()));
+
+		return p;
+	}
+
+	/**
+	   Constructor.  Properties will override default values, and are
+	   passed on to the run for every segment.
+	 */
+	public AnchorAligner(Properties p)
+	{
+		i_properties = p;
+		i_anchorLength = Integer.parseInt(p.getProperty("anchorLength", "0"));
+		i_threadCount = Integer.parseInt(p.getProperty("anchorThreads",
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+		i_timeLimitMillis = Long.parseLong(p.getProperty("timeLimitMillis", "0"));
+		i_exactMaxCells = Long.parseLong(p.getProperty("exactMaxCells", "4000000"));
+	}
+
+	/**
+	   Returns the statistics for the last run.  The rounds are those of
+	   every segment together.
+	 */
+	public RunStatistics getStatistics()
+	{
+		return i_statistics;
+	}
+
+	/**
+	   Sets the longest the search of all the segments together may
+	   run, in milliseconds.  0 means there is no limit.
+	 */
+	public void setTimeLimit(long aMillis)
+	{
+		i_timeLimitMillis = aMillis;
+	}
+
+	/**
+	   Adds a listener to be told about every round of every segment.
+	   Segments are aligned at the same time, so the listener may be
+	   called from several threads at once.
+	 */
+	public void addProgressListener(ProgressListener aListener)
+	{
+		i_listeners.add(aListener);
+	}
+
+	/**
+	   Removes a listener.
+	 */
+	public void removeProgressListener(ProgressListener aListener)
+	{
+		i_listeners.remove(aListener);
+	}
+
+	/**
+	   Returns the best alignment found.
+	 */
+	public Individual findSolution(String[] inputSequences)
+	{
+		return findSolution(inputSequences, null);
+	}
+
+	/**
+	   Returns the best alignment found.  The token (which may be null)
+	   is passed on to the run for every segment.
+	 */
+	public Individual findSolution(String[] inputSequences, CancellationToken aToken)
+	{
+		final long deadline = i_timeLimitMillis > 0 ? System.currentTimeMillis() + i_timeLimitMillis : 0;
+		i_statistics = new RunStatistics();
+		i_statistics.start();
+
+		String[] residues = new String[inputSequences.length];
+		for (int i=0; i<residues.length; i++)
+			residues[i] = inputSequences[i].replace("-", "");
+
+		int k = getAnchorLength(residues);
+		List<Anchor> anchors = joinShortSegments(chain(findAnchors(residues, k)), residues, k);
+		int anchored = 0;
+		for (Anchor anchor : anchors)
+			anchored += anchor.i_length;
+		logger.info("Found " + anchors.size() + " anchors covering " + anchored + " of "
+				+ residues[0].length() + " residues in the first sequence.");
+
+		//Cut out the stretches between the anchors.
+		List<String[]> segments = new ArrayList<String[]>();
+		int[] from = new int[residues.length];
+		for (int a=0; a<=anchors.size(); a++)
+		{
+			String[] segment = new String[residues.length];
+			for (int i=0; i<residues.length; i++)
+			{
+				int to = a < anchors.size() ? anchors.get(a).i_starts[i] : residues[i].length();
+				segment[i] = residues[i].substring(from[i], to);
+				if (a < anchors.size())
+					from[i] = to + anchors.get(a).i_length;
+			}
+			segments.add(segment);
+		}
+
+		//Align the segments, several at once.  The time left is shared
+		// by the segments not yet started, a thread's worth at a time.
+		List<Callable<String[]>> tasks = new ArrayList<Callable<String[]>>();
+		final int[] rounds = new int[1];
+		final int[] waiting = new int[1];
+		final int threads = Math.max(i_threadCount, 1);
+		for (int a=0; a<segments.size(); a++)
+		{
+			final String[] segment = segments.get(a);
+			if (!needsSearch(segment))
+			{
+				tasks.add(new Callable<String[]>()
+				{
+					public String[] call()
+					{
+						return padRows(segment);
+					}
+				});
+				continue;
+			}
+
+			//A residue of the anchor on either side is aligned with the
+			// segment, so that gaps at its ends are scored as the interior
+			// gaps they will be.
+			final boolean leading = a > 0;
+			final boolean trailing = a < anchors.size();
+			final String[] flanked = new String[segment.length];
+			for (int i=0; i<segment.length; i++)
+			{
+				flanked[i] = segment[i];
+				if (leading)
+				{
+					Anchor anchor = anchors.get(a - 1);
+					flanked[i] = residues[i].charAt(anchor.i_starts[i] + anchor.i_length - 1) + flanked[i];
+				}
+				if (trailing)
+					flanked[i] += residues[i].charAt(anchors.get(a).i_starts[i]);
+			}
+
+			final MultiSeqAligner aligner = new MultiSeqAligner(i_properties);
+			for (ProgressListener listener : i_listeners)
+				aligner.addProgressListener(listener);
+			final CancellationToken token = aToken;
+			final long maxCells = i_exactMaxCells;
+			waiting[0]++;
+			tasks.add(new Callable<String[]>()
+			{
+				public String[] call()
+				{
+					int waves;
+					synchronized (waiting)
+					{
+						waves = (waiting[0]-- + threads - 1) / threads;
+					}
+					if (deadline > 0)
+					{
+						long left = deadline - System.currentTimeMillis();
+						if (left <= 0)
+							return stripFlanks(alignQuickly(flanked, maxCells), leading, trailing);
+						aligner.setTimeLimit(Math.max(left / waves, 1));
+					}
+					String[] aligned = stripFlanks(alignSegment(aligner, flanked, token), leading, trailing);
+					synchronized (rounds)
+					{
+						rounds[0] += aligner.getNumberOfRoundsExecuted();
+					}
+					return aligned;
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		StringBuilder[] rows = new StringBuilder[residues.length];
+		for (int i=0; i<rows.length; i++)
+			rows[i] = new StringBuilder();
+		try
+		{
+			List<Future<String[]>> results = executor.invokeAll(tasks);
+			for (int s=0; s<results.size(); s++)
+			{
+				String[] aligned = results.get(s).get();
+				for (int i=0; i<rows.length; i++)
+				{
+					rows[i].append(aligned[i]);
+					if (s < anchors.size())
+					{
+						Anchor anchor = anchors.get(s);
+						rows[i].append(residues[i], anchor.i_starts[i], anchor.i_starts[i] + anchor.i_length);
+					}
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while aligning segments", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException("Could not align a segment", e.getCause());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		Alignment best = new Alignment();
+		for (StringBuilder row : rows)
+			best.addSequence(new Sequence(row.toString()));
+		i_statistics.finish(rounds[0], best.getFitness());
+		logger.info("Aligned " + segments.size() + " segments; fitness " + best.getFitness());
+		return best;
+	}
+
+	/**
+	   Returns the length of word to anchor on: longer for small
+	   alphabets, where short words are shared by chance.
+	 */
+	private int getAnchorLength(String[] residues)
+	{
+		if (i_anchorLength > 0)
+			return i_anchorLength;
+		boolean[] seen = new boolean[Character.MAX_VALUE + 1];
+		int symbols = 0;
+		for (String seq : residues)
+		{
+			for (int i=0; i<seq.length(); i++)
+			{
+				if (!seen[seq.charAt(i)])
+				{
+					seen[seq.charAt(i)] = true;
+					symbols++;
+				}
+			}
+		}
+		return symbols <= 4 ? 16 : 6;
+	}
+
+	/**
+	   Returns every word of length k that occurs exactly once in each
+	   sequence, with overlapping words joined into longer anchors.
+	   Anchors are in order of their start in the first sequence.
+	 */
+	private static List<Anchor> findAnchors(String[] residues, int k)
+	{
+		List<Anchor> words = new ArrayList<Anchor>();
+		if (residues.length < 2)
+			return words;
+
+		List<Map<Long,Integer>> positions = new ArrayList<Map<Long,Integer>>();
+		for (String seq : residues)
+			positions.add(getUniqueWords(seq, k));
+
+		Map<Long,Integer> first = positions.get(0);
+		for (Map.Entry<Long,Integer> entry : first.entrySet())
+		{
+			int[] starts = new int[residues.length];
+			starts[0] = entry.getValue();
+			boolean everywhere = true;
+			for (int i=1; i<residues.length && everywhere; i++)
+			{
+				Integer start = positions.get(i).get(entry.getKey());
+				//Equal hashes of different words are ruled out here.
+				everywhere = start != null && residues[i].regionMatches(start, residues[0], starts[0], k);
+				if (everywhere)
+					starts[i] = start;
+			}
+			if (everywhere)
+				words.add(new Anchor(starts, k));
+		}
+		Anchor[] sorted = words.toArray(new Anchor[words.size()]);
+		Arrays.sort(sorted, (a, b) -> Integer.compare(a.i_starts[0], b.i_starts[0]));
+
+		//Join words that follow each other by one residue in every sequence.
+		List<Anchor> anchors = new ArrayList<Anchor>();
+		for (Anchor word : sorted)
+		{
+			Anchor last = anchors.isEmpty() ? null : anchors.get(anchors.size() - 1);
+			boolean follows = last != null;
+			for (int i=0; i<residues.length && follows; i++)
+				follows = word.i_starts[i] == last.i_starts[i] + last.i_length - k + 1;
+			if (follows)
+				last.i_length++;
+			else
+				anchors.add(new Anchor(word.i_starts, k));
+		}
+		return anchors;
+	}
+
+	/**
+	   Returns the start of each word of length k that occurs once in
+	   the sequence, by its hash.  The hash of each word is found from
+	   the one before, by dropping its first residue and adding the next.
+	 */
+	private static Map<Long,Integer> getUniqueWords(String aSequence, int k)
+	{
+		Map<Long,Integer> starts = new HashMap<Long,Integer>();
+		Map<Long,Boolean> repeated = new HashMap<Long,Boolean>();
+		if (aSequence.length() < k)
+			return starts;
+
+		long top = 1;
+		for (int i=1; i<k; i++)
+			top *= HASH_BASE;
+		long hash = 0;
+		for (int i=0; i<k; i++)
+			hash = hash * HASH_BASE + aSequence.charAt(i);
+		for (int start=0; ; start++)
+		{
+			if (starts.containsKey(hash))
+				repeated.put(hash, true);
+			else
+				starts.put(hash, start);
+			if (start + k >= aSequence.length())
+				break;
+			hash = (hash - aSequence.charAt(start) * top) * HASH_BASE + aSequence.charAt(start + k);
+		}
+		for (Long key : repeated.keySet())
+			starts.remove(key);
+		return starts;
+	}
+
+	/**
+	   Returns the anchors, in order, that cover the most residues while
+	   appearing in the same order, without overlapping, in every sequence.
+	 */
+	private static List<Anchor> chain(List<Anchor> anchors)
+	{
+		int count = anchors.size();
+		int[] best = new int[count];
+		int[] previous = new int[count];
+		int end = -1;
+		for (int a=0; a<count; a++)
+		{
+			Anchor anchor = anchors.get(a);
+			best[a] = anchor.i_length;
+			previous[a] = -1;
+			for (int b=0; b<a; b++)
+			{
+				if (best[b] + anchor.i_length > best[a] && comesBefore(anchors.get(b), anchor))
+				{
+					best[a] = best[b] + anchor.i_length;
+					previous[a] = b;
+				}
+			}
+			if (end < 0 || best[a] > best[end])
+				end = a;
+		}
+
+		List<Anchor> chain = new ArrayList<Anchor>();
+		for (int a=end; a>=0; a=previous[a])
+			chain.add(0, anchors.get(a));
+		return chain;
+	}
+
+	/**
+	   Returns the anchors without those that would leave a stretch
+	   needing search shorter than the minimum length before or after
+	   them; the stretch is joined with the next one instead.  The
+	   operators need room to move residues around.
+	 */
+	private static List<Anchor> joinShortSegments(List<Anchor> anchors, String[] residues, int aMinLength)
+	{
+		List<Anchor> kept = new ArrayList<Anchor>();
+		int[] from = new int[residues.length];
+		for (Anchor anchor : anchors)
+		{
+			String[] segment = new String[residues.length];
+			for (int i=0; i<residues.length; i++)
+				segment[i] = residues[i].substring(from[i], anchor.i_starts[i]);
+			if (needsSearch(segment) && getLongest(segment) < aMinLength)
+				continue;
+			kept.add(anchor);
+			for (int i=0; i<residues.length; i++)
+				from[i] = anchor.i_starts[i] + anchor.i_length;
+		}
+
+		//The stretch after the last anchor has nothing after it to join.
+		while (!kept.isEmpty())
+		{
+			Anchor last = kept.get(kept.size() - 1);
+			String[] segment = new String[residues.length];
+			for (int i=0; i<residues.length; i++)
+				segment[i] = residues[i].substring(last.i_starts[i] + last.i_length);
+			if (!needsSearch(segment) || getLongest(segment) >= aMinLength)
+				break;
+			kept.remove(kept.size() - 1);
+		}
+		return kept;
+	}
+
+	/**
+	   Returns the length of the longest row.
+	 */
+	private static int getLongest(String[] rows)
+	{
+		int length = 0;
+		for (String row : rows)
+			length = Math.max(length, row.length());
+		return length;
+	}
+
+	/**
+	   Returns true if the first anchor ends before the second starts in
+	   every sequence.
+	 */
+	private static boolean comesBefore(Anchor aFirst, Anchor aSecond)
+	{
+		for (int i=0; i<aFirst.i_starts.length; i++)
+		{
+			if (aFirst.i_starts[i] + aFirst.i_length > aSecond.i_starts[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	   Returns true unless the segment can be aligned just by stacking
+	   its rows: when fewer than two rows have residues, or all rows are
+	   the same.
+	 */
+	private static boolean needsSearch(String[] aSegment)
+	{
+		int present = 0;
+		boolean same = true;
+		for (String row : aSegment)
+		{
+			if (row.length() > 0)
+				present++;
+			same &= row.equals(aSegment[0]);
+		}
+		return present >= 2 && !same;
+	}
+
+	/**
+	   Returns the aligned segment.  Rows with no residues are left out
+	   of the search, and given gaps to the length of the others.
+	 */
+	private static String[] alignSegment(MultiSeqAligner anAligner, String[] aSegment, CancellationToken aToken)
+	{
+		List<String> inputs = new ArrayList<String>();
+		for (String row : aSegment)
+		{
+			if (row.length() > 0)
+				inputs.add(row);
+		}
+		Alignment aligned = (Alignment) anAligner.findSolution(inputs.toArray(new String[inputs.size()]), aToken);
+
+		String[] rows = new String[aSegment.length];
+		for (int i=0, n=0; i<rows.length; i++)
+			rows[i] = aSegment[i].length() > 0 ? aligned.getSequenceAt(n++).toString() : "";
+		return padRows(rows);
+	}
+
+	/**
+	   Returns the segment aligned without a search, for when there is
+	   no time left for one.  Two or three rows whose table has no more
+	   than the given number of cells are aligned exactly by the
+	   scorer's dynamic programming; otherwise the rows are merged as
+	   profiles along a guide tree, as ClusterAligner seeds its groups.
+	   Rows with no residues are given gaps.
+	 */
+	private static String[] alignQuickly(String[] aSegment, long aMaxCells)
+	{
+		List<String> present = new ArrayList<String>();
+		long cells = 1;
+		for (String row : aSegment)
+		{
+			if (row.length() > 0)
+			{
+				present.add(row);
+				cells *= row.length() + 1;
+			}
+		}
+		String[] inputs = present.toArray(new String[present.size()]);
+
+		Scorer scorer = InfoCenter.getCenter().getScorer();
+		String[] aligned = null;
+		if (inputs.length <= 3 && cells <= aMaxCells)
+			aligned = scorer.getOptimalAlignment(inputs);
+		if (aligned == null)
+		{
+			ProfileAligner profiles = new ProfileAligner(scorer, inputs);
+			int wordLength = profiles.getSymbolCount() <= 4 ? 6 : 3;
+			aligned = profiles.align(inputs, new GuideTree(GuideTree.getWordDistances(inputs, wordLength)));
+		}
+
+		String[] rows = new String[aSegment.length];
+		for (int i=0, n=0; i<rows.length; i++)
+			rows[i] = aSegment[i].length() > 0 ? aligned[n++] : "";
+		return padRows(rows);
+	}
+
+	/**
+	   Returns the aligned rows without the anchor residues that were
+	   added before and after the segment.  Each row's first or last
+	   residue is taken out, and then the columns left with only gaps.
+	 */
+	private static String[] stripFlanks(String[] rows, boolean leading, boolean trailing)
+	{
+		if (!leading && !trailing)
+			return rows;
+		char[][] chars = new char[rows.length][];
+		for (int i=0; i<rows.length; i++)
+		{
+			chars[i] = rows[i].toCharArray();
+			int first = 0;
+			while (first < chars[i].length && chars[i][first] == '-')
+				first++;
+			int last = chars[i].length - 1;
+			while (last >= 0 && chars[i][last] == '-')
+				last--;
+			if (leading && first < chars[i].length)
+				chars[i][first] = '-';
+			if (trailing && last >= 0)
+				chars[i][last] = '-';
+		}
+
+		StringBuilder[] stripped = new StringBuilder[rows.length];
+		for (int i=0; i<rows.length; i++)
+			stripped[i] = new StringBuilder();
+		int length = getLongest(rows);
+		for (int col=0; col<length; col++)
+		{
+			boolean gaps = true;
+			for (int i=0; i<rows.length && gaps; i++)
+				gaps = col >= chars[i].length || chars[i][col] == '-';
+			if (gaps)
+				continue;
+			for (int i=0; i<rows.length; i++)
+				stripped[i].append(col < chars[i].length ? chars[i][col] : '-');
+		}
+		String[] result = new String[rows.length];
+		for (int i=0; i<rows.length; i++)
+			result[i] = stripped[i].toString();
+		return result;
+	}
+
+	/**
+	   Returns the rows with gaps added to the end of each, so that all
+	   are as long as the longest.
+	 */
+	private static String[] padRows(String[] rows)
+	{
+		int length = getLongest(rows);
+		String[] padded = new String[rows.length];
+		for (int i=0; i<rows.length; i++)
+		{
+			StringBuilder sb = new StringBuilder(rows[i]);
+			while (sb.length() < length)
+				sb.append('-');
+			padded[i] = sb.toString();
+		}
+		return padded;
+	}
+
+	/**
+	   Self-check on copies of a random sequence with scattered changes:
+	   the stitched rows should strip back to the inputs, and every
+	   anchor should sit in whole columns, with no gaps.  The second run
+	   has so little time that most segments are aligned without a search.
+	 */
+	public static void main(String[] args)
+	{
+		Random rand = new Random(7);
+		StringBuilder ancestor = new StringBuilder();
+		for (int col=0; col<3000; col++)
+			ancestor.append("ACGT".charAt(rand.nextInt(4)));
+		String[] inputs = new String[6];
+		for (int i=0; i<inputs.length; i++)
+		{
+			StringBuilder sb = new StringBuilder();
+			for (int col=0; col<ancestor.length(); col++)
+			{
+				double change = rand.nextDouble();
+				if (change < 0.01)
+					continue;
+				if (change < 0.02)
+					sb.append("ACGT".charAt(rand.nextInt(4)));
+				sb.append(change < 0.04 ? "ACGT".charAt(rand.nextInt(4)) : ancestor.charAt(col));
+			}
+			inputs[i] = sb.toString();
+		}
+
+		boolean ok = true;
+		for (long limit : new long[] {0, 20})
+		{
+			Properties p = getDefaultProperties();
+			p.put("seqScorer", "gamsa.scorer.DNAScorer");
+			p.put("timeLimitMillis", Long.toString(limit));
+			AnchorAligner aligner = new AnchorAligner(p);
+			Alignment best = (Alignment) aligner.findSolution(inputs);
+
+			String[] residues = new String[inputs.length];
+			int[][] columns = new int[inputs.length][];
+			for (int i=0; i<inputs.length; i++)
+			{
+				residues[i] = inputs[i].replace("-", "");
+				String row = best.getSequenceAt(i).toString();
+				ok &= row.replace("-", "").equals(residues[i]);
+				columns[i] = new int[residues[i].length()];
+				for (int col=0, r=0; col<row.length() && r<columns[i].length; col++)
+				{
+					if (row.charAt(col) != '-')
+						columns[i][r++] = col;
+				}
+			}
+
+			int k = aligner.getAnchorLength(residues);
+			List<Anchor> anchors = joinShortSegments(chain(findAnchors(residues, k)), residues, k);
+			for (Anchor anchor : anchors)
+			{
+				int first = columns[0][anchor.i_starts[0]];
+				for (int i=0; i<inputs.length; i++)
+				{
+					for (int o=0; o<anchor.i_length; o++)
+						ok &= columns[i][anchor.i_starts[i] + o] == first + o;
+				}
+			}
+			System.out.println("Limit " + limit + " ms: " + anchors.size() + " anchors, fitness "
+					+ best.getFitness() + (ok ? " OK" : " FAILED"));
+		}
+		if (!ok)
+			System.exit(1);
+	}
+}
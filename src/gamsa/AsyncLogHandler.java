@@ -0,0 +1,161 @@
+package gamsa;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+   Hands log records to another handler on a background thread, so that
+   writing them out never holds up the search.  Records are queued; if
+   the queue is full, new records are dropped (and counted) rather than
+   waiting for room.  Warnings and errors are never dropped: they wait
+   for room instead.
+
+   Messages with parameters are formatted by the other handler, on the
+   background thread, so the parameters should not change once logged.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class AsyncLogHandler extends Handler
+{
+	//Longest flush() waits for the queue to empty, in milliseconds.
+	private static final long FLUSH_WAIT = 2000;
+
+	private Handler i_target;
+	private BlockingQueue<LogRecord> i_queue;
+	private AtomicLong i_dropped = new AtomicLong();
+	private Thread i_writer;
+	private volatile boolean i_closed = false;
+
+	//Records queued but not yet written.
+	private AtomicLong i_pending = new AtomicLong();
+
+	/**
+	   Constructor.  At most aCapacity records wait to be written.
+	 */
+	public AsyncLogHandler(Handler aTarget, int aCapacity)
+	{
+		i_target = aTarget;
+		i_queue = new ArrayBlockingQueue<LogRecord>(aCapacity);
+		setLevel(aTarget.getLevel());
+
+		i_writer = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				writeRecords();
+			}
+		}, "gamsa-log-writer");
+		i_writer.setDaemon(true);
+		i_writer.start();
+	}
+
+	/**
+	   Returns the handler that records are passed to.
+	 */
+	public Handler getTarget()
+	{
+		return i_target;
+	}
+
+	/**
+	   Queues the record, or drops it if the queue is full.
+	   @see java.util.logging.Handler#publish(java.util.logging.LogRecord)
+	 */
+	@Override
+	public void publish(LogRecord aRecord)
+	{
+		if (i_closed || !isLoggable(aRecord))
+			return;
+		//The caller can only be found on the logging thread.
+		aRecord.getSourceMethodName();
+		i_pending.incrementAndGet();
+		if (i_queue.offer(aRecord))
+			return;
+		if (aRecord.getLevel().intValue() >= Level.WARNING.intValue())
+		{
+			try
+			{
+				i_queue.put(aRecord);
+				return;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		i_pending.decrementAndGet();
+		i_dropped.incrementAndGet();
+	}
+
+	/**
+	   Waits (briefly) for the queued records to be written, then
+	   flushes the other handler.  Not for use inside the search loop.
+	   @see java.util.logging.Handler#flush()
+	 */
+	@Override
+	public void flush()
+	{
+		long giveUp = System.currentTimeMillis() + FLUSH_WAIT;
+		while (i_pending.get() > 0 && System.currentTimeMillis() < giveUp)
+		{
+			try
+			{
+				Thread.sleep(1);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		i_target.flush();
+	}
+
+	/**
+	   Writes what is left and stops the background thread.
+	   @see java.util.logging.Handler#close()
+	 */
+	@Override
+	public void close()
+	{
+		flush();
+		i_closed = true;
+		i_writer.interrupt();
+		i_target.close();
+	}
+
+	/**
+	   Returns the number of records dropped because the queue was full.
+	 */
+	public long getDroppedCount()
+	{
+		return i_dropped.get();
+	}
+
+	/**
+	   Passes queued records on until the handler is closed.
+	 */
+	private void writeRecords()
+	{
+		while (!i_closed)
+		{
+			try
+			{
+				LogRecord record = i_queue.poll(100, TimeUnit.MILLISECONDS);
+				if (record == null)
+					continue;
+				i_target.publish(record);
+				i_pending.decrementAndGet();
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package gamsa;
+
+/**
+   Lets another thread ask a running search to stop.  The search checks
+   the token once a round and returns the best alignment found so far.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class CancellationToken
+{
+	private volatile boolean i_cancelled = false;
+
+	/**
+	   Asks the search to stop.
+	 */
+	public void cancel()
+	{
+		i_cancelled = true;
+	}
+
+	/**
+	   Returns true if the search has been asked to stop.
+	 */
+	public boolean isCancelled()
+	{
+		return i_cancelled;
+	}
+}
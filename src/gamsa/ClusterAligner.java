@@ -0,0 +1,420 @@
+package gamsa;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import gamsa.population.Alignment;
+import gamsa.population.Individual;
+import gamsa.population.Sequence;
+import gamsa.profile.GuideTree;
+import gamsa.profile.Profile;
+import gamsa.profile.ProfileAligner;
+
+/**
+   Aligns families of many sequences, which are too large for one run
+   of the genetic algorithm.  The sequences are sorted into groups of
+   similar ones by cutting a guide tree built from word distances, and
+   each group is aligned by its own run of the genetic algorithm,
+   several at once.  The group alignments are then merged by aligning
+   their profiles, following the guide tree above the groups.  The
+   merged alignment may be given a short run of the genetic algorithm
+   to finish.
+
+   Each run sees at most clusterSize rows, so the work grows with the
+   number of sequences rather than with its square.  The price is
+   that the merge, like any progressive alignment, never undoes a
+   mistake.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class ClusterAligner implements Aligner
+{
+	private static Logger logger = Logger.getLogger(ClusterAligner.class.getName());
+
+	private Properties i_properties;
+	private int i_clusterSize;
+	private int i_threadCount;
+	private int i_refineRounds;
+	private long i_timeLimitMillis;
+
+	private List<ProgressListener> i_listeners = new ArrayList<ProgressListener>();
+	private RunStatistics i_statistics = new RunStatistics();
+
+	/**
+	   Constructor.  Default arguments will be used.
+	 */
+	public ClusterAligner()
+	{
+		this(getDefaultProperties());
+	}
+
+	/**
+	   Specifies default properties, in case there is no config.  These
+	   are MultiSeqAligner's, with the settings for the groups added.
+	 */
+	protected static Properties getDefaultProperties()
+	{
+		Properties p = MultiSeqAligner.getDefaultProperties();
+
+		p.put("clusterSize", "16");
+		p.put("clusterThreads", Integer.toString(Runtime.getRuntime().availableProcessors()));
+
+		//0 leaves the merged alignment as it is.
+		p.put("clusterRefineRounds", "0");
+
+		return p;
+	}
+
+	/**
+	   Constructor.  Properties will override default values, and are
+	   passed on to the run for every group.
+	 */
+	public ClusterAligner(Properties p)
+	{
+		i_properties = p;
+		i_clusterSize = Math.max(Integer.parseInt(p.getProperty("clusterSize", "16")), 2);
+		i_threadCount = Integer.parseInt(p.getProperty("clusterThreads",
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+		i_refineRounds = Integer.parseInt(p.getProperty("clusterRefineRounds", "0"));
+		i_timeLimitMillis = Long.parseLong(p.getProperty("timeLimitMillis", "0"));
+		MultiSeqAligner.loadScorer(p.getProperty("seqScorer"));
+	}
+
+	/**
+	   Returns the statistics for the last run.  The rounds are those of
+	   every group and the refinement together.
+	 */
+	public RunStatistics getStatistics()
+	{
+		return i_statistics;
+	}
+
+	/**
+	   Sets the longest a search may run, in milliseconds, groups and
+	   refinement together.  If there is a refinement, it gets the last
+	   third of the time.  0 means there is no limit.
+	 */
+	public void setTimeLimit(long aMillis)
+	{
+		i_timeLimitMillis = aMillis;
+	}
+
+	/**
+	   Adds a listener to be told about every round of every group, and
+	   of the refinement.  Groups are aligned at the same time, so the
+	   listener may be called from several threads at once.
+	 */
+	public void addProgressListener(ProgressListener aListener)
+	{
+		i_listeners.add(aListener);
+	}
+
+	/**
+	   Removes a listener.
+	 */
+	public void removeProgressListener(ProgressListener aListener)
+	{
+		i_listeners.remove(aListener);
+	}
+
+	/**
+	   Returns the best alignment found.
+	 */
+	public Individual findSolution(String[] inputSequences)
+	{
+		return findSolution(inputSequences, null);
+	}
+
+	/**
+	   Returns the best alignment found, with the rows in the order of
+	   the input.  The token (which may be null) is passed on to the run
+	   for every group.
+	 */
+	public Individual findSolution(String[] inputSequences, CancellationToken aToken)
+	{
+		long start = System.currentTimeMillis();
+		long deadline = i_timeLimitMillis > 0 ? start + i_timeLimitMillis : 0;
+		long groupDeadline = deadline > 0 && i_refineRounds > 0 ? start + i_timeLimitMillis * 2 / 3 : deadline;
+		i_statistics = new RunStatistics();
+		i_statistics.start();
+
+		String[] residues = new String[inputSequences.length];
+		for (int i=0; i<residues.length; i++)
+			residues[i] = inputSequences[i].replace("-", "");
+		ProfileAligner profiles = new ProfileAligner(InfoCenter.getCenter().getScorer(), residues);
+
+		int threads = Math.max(i_threadCount, 1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		int rounds = 0;
+		Alignment merged;
+		try
+		{
+			//Short words share too much by chance in small alphabets.
+			int wordLength = profiles.getSymbolCount() <= 4 ? 6 : 3;
+			GuideTree tree = new GuideTree(GuideTree.getWordDistances(residues, wordLength, executor));
+			List<GuideTree.Node> groups = new ArrayList<GuideTree.Node>();
+			cut(tree.getRoot(), groups);
+			logger.info("Sorted " + residues.length + " sequences into " + groups.size() + " groups.");
+
+			//Align the groups, several at once.  The time left is shared by
+			// the groups not yet started, a thread's worth at a time.
+			final int[] groupRounds = new int[1];
+			int[] waiting = new int[1];
+			List<Callable<Profile>> tasks = new ArrayList<Callable<Profile>>();
+			for (GuideTree.Node group : groups)
+				tasks.add(createTask(group, residues, profiles, groupRounds, waiting, threads, groupDeadline, aToken));
+			Map<GuideTree.Node,Profile> aligned = new HashMap<GuideTree.Node,Profile>();
+			List<Future<Profile>> results = executor.invokeAll(tasks);
+			for (int g=0; g<groups.size(); g++)
+				aligned.put(groups.get(g), results.get(g).get());
+			rounds = groupRounds[0];
+
+			merged = toAlignment(merge(tree.getRoot(), aligned, profiles), profiles, residues.length);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while aligning groups", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException("Could not align a group", e.getCause());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		logger.info("Merged groups; fitness " + merged.getFitness());
+
+		Alignment best = merged;
+		if (i_refineRounds > 0 && (aToken == null || !aToken.isCancelled())
+				&& (deadline == 0 || System.currentTimeMillis() < deadline))
+		{
+			Properties refineProperties = new Properties();
+			refineProperties.putAll(i_properties);
+			refineProperties.put("maxRounds", Integer.toString(i_refineRounds));
+			refineProperties.put("progressiveSeeding", "false");
+			MultiSeqAligner refiner = new MultiSeqAligner(refineProperties);
+			if (deadline > 0)
+				refiner.setTimeLimit(Math.max(deadline - System.currentTimeMillis(), 1));
+			for (ProgressListener listener : i_listeners)
+				refiner.addProgressListener(listener);
+			best = (Alignment) refiner.findSolution(residues, new Alignment[] {merged}, aToken);
+			rounds += refiner.getNumberOfRoundsExecuted();
+			logger.info("Refined merged alignment; fitness " + best.getFitness());
+		}
+		i_statistics.finish(rounds, best.getFitness());
+		return best;
+	}
+
+	/**
+	   Adds the largest subtrees of no more than clusterSize sequences
+	   to the list of groups.
+	 */
+	private void cut(GuideTree.Node aNode, List<GuideTree.Node> groups)
+	{
+		if (aNode.getSize() <= i_clusterSize)
+		{
+			groups.add(aNode);
+			return;
+		}
+		cut(aNode.getLeft(), groups);
+		cut(aNode.getRight(), groups);
+	}
+
+	/**
+	   Returns a task that aligns the sequences under the node, giving
+	   their profile.  One or two sequences need no search: a pair is
+	   aligned best by the dynamic programming of the merge.  Otherwise
+	   the search starts from the merge of the group's own subtree, and
+	   is skipped if the deadline (0 for none) has passed.
+	 */
+	private Callable<Profile> createTask(final GuideTree.Node aGroup, final String[] residues,
+			final ProfileAligner profiles, final int[] groupRounds, final int[] waiting, final int threads,
+			final long aDeadline, final CancellationToken aToken)
+	{
+		List<Integer> leaves = new ArrayList<Integer>();
+		collectLeaves(aGroup, leaves);
+		final int[] members = new int[leaves.size()];
+		final String[] inputs = new String[members.length];
+		for (int i=0; i<members.length; i++)
+		{
+			members[i] = leaves.get(i);
+			inputs[i] = residues[members[i]];
+		}
+
+		if (members.length <= 2)
+		{
+			return new Callable<Profile>()
+			{
+				public Profile call()
+				{
+					Profile profile = profiles.getProfile(members[0], inputs[0]);
+					if (members.length == 2)
+						profile = profiles.align(profile, profiles.getProfile(members[1], inputs[1]));
+					return profile;
+				}
+			};
+		}
+
+		final MultiSeqAligner aligner = new MultiSeqAligner(i_properties);
+		for (ProgressListener listener : i_listeners)
+			aligner.addProgressListener(listener);
+		waiting[0]++;
+		return new Callable<Profile>()
+		{
+			public Profile call()
+			{
+				int waves;
+				synchronized (waiting)
+				{
+					waves = (waiting[0]-- + threads - 1) / threads;
+				}
+				Profile progressive = align(aGroup, residues, profiles);
+				if (aDeadline > 0)
+				{
+					long left = aDeadline - System.currentTimeMillis();
+					if (left <= 0)
+						return progressive;
+					aligner.setTimeLimit(Math.max(left / waves, 1));
+				}
+
+				//The seed has the rows in the order of the inputs.
+				String[] seedRows = new String[members.length];
+				String[] progressiveRows = profiles.getRows(progressive);
+				for (int r=0; r<progressiveRows.length; r++)
+				{
+					for (int i=0; i<members.length; i++)
+					{
+						if (members[i] == progressive.getMembers()[r])
+							seedRows[i] = progressiveRows[r];
+					}
+				}
+				Alignment seed = new Alignment();
+				for (String row : seedRows)
+					seed.addSequence(new Sequence(row));
+
+				Alignment alignment = (Alignment) aligner.findSolution(inputs, new Alignment[] {seed}, aToken);
+				synchronized (groupRounds)
+				{
+					groupRounds[0] += aligner.getNumberOfRoundsExecuted();
+				}
+				String[] rows = new String[members.length];
+				for (int i=0; i<rows.length; i++)
+					rows[i] = alignment.getSequenceAt(i).toString();
+				return profiles.getProfile(members, dropGapColumns(rows));
+			}
+		};
+	}
+
+	/**
+	   Adds the input position of every sequence under the node to the list.
+	 */
+	private static void collectLeaves(GuideTree.Node aNode, List<Integer> leaves)
+	{
+		if (aNode.isLeaf())
+		{
+			leaves.add(aNode.getLeaf());
+			return;
+		}
+		collectLeaves(aNode.getLeft(), leaves);
+		collectLeaves(aNode.getRight(), leaves);
+	}
+
+	/**
+	   Returns the rows without the columns that are gaps in every row,
+	   which would only get in the way of the merge.
+	 */
+	private static String[] dropGapColumns(String[] rows)
+	{
+		StringBuilder[] kept = new StringBuilder[rows.length];
+		for (int i=0; i<rows.length; i++)
+			kept[i] = new StringBuilder(rows[i].length());
+		for (int col=0; col<rows[0].length(); col++)
+		{
+			boolean allGaps = true;
+			for (int i=0; i<rows.length && allGaps; i++)
+				allGaps = rows[i].charAt(col) == '-';
+			if (allGaps)
+				continue;
+			for (int i=0; i<rows.length; i++)
+				kept[i].append(rows[i].charAt(col));
+		}
+		String[] result = new String[rows.length];
+		for (int i=0; i<rows.length; i++)
+			result[i] = kept[i].toString();
+		return result;
+	}
+
+	/**
+	   Returns the profile of every sequence under the node, merging
+	   them one by one in the order of the tree.
+	 */
+	private static Profile align(GuideTree.Node aNode, String[] residues, ProfileAligner profiles)
+	{
+		if (aNode.isLeaf())
+			return profiles.getProfile(aNode.getLeaf(), residues[aNode.getLeaf()]);
+		return profiles.align(align(aNode.getLeft(), residues, profiles), align(aNode.getRight(), residues, profiles));
+	}
+
+	/**
+	   Returns the profile of every sequence under the node, merging
+	   the groups' profiles in the order of the tree.
+	 */
+	private static Profile merge(GuideTree.Node aNode, Map<GuideTree.Node,Profile> aligned, ProfileAligner profiles)
+	{
+		Profile profile = aligned.get(aNode);
+		if (profile != null)
+			return profile;
+		return profiles.align(merge(aNode.getLeft(), aligned, profiles), merge(aNode.getRight(), aligned, profiles));
+	}
+
+	/**
+	   Returns the profile as an alignment, with the rows in the order
+	   of the input.
+	 */
+	private static Alignment toAlignment(Profile aProfile, ProfileAligner profiles, int aCount)
+	{
+		String[] rows = new String[aCount];
+		String[] aligned = profiles.getRows(aProfile);
+		for (int r=0; r<aligned.length; r++)
+			rows[aProfile.getMembers()[r]] = aligned[r];
+
+		Alignment alignment = new Alignment();
+		for (String row : rows)
+			alignment.addSequence(new Sequence(row));
+		return alignment;
+	}
+
+	/**
+	   Self-check: groups are cut from the guide tree, so their rows
+	   come back in a different order from the input, and the merged
+	   alignment should still have each input's residues in its own row.
+	 */
+	public static void main(String[] args)
+	{
+		String[] inputs = new TestCases().getAAGrowthHormoneSequences();
+		Properties p = getDefaultProperties();
+		p.put("clusterSize", "3");
+		p.put("clusterRefineRounds", "0");
+		p.put("maxRounds", "50");
+		Alignment best = (Alignment) new ClusterAligner(p).findSolution(inputs);
+
+		boolean ok = best.getSize() == inputs.length;
+		for (int i=0; ok && i<inputs.length; i++)
+			ok = best.getSequenceAt(i).toString().replace("-", "").equals(inputs[i].replace("-", ""));
+		System.out.println(inputs.length + " sequences in groups of 3, fitness " + best.getFitness()
+				+ (ok ? " OK" : " FAILED"));
+		if (!ok)
+			System.exit(1);
+	}
+}
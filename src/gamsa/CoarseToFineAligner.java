@@ -0,0 +1,460 @@
+package gamsa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import gamsa.population.Alignment;
+import gamsa.population.Individual;
+import gamsa.population.Sequence;
+import gamsa.scorer.ChunkScorer;
+import gamsa.scorer.ChunkSummary;
+import gamsa.scorer.Scorer;
+
+/**
+   Aligns long sequences in two stages.  First the genetic algorithm
+   aligns shortened copies of the sequences, in which each block of
+   residues is stood for by its most common residue, to find the
+   overall layout cheaply.  That alignment is then blown back up to
+   full length, and cut into windows of columns that are each refined
+   on their own by the genetic algorithm, starting from the layout.
+
+   The coarse search works on sequences a block's length shorter, and
+   each window is a small search of fixed size, so the work grows
+   with the length of the sequences rather than faster.  The price is
+   that residues cannot move between windows.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class CoarseToFineAligner implements Aligner
+{
+	private static Logger logger = Logger.getLogger(CoarseToFineAligner.class.getName());
+
+	private Properties i_properties;
+	private int i_blockSize;
+	private int i_window;
+	private int i_fineRounds;
+	private int i_fineUnchangedRounds;
+	private int i_passes;
+	private long i_timeLimitMillis;
+
+	//Fitness of the coarse layout at full length, for the last run.
+	private double i_layoutFitness;
+
+	private List<ProgressListener> i_listeners = new ArrayList<ProgressListener>();
+	private RunStatistics i_statistics = new RunStatistics();
+
+	/**
+	   Constructor.  Default arguments will be used.
+	 */
+	public CoarseToFineAligner()
+	{
+		this(getDefaultProperties());
+	}
+
+	/**
+	   Specifies default properties, in case there is no config.  These
+	   are MultiSeqAligner's, with the settings for the two stages added.
+	 */
+	protected static Properties getDefaultProperties()
+	{
+		Properties p = MultiSeqAligner.getDefaultProperties();
+
+		p.put("coarseBlockSize", "8");
+		p.put("fineWindow", "300");
+		p.put("fineRounds", "40");
+		p.put("fineUnchangedRounds", "15");
+		p.put("finePasses", "2");
+
+		return p;
+	}
+
+	/**
+	   Constructor.  Properties will override default values.  The
+	   coarse search uses them as they are; the refinement of each
+	   window stops after fineRounds rounds, or fineUnchangedRounds
+	   rounds without improvement.
+	 */
+	public CoarseToFineAligner(Properties p)
+	{
+		i_properties = p;
+		i_blockSize = Integer.parseInt(p.getProperty("coarseBlockSize", "8"));
+		i_window = Integer.parseInt(p.getProperty("fineWindow", "300"));
+		i_fineRounds = Integer.parseInt(p.getProperty("fineRounds", "40"));
+		i_fineUnchangedRounds = Integer.parseInt(p.getProperty("fineUnchangedRounds", "15"));
+		i_passes = Math.max(Integer.parseInt(p.getProperty("finePasses", "2")), 1);
+		i_timeLimitMillis = Long.parseLong(p.getProperty("timeLimitMillis", "0"));
+	}
+
+	/**
+	   Returns the statistics for the last run.  The rounds are those of
+	   the coarse search and every window together.
+	 */
+	public RunStatistics getStatistics()
+	{
+		return i_statistics;
+	}
+
+	/**
+	   Sets the longest a search may run, in milliseconds.  A third of
+	   the time goes to the coarse search.  0 means there is no limit.
+	 */
+	public void setTimeLimit(long aMillis)
+	{
+		i_timeLimitMillis = aMillis;
+	}
+
+	/**
+	   Adds a listener to be told about every round of the coarse search.
+	 */
+	public void addProgressListener(ProgressListener aListener)
+	{
+		i_listeners.add(aListener);
+	}
+
+	/**
+	   Removes a listener.
+	 */
+	public void removeProgressListener(ProgressListener aListener)
+	{
+		i_listeners.remove(aListener);
+	}
+
+	/**
+	   Returns the best alignment found.
+	 */
+	public Individual findSolution(String[] inputSequences)
+	{
+		return findSolution(inputSequences, null);
+	}
+
+	/**
+	   Returns the best alignment found.  If the token (which may be
+	   null) is cancelled, the windows not yet refined are left as the
+	   coarse search placed them.
+	 */
+	public Individual findSolution(String[] inputSequences, CancellationToken aToken)
+	{
+		long deadline = i_timeLimitMillis > 0 ? System.currentTimeMillis() + i_timeLimitMillis : 0;
+		i_statistics = new RunStatistics();
+		i_statistics.start();
+
+		String[] residues = new String[inputSequences.length];
+		String[] coarse = new String[inputSequences.length];
+		for (int i=0; i<residues.length; i++)
+		{
+			residues[i] = inputSequences[i].replace("-", "");
+			coarse[i] = downsample(residues[i]);
+		}
+
+		//Find the layout on the short sequences.
+		Properties coarseProperties = new Properties();
+		coarseProperties.putAll(i_properties);
+		if (deadline > 0)
+			coarseProperties.put("timeLimitMillis", Long.toString(Math.max(i_timeLimitMillis / 3, 1)));
+		MultiSeqAligner coarseAligner = new MultiSeqAligner(coarseProperties);
+		for (ProgressListener listener : i_listeners)
+			coarseAligner.addProgressListener(listener);
+		Alignment layout = (Alignment) coarseAligner.findSolution(coarse, aToken);
+		int rounds = coarseAligner.getNumberOfRoundsExecuted();
+		String[] projected = project(layout, residues);
+		logger.info("Coarse layout: " + layout.getSequenceLength() + " columns, "
+				+ projected[0].length() + " at full length");
+
+		//Refine each window, starting from the layout.
+		Properties fineProperties = new Properties();
+		fineProperties.putAll(i_properties);
+		fineProperties.put("maxRounds", Integer.toString(i_fineRounds));
+		fineProperties.put("unchangedRoundsNeeded", Integer.toString(i_fineUnchangedRounds));
+		fineProperties.put("progressiveSeeding", "false");
+		fineProperties.put("timeLimitMillis", "0");
+		MultiSeqAligner fineAligner = new MultiSeqAligner(fineProperties);
+
+		//Later passes move the window edges, so that residues held back
+		// by an edge in one pass can cross it in the next.
+		String[] refined = projected;
+		i_layoutFitness = toAlignment(projected).getFitness();
+		for (int pass=0; pass<i_passes; pass++)
+		{
+			int length = refined[0].length();
+			int offset = pass * i_window / i_passes;
+			List<Integer> edges = new ArrayList<Integer>();
+			for (int start=0; start<length; )
+			{
+				edges.add(start);
+				start = Math.min(length, start == 0 && offset > 0 ? offset : start + i_window);
+			}
+			edges.add(length);
+
+			//Gaps at the edges of a window cost less than they will once
+			// it is put back between its neighbours, so a window is only
+			// kept if the whole alignment is no worse for it.  Each pair
+			// keeps a summary of the columns finished so far, and of the
+			// previous pass's columns after each window, so that only the
+			// window itself has to be scored.
+			int windows = edges.size() - 1;
+			ChunkSummary[][] after = new ChunkSummary[windows + 1][];
+			after[windows] = new ChunkSummary[countPairs(refined.length)];
+			for (int w=windows-1; w>=0; w--)
+				after[w] = combine(summarize(refined, edges.get(w), edges.get(w + 1)), after[w + 1]);
+			ChunkSummary[] finished = new ChunkSummary[after[windows].length];
+			double fitness = getScore(after[0]);
+
+			StringBuilder[] rows = new StringBuilder[refined.length];
+			for (int i=0; i<rows.length; i++)
+				rows[i] = new StringBuilder();
+			for (int w=0; w<windows; w++)
+			{
+				int start = edges.get(w);
+				int end = edges.get(w + 1);
+				String[] window = new String[refined.length];
+				for (int i=0; i<window.length; i++)
+					window[i] = refined[i].substring(start, end);
+				ChunkSummary[] kept = null;
+
+				boolean stopped = aToken != null && aToken.isCancelled()
+						|| deadline > 0 && System.currentTimeMillis() >= deadline;
+				if (!stopped)
+				{
+					if (deadline > 0)
+					{
+						int windowsLeft = (i_passes - pass - 1) * windows + windows - w;
+						fineAligner.setTimeLimit(Math.max((deadline - System.currentTimeMillis()) / windowsLeft, 1));
+					}
+					String[] candidate = refine(fineAligner, window, aToken);
+					rounds += fineAligner.getNumberOfRoundsExecuted();
+
+					ChunkSummary[] withCandidate = combine(finished, summarize(candidate, 0, candidate[0].length()));
+					double candidateFitness = getScore(combine(withCandidate, after[w + 1]));
+					if (candidateFitness >= fitness)
+					{
+						window = candidate;
+						fitness = candidateFitness;
+						kept = withCandidate;
+					}
+				}
+				finished = kept != null ? kept : combine(finished, summarize(refined, start, end));
+				for (int i=0; i<window.length; i++)
+					rows[i].append(window[i]);
+			}
+			refined = new String[rows.length];
+			for (int i=0; i<rows.length; i++)
+				refined[i] = rows[i].toString();
+		}
+		Alignment best = toAlignment(refined);
+		i_statistics.finish(rounds, best.getFitness());
+		i_statistics.recordTermination(coarseAligner.getStatistics().getTerminationReason(),
+				Double.NaN, Double.NaN);
+		logger.info("Coarse fitness at full length "
+				+ i_layoutFitness + ", refined " + best.getFitness());
+		return best;
+	}
+
+	/**
+	   Returns the sequence with each block of residues replaced by the
+	   most common residue in it (the first of those, for a tie).
+	 */
+	private String downsample(String aSequence)
+	{
+		StringBuilder sb = new StringBuilder(aSequence.length() / i_blockSize + 1);
+		for (int start=0; start<aSequence.length(); start+=i_blockSize)
+		{
+			String block = aSequence.substring(start, Math.min(aSequence.length(), start + i_blockSize));
+			char best = block.charAt(0);
+			int bestCount = 0;
+			for (int i=0; i<block.length(); i++)
+			{
+				int count = 0;
+				for (int j=0; j<block.length(); j++)
+				{
+					if (block.charAt(j) == block.charAt(i))
+						count++;
+				}
+				if (count > bestCount)
+				{
+					best = block.charAt(i);
+					bestCount = count;
+				}
+			}
+			sb.append(best);
+		}
+		return sb.toString();
+	}
+
+	/**
+	   Returns the rows of the coarse alignment at full length.  Each
+	   column becomes a block's length of columns, holding the block's
+	   residues (followed by gaps, for a short last block) or gaps.
+	 */
+	private String[] project(Alignment aLayout, String[] residues)
+	{
+		String[] rows = new String[aLayout.getSize()];
+		for (int i=0; i<rows.length; i++)
+		{
+			Sequence coarseRow = aLayout.getSequenceAt(i);
+			StringBuilder sb = new StringBuilder(coarseRow.getSize() * i_blockSize);
+			int block = 0;
+			for (int col=0; col<coarseRow.getSize(); col++)
+			{
+				int filled = 0;
+				if (coarseRow.getElementAt(col) != '-')
+				{
+					int start = block++ * i_blockSize;
+					int end = Math.min(residues[i].length(), start + i_blockSize);
+					sb.append(residues[i], start, end);
+					filled = end - start;
+				}
+				for (int k=filled; k<i_blockSize; k++)
+					sb.append('-');
+			}
+			rows[i] = sb.toString();
+		}
+		return rows;
+	}
+
+	/**
+	   Returns the rows of the window after refining them.  Rows with no
+	   residues in the window are left out of the search and given gaps
+	   to the new length.
+	 */
+	private String[] refine(MultiSeqAligner anAligner, String[] aWindow, CancellationToken aToken)
+	{
+		List<Integer> present = new ArrayList<Integer>();
+		for (int i=0; i<aWindow.length; i++)
+		{
+			if (aWindow[i].replace("-", "").length() > 0)
+				present.add(i);
+		}
+		if (present.size() < 2)
+			return aWindow;
+
+		String[] inputs = new String[present.size()];
+		Alignment seed = new Alignment();
+		for (int i=0; i<inputs.length; i++)
+		{
+			String row = aWindow[present.get(i)];
+			inputs[i] = row.replace("-", "");
+			seed.addSequence(new Sequence(row));
+		}
+		Alignment refined = (Alignment) anAligner.findSolution(inputs, new Alignment[] {seed}, aToken);
+
+		String[] result = new String[aWindow.length];
+		StringBuilder gaps = new StringBuilder();
+		for (int k=0; k<refined.getSequenceLength(); k++)
+			gaps.append('-');
+		for (int i=0; i<result.length; i++)
+			result[i] = gaps.toString();
+		for (int i=0; i<inputs.length; i++)
+			result[present.get(i)] = refined.getSequenceAt(i).toString();
+		return result;
+	}
+
+	/**
+	   Returns the number of pairs of the given number of rows.
+	 */
+	private static int countPairs(int aRows)
+	{
+		return aRows * (aRows - 1) / 2;
+	}
+
+	/**
+	   Returns a summary of the given columns for each pair of rows, in
+	   the order the alignment compares them.
+	 */
+	private static ChunkSummary[] summarize(String[] rows, int aStart, int anEnd)
+	{
+		ChunkScorer scorer = getChunkScorer();
+		Sequence[] pieces = new Sequence[rows.length];
+		for (int i=0; i<rows.length; i++)
+			pieces[i] = new Sequence(rows[i].substring(aStart, anEnd));
+		ChunkSummary[] summaries = new ChunkSummary[countPairs(rows.length)];
+		int pair = 0;
+		for (int i=0; i<rows.length; i++)
+		{
+			for (int j=i+1; j<rows.length; j++)
+				summaries[pair++] = scorer.summarize(pieces[i], pieces[j], 0, anEnd - aStart);
+		}
+		return summaries;
+	}
+
+	/**
+	   Returns, for each pair, the left summary followed by the right
+	   one.  A missing summary stands for no columns.
+	 */
+	private static ChunkSummary[] combine(ChunkSummary[] left, ChunkSummary[] right)
+	{
+		ChunkSummary[] combined = new ChunkSummary[left.length];
+		for (int k=0; k<combined.length; k++)
+		{
+			if (left[k] == null)
+				combined[k] = right[k];
+			else if (right[k] == null)
+				combined[k] = left[k];
+			else
+				combined[k] = left[k].combine(right[k]);
+		}
+		return combined;
+	}
+
+	/**
+	   Returns the fitness of the alignment the summaries cover.
+	 */
+	private static double getScore(ChunkSummary[] summaries)
+	{
+		double score = 0;
+		for (ChunkSummary summary : summaries)
+		{
+			if (summary != null)
+				score += summary.getScore();
+		}
+		return score;
+	}
+
+	/**
+	   Returns the scorer in use, which must be able to score columns in
+	   pieces.
+	 */
+	private static ChunkScorer getChunkScorer()
+	{
+		Scorer scorer = InfoCenter.getCenter().getScorer();
+		if (!(scorer instanceof ChunkScorer))
+			throw new IllegalStateException(scorer.getClass().getName() + " cannot score windows on their own");
+		return (ChunkScorer) scorer;
+	}
+
+	/**
+	   Returns an alignment of the rows, which already have their gaps.
+	 */
+	private static Alignment toAlignment(String[] rows)
+	{
+		Alignment alignment = new Alignment();
+		for (String row : rows)
+			alignment.addSequence(new Sequence(row));
+		return alignment;
+	}
+
+	/**
+	   Self-check: the refined rows should hold the residues of the
+	   inputs in order, and since a window is only kept if the whole
+	   alignment is no worse for it, the result should score at least
+	   as well as the coarse layout it started from.
+	 */
+	public static void main(String[] args)
+	{
+		String[] inputs = new TestCases().getDNABetaGlobinSequences();
+		Properties p = getDefaultProperties();
+		p.put("seqScorer", "gamsa.scorer.DNAScorer");
+		p.put("fineWindow", "60");
+		CoarseToFineAligner aligner = new CoarseToFineAligner(p);
+		Alignment best = (Alignment) aligner.findSolution(inputs);
+
+		boolean ok = best.getFitness() >= aligner.i_layoutFitness;
+		for (int i=0; i<inputs.length; i++)
+			ok &= best.getSequenceAt(i).toString().replace("-", "").equals(inputs[i].replace("-", ""));
+		System.out.println("Layout " + aligner.i_layoutFitness + ", refined " + best.getFitness()
+				+ (ok ? " OK" : " FAILED"));
+		if (!ok)
+			System.exit(1);
+	}
+}
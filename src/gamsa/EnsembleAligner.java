@@ -0,0 +1,477 @@
+package gamsa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+import gamsa.population.Individual;
+
+/**
+   Runs several copies of the genetic algorithm, each with its own
+   random seed, and returns the best alignment any of them finds.
+   Results vary a lot from seed to seed, so this is more reliable than
+   a single run.
+
+   The runs are raced.  Every few rounds they all stop at a checkpoint
+   and their best fitness is compared.  A run is stopped early if, even
+   improving at its latest rate plus a margin for luck, it would not
+   catch up with the leader within the next few checkpoints.  Runs
+   take turns on a limited number of threads, so the time the losers
+   would have used goes to the runs still in the race.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class EnsembleAligner implements Aligner
+{
+	private static Logger logger = Logger.getLogger(EnsembleAligner.class.getName());
+
+	/**
+	   What happened to one run of the ensemble.
+	 */
+	public static class RunSummary
+	{
+		private int i_index;
+		private long i_seed;
+		private List<Double> i_trajectory = new ArrayList<Double>();
+		private int i_stoppedAtRound = -1;
+		private RunStatistics i_statistics;
+
+		RunSummary(int anIndex, long aSeed)
+		{
+			i_index = anIndex;
+			i_seed = aSeed;
+		}
+
+		/**
+		   Returns the position of the run in the ensemble.
+		 */
+		public int getIndex()
+		{
+			return i_index;
+		}
+
+		/**
+		   Returns the seed the run was given, so that it can be repeated.
+		 */
+		public long getSeed()
+		{
+			return i_seed;
+		}
+
+		/**
+		   Returns the best fitness of the run at each checkpoint it reached.
+		 */
+		public List<Double> getTrajectory()
+		{
+			return Collections.unmodifiableList(i_trajectory);
+		}
+
+		/**
+		   Returns true if the run was stopped for falling behind.
+		 */
+		public boolean wasStopped()
+		{
+			return i_stoppedAtRound >= 0;
+		}
+
+		/**
+		   Returns the round at which the run was stopped, or -1.
+		 */
+		public int getStoppedAtRound()
+		{
+			return i_stoppedAtRound;
+		}
+
+		/**
+		   Returns the statistics of the run.  The evaluation counts are
+		   the run's own, apart from those of a final polish, which is
+		   done on the shared pool.
+		 */
+		public RunStatistics getStatistics()
+		{
+			return i_statistics;
+		}
+
+		/**
+		   Returns the best fitness at the last checkpoint reached.
+		 */
+		private double getLatest()
+		{
+			return i_trajectory.isEmpty() ? Double.NEGATIVE_INFINITY : i_trajectory.get(i_trajectory.size() - 1);
+		}
+
+		/**
+		   Returns the improvement since the checkpoint before the last.
+		 */
+		private double getLatestGain()
+		{
+			int size = i_trajectory.size();
+			return size < 2 ? 0 : i_trajectory.get(size - 1) - i_trajectory.get(size - 2);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Run " + i_index + " (seed " + i_seed + "): best "
+					+ (i_statistics == null ? getLatest() : i_statistics.getBestFitness())
+					+ (wasStopped() ? ", stopped at round " + i_stoppedAtRound
+							: ", finished on " + (i_statistics == null ? "?" : i_statistics.getTerminationReason()));
+		}
+	}
+	////End of run summary class.
+
+	/**
+	   One run of the ensemble, on its own thread.
+	 */
+	private class Run implements Callable<Individual>, ProgressListener
+	{
+		private MultiSeqAligner i_aligner;
+		private RunSummary i_summary;
+		private CancellationToken i_token = new CancellationToken();
+		private String[] i_inputs;
+
+		public Run(MultiSeqAligner anAligner, RunSummary aSummary, String[] inputs)
+		{
+			i_aligner = anAligner;
+			i_summary = aSummary;
+			i_inputs = inputs;
+			i_aligner.addProgressListener(this);
+			i_aligner.setThreadStatistics(true);
+		}
+
+		public Individual call() throws InterruptedException
+		{
+			InfoCenter.getCenter().setSeed(i_summary.i_seed);
+			i_threads.acquire();
+			try
+			{
+				//The run's clock starts when it gets a thread, so it is
+				//given what is left of the race's time.
+				if (i_deadline > 0)
+					i_aligner.setTimeLimit(Math.max(i_deadline - System.currentTimeMillis(), 1));
+				return i_aligner.findSolution(i_inputs, i_token);
+			}
+			finally
+			{
+				i_threads.release();
+				i_summary.i_statistics = i_aligner.getStatistics();
+				i_checkpoints.arriveAndDeregister();
+				i_aligner.removeProgressListener(this);
+				InfoCenter.getCenter().clearSeed();
+			}
+		}
+
+		/**
+		   Waits at every checkpoint for the other runs, giving up the
+		   thread in the meantime.
+		 */
+		public void generationCompleted(GenerationSnapshot snapshot)
+		{
+			if (i_token.isCancelled())
+				return;
+			if (i_outerToken != null && i_outerToken.isCancelled())
+			{
+				i_token.cancel();
+				return;
+			}
+			if (snapshot.getRound() % i_checkpointRounds != 0)
+				return;
+			//Past the deadline, the run stops on its own after this round.
+			if (i_deadline > 0 && System.currentTimeMillis() >= i_deadline)
+				return;
+
+			i_summary.i_trajectory.add(snapshot.getBestEverFitness());
+			synchronized (EnsembleAligner.this)
+			{
+				if (i_latest == null || snapshot.getBestEverFitness() > i_latest.getBestEverFitness())
+					i_latest = snapshot;
+			}
+
+			i_threads.release();
+			i_checkpoints.arriveAndAwaitAdvance();
+			i_threads.acquireUninterruptibly();
+		}
+	}
+	////End of run class.
+
+	private Properties i_properties;
+	private int i_runCount;
+	private int i_threadCount;
+	private int i_checkpointRounds;
+	private int i_warmupCheckpoints;
+	private int i_horizon;
+	private double i_confidence;
+	private long i_baseSeed;
+	private long i_timeLimitMillis;
+
+	private List<ProgressListener> i_listeners = new ArrayList<ProgressListener>();
+	private RunStatistics i_statistics = new RunStatistics();
+	private List<RunSummary> i_summaries = new ArrayList<RunSummary>();
+
+	//State of the race in progress.
+	private List<Run> i_runs;
+	private Semaphore i_threads;
+	private Phaser i_checkpoints;
+	private CancellationToken i_outerToken;
+	private long i_deadline;
+	private GenerationSnapshot i_latest;
+
+	/**
+	   Constructor.  Default arguments will be used.
+	 */
+	public EnsembleAligner()
+	{
+		this(getDefaultProperties());
+	}
+
+	/**
+	   Specifies default properties, in case there is no config.  These
+	   are MultiSeqAligner's, with the settings for the race added.
+	 */
+	protected static Properties getDefaultProperties()
+	{
+		Properties p = MultiSeqAligner.getDefaultProperties();
+
+		p.put("ensembleRuns", "4");
+		p.put("ensembleThreads", Integer.toString(Runtime.getRuntime().availableProcessors()));
+		p.put("checkpointRounds", "10");
+		p.put("ensembleWarmup", "2");
+		p.put("ensembleHorizon", "3");
+		p.put("ensembleConfidence", "2.0");
+
+		return p;
+	}
+
+	/**
+	   Constructor.  Properties will override default values, and are
+	   passed on to every run.
+	 */
+	public EnsembleAligner(Properties p)
+	{
+		i_properties = p;
+		i_runCount = Integer.parseInt(p.getProperty("ensembleRuns", "4"));
+		i_threadCount = Integer.parseInt(p.getProperty("ensembleThreads",
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+		i_checkpointRounds = Integer.parseInt(p.getProperty("checkpointRounds", "10"));
+		i_warmupCheckpoints = Integer.parseInt(p.getProperty("ensembleWarmup", "2"));
+		i_horizon = Integer.parseInt(p.getProperty("ensembleHorizon", "3"));
+		i_confidence = Double.parseDouble(p.getProperty("ensembleConfidence", "2.0"));
+		i_baseSeed = Long.parseLong(p.getProperty("ensembleSeed", Long.toString(System.nanoTime())));
+		i_timeLimitMillis = Long.parseLong(p.getProperty("timeLimitMillis", "0"));
+	}
+
+	/**
+	   Returns the statistics of the run that found the best alignment
+	   in the last race.
+	 */
+	public RunStatistics getStatistics()
+	{
+		return i_statistics;
+	}
+
+	/**
+	   Returns what happened to each run in the last race.
+	 */
+	public List<RunSummary> getRunSummaries()
+	{
+		return Collections.unmodifiableList(i_summaries);
+	}
+
+	/**
+	   Sets the longest the whole race may take, in milliseconds.  0
+	   means there is no limit.  As the runs take turns on the threads,
+	   they all stop at the same time rather than each after this long.
+	 */
+	public void setTimeLimit(long aMillis)
+	{
+		i_timeLimitMillis = aMillis;
+	}
+
+	/**
+	   Adds a listener to be told about every checkpoint, with the
+	   leading run's progress.
+	 */
+	public void addProgressListener(ProgressListener aListener)
+	{
+		i_listeners.add(aListener);
+	}
+
+	/**
+	   Removes a listener.
+	 */
+	public void removeProgressListener(ProgressListener aListener)
+	{
+		i_listeners.remove(aListener);
+	}
+
+	/**
+	   Returns the best alignment found by any run.
+	 */
+	public Individual findSolution(String[] inputSequences)
+	{
+		return findSolution(inputSequences, null);
+	}
+
+	/**
+	   Returns the best alignment found by any run.  If the token (which
+	   may be null) is cancelled, every run stops with the best it has.
+	 */
+	public Individual findSolution(String[] inputSequences, CancellationToken aToken)
+	{
+		logger.info("Racing " + i_runCount + " runs on " + i_threadCount + " threads.");
+
+		i_outerToken = aToken;
+		i_latest = null;
+		i_deadline = i_timeLimitMillis > 0 ? System.currentTimeMillis() + i_timeLimitMillis : 0;
+		i_summaries = new ArrayList<RunSummary>();
+		i_runs = new ArrayList<Run>();
+		i_threads = new Semaphore(Math.max(i_threadCount, 1));
+		for (int i=0; i<i_runCount; i++)
+		{
+			RunSummary summary = new RunSummary(i, i_baseSeed + i);
+			i_summaries.add(summary);
+			i_runs.add(new Run(new MultiSeqAligner(i_properties), summary, inputSequences));
+		}
+
+		//The race is decided by whichever run reaches a checkpoint last.
+		i_checkpoints = new Phaser(i_runCount)
+		{
+			@Override
+			protected boolean onAdvance(int phase, int registeredParties)
+			{
+				if (registeredParties > 0)
+					checkpointReached(phase + 1);
+				return registeredParties == 0;
+			}
+		};
+
+		//Every run needs its own thread, as waiting runs hold on to it.
+		ExecutorService executor = Executors.newFixedThreadPool(i_runCount);
+		Individual best = null;
+		RunSummary winner = null;
+		try
+		{
+			List<Future<Individual>> results = executor.invokeAll(i_runs);
+			for (int i=0; i<results.size(); i++)
+			{
+				Individual result = results.get(i).get();
+				if (best == null || result.getFitness() > best.getFitness())
+				{
+					best = result;
+					winner = i_summaries.get(i);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while racing", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException("A run of the ensemble failed", e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		i_statistics = winner.getStatistics();
+		logger.info("Best fitness " + best.getFitness() + " from run " + winner.getIndex());
+		for (RunSummary summary : i_summaries)
+			logger.info(summary.toString());
+		return best;
+	}
+
+	/**
+	   Called when every run still going has reached the checkpoint.
+	   Stops the runs that are unlikely to win.
+
+	   A run's gain is its improvement since the last checkpoint.  A run
+	   is stopped if its best fitness, plus its gain and the given number
+	   of standard deviations of the runs' gains for each checkpoint of
+	   the horizon, is below the leader's best fitness.
+	 */
+	private void checkpointReached(int aCheckpoint)
+	{
+		List<RunSummary> racing = new ArrayList<RunSummary>();
+		for (Run run : i_runs)
+		{
+			if (!run.i_token.isCancelled() && run.i_summary.i_statistics == null
+					&& run.i_summary.i_trajectory.size() == aCheckpoint)
+				racing.add(run.i_summary);
+		}
+
+		if (!i_listeners.isEmpty() && i_latest != null)
+		{
+			for (ProgressListener listener : i_listeners)
+				listener.generationCompleted(i_latest);
+		}
+		if (racing.size() < 2 || aCheckpoint <= i_warmupCheckpoints)
+			return;
+
+		RunSummary leader = racing.get(0);
+		double mean = 0;
+		for (RunSummary summary : racing)
+		{
+			if (summary.getLatest() > leader.getLatest())
+				leader = summary;
+			mean += summary.getLatestGain() / racing.size();
+		}
+		double variance = 0;
+		for (RunSummary summary : racing)
+			variance += Math.pow(summary.getLatestGain() - mean, 2) / (racing.size() - 1);
+		double spread = i_confidence * Math.sqrt(variance);
+
+		for (Run run : i_runs)
+		{
+			RunSummary summary = run.i_summary;
+			if (summary == leader || !racing.contains(summary))
+				continue;
+			double reach = summary.getLatest() + i_horizon * (Math.max(summary.getLatestGain(), 0) + spread);
+			if (reach < leader.getLatest())
+			{
+				summary.i_stoppedAtRound = aCheckpoint * i_checkpointRounds;
+				run.i_token.cancel();
+				logger.info("Stopping run " + summary.getIndex() + " at round " + summary.i_stoppedAtRound
+						+ ": best " + summary.getLatest() + " can reach " + reach
+						+ ", leader " + leader.getLatest());
+			}
+		}
+	}
+
+	/**
+	   Self-check: runs queued behind others on too few threads share
+	   one deadline, so the ensemble should end when its limit is up,
+	   and each run's own evaluation count should add up to the total.
+	 */
+	public static void main(String[] args)
+	{
+		Properties p = getDefaultProperties();
+		p.put("maxRounds", "1000000");
+		p.put("unchangedRoundsNeeded", "1000000");
+		p.put("ensembleRuns", "4");
+		p.put("ensembleThreads", "2");
+		EnsembleAligner aligner = new EnsembleAligner(p);
+		long before = InfoCenter.getCenter().getEvaluationCount();
+		boolean ok = TestCases.checkTimeLimit(aligner, 3000);
+		long total = InfoCenter.getCenter().getEvaluationCount() - before;
+
+		long sum = 0;
+		for (RunSummary summary : aligner.getRunSummaries())
+			sum += summary.getStatistics().getEvaluations();
+		System.out.println("Runs counted " + sum + " of " + total + " evaluations"
+				+ (sum == total ? " OK" : " FAILED"));
+		if (!ok || sum != total)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,133 @@
+package gamsa;
+
+import gamsa.population.Alignment;
+
+/**
+   The state of a search at the end of a round, as numbers.  The best
+   alignment is shared with the search, so it should not be changed.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class GenerationSnapshot
+{
+	private int i_round;
+	private Alignment i_best;
+	private double i_bestFitness;
+	private double i_bestEverFitness;
+	private double i_diversity;
+	private long i_evaluations;
+	private long i_elapsedMillis;
+	private String[] i_crossoverNames;
+	private double[] i_crossoverProbabilities;
+	private String[] i_mutationNames;
+	private double[] i_mutationProbabilities;
+
+	/**
+	   Constructor.  The operator names and probabilities are in the same order.
+	 */
+	public GenerationSnapshot(int aRound, Alignment aBest, double aBestEverFitness, double aDiversity,
+			long anEvaluations, long anElapsedMillis,
+			String[] crossoverNames, double[] crossoverProbabilities,
+			String[] mutationNames, double[] mutationProbabilities)
+	{
+		i_round = aRound;
+		i_best = aBest;
+		i_bestFitness = aBest.getFitness();
+		i_bestEverFitness = aBestEverFitness;
+		i_diversity = aDiversity;
+		i_evaluations = anEvaluations;
+		i_elapsedMillis = anElapsedMillis;
+		i_crossoverNames = crossoverNames;
+		i_crossoverProbabilities = crossoverProbabilities;
+		i_mutationNames = mutationNames;
+		i_mutationProbabilities = mutationProbabilities;
+	}
+
+	/**
+	   Returns the number of rounds finished so far.
+	 */
+	public int getRound()
+	{
+		return i_round;
+	}
+
+	/**
+	   Returns the best alignment in the population.
+	 */
+	public Alignment getBest()
+	{
+		return i_best;
+	}
+
+	/**
+	   Returns the fitness of the best alignment in the population.
+	 */
+	public double getBestFitness()
+	{
+		return i_bestFitness;
+	}
+
+	/**
+	   Returns the best fitness seen so far in the search.
+	 */
+	public double getBestEverFitness()
+	{
+		return i_bestEverFitness;
+	}
+
+	/**
+	   Returns the diversity of the population (see RunStatistics).
+	 */
+	public double getDiversity()
+	{
+		return i_diversity;
+	}
+
+	/**
+	   Returns the number of alignments scored in full so far.
+	 */
+	public long getEvaluations()
+	{
+		return i_evaluations;
+	}
+
+	/**
+	   Returns the time since the search started, in milliseconds.
+	 */
+	public long getElapsedMillis()
+	{
+		return i_elapsedMillis;
+	}
+
+	/**
+	   Returns the names of the crossover operators.
+	 */
+	public String[] getCrossoverNames()
+	{
+		return i_crossoverNames;
+	}
+
+	/**
+	   Returns the chance of choosing each crossover operator.
+	 */
+	public double[] getCrossoverProbabilities()
+	{
+		return i_crossoverProbabilities;
+	}
+
+	/**
+	   Returns the names of the mutation operators.
+	 */
+	public String[] getMutationNames()
+	{
+		return i_mutationNames;
+	}
+
+	/**
+	   Returns the chance of choosing each mutation operator.
+	 */
+	public double[] getMutationProbabilities()
+	{
+		return i_mutationProbabilities;
+	}
+}
@@ -0,0 +1,298 @@
+package gamsa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import gamsa.population.Alignment;
+import gamsa.population.Individual;
+import gamsa.population.Sequence;
+import gamsa.profile.GuideTree;
+import gamsa.profile.Profile;
+import gamsa.profile.ProfileAligner;
+
+/**
+   Adds new sequences to an alignment that has already been found,
+   rather than aligning the whole family again.  Each new sequence is
+   placed by aligning it against the profile of the rows so far, as in
+   the merge of a progressive alignment: the existing rows keep their
+   residues in the same columns, and only gain the columns of gaps
+   that the new sequence needs.  The result may be given a short run
+   of the genetic algorithm, starting from it.
+
+   Placing a sequence takes time in proportion to its length times
+   the alignment's, so the cost grows with the number of new sequences
+   rather than with the size of the family.  Only the counts of each
+   column are kept while placing, along with the columns each new
+   sequence adds, and the rows are built once at the end.  The genetic algorithm, if
+   it runs, scores every pair of rows like any other run.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class IncrementalAligner
+{
+	private static Logger logger = Logger.getLogger(IncrementalAligner.class.getName());
+
+	private Properties i_properties;
+	private int i_rounds;
+	private long i_timeLimitMillis;
+
+	private List<ProgressListener> i_listeners = new ArrayList<ProgressListener>();
+	private RunStatistics i_statistics = new RunStatistics();
+
+	/**
+	   Constructor.  Default arguments will be used.
+	 */
+	public IncrementalAligner()
+	{
+		this(getDefaultProperties());
+	}
+
+	/**
+	   Specifies default properties, in case there is no config.  These
+	   are MultiSeqAligner's, with the length of the final run added.
+	 */
+	protected static Properties getDefaultProperties()
+	{
+		Properties p = MultiSeqAligner.getDefaultProperties();
+
+		//0 leaves the new sequences where the profile put them.
+		p.put("incrementalRounds", "0");
+
+		return p;
+	}
+
+	/**
+	   Constructor.  Properties will override default values, and are
+	   passed on to the final run.
+	 */
+	public IncrementalAligner(Properties p)
+	{
+		i_properties = p;
+		i_rounds = Integer.parseInt(p.getProperty("incrementalRounds", "0"));
+		i_timeLimitMillis = Long.parseLong(p.getProperty("timeLimitMillis", "0"));
+		MultiSeqAligner.loadScorer(p.getProperty("seqScorer"));
+	}
+
+	/**
+	   Returns the statistics for the last run.  The fitness is only
+	   worked out if the genetic algorithm ran, as it means scoring
+	   every pair of rows; otherwise it is NaN.
+	 */
+	public RunStatistics getStatistics()
+	{
+		return i_statistics;
+	}
+
+	/**
+	   Sets the longest the final run may take, in milliseconds.  0
+	   means there is no limit.
+	 */
+	public void setTimeLimit(long aMillis)
+	{
+		i_timeLimitMillis = aMillis;
+	}
+
+	/**
+	   Adds a listener to be told about every round of the final run.
+	 */
+	public void addProgressListener(ProgressListener aListener)
+	{
+		i_listeners.add(aListener);
+	}
+
+	/**
+	   Removes a listener.
+	 */
+	public void removeProgressListener(ProgressListener aListener)
+	{
+		i_listeners.remove(aListener);
+	}
+
+	/**
+	   Returns the alignment with the new sequences added.
+	 */
+	public Individual addSequences(Alignment anAlignment, String[] newSequences)
+	{
+		return addSequences(anAlignment, newSequences, null);
+	}
+
+	/**
+	   Returns the alignment with the new sequences added, as rows
+	   after the existing ones and in the order given.  Gaps already in
+	   the new sequences are dropped.  With no new sequences (or null),
+	   the alignment is returned as it is.  The token (which may be null)
+	   is passed on to the final run.
+	 */
+	public Individual addSequences(Alignment anAlignment, String[] newSequences, CancellationToken aToken)
+	{
+		i_statistics = new RunStatistics();
+		i_statistics.start();
+		if (newSequences == null || newSequences.length == 0)
+		{
+			i_statistics.finish(0, Double.NaN);
+			return anAlignment;
+		}
+
+		int existing = anAlignment.getSize();
+		int count = existing + newSequences.length;
+		String[] rows = new String[existing];
+		String[] residues = new String[count];
+		for (int i=0; i<existing; i++)
+		{
+			rows[i] = anAlignment.getSequenceAt(i).toString();
+			residues[i] = rows[i].replace("-", "");
+		}
+		for (int k=0; k<newSequences.length; k++)
+			residues[existing + k] = newSequences[k].replace("-", "");
+
+		//Each new sequence is placed against the counts of all of the rows
+		// before it.  moved[k] gives the column each column had before the
+		// k-th sequence was placed takes after it.
+		ProfileAligner profiles = new ProfileAligner(InfoCenter.getCenter().getScorer(), residues);
+		int symbols = profiles.getSymbolCount();
+		float[][] counts = new float[0][];
+		if (existing > 0)
+		{
+			int[] members = new int[existing];
+			for (int i=0; i<existing; i++)
+				members[i] = i;
+			Profile profile = profiles.getProfile(members, rows);
+			counts = new float[profile.getLength()][];
+			for (int col=0; col<counts.length; col++)
+				counts[col] = profile.getCounts(col).clone();
+		}
+		int[][] moved = new int[newSequences.length][];
+		char[][] newRows = new char[newSequences.length][];
+		for (int k=0; k<newSequences.length; k++)
+		{
+			Profile added = profiles.getProfile(existing + k, residues[existing + k]);
+			int[][] columns;
+			if (existing + k == 0)
+			{
+				columns = new int[2][added.getLength()];
+				for (int col=0; col<added.getLength(); col++)
+				{
+					columns[0][col] = -1;
+					columns[1][col] = col;
+				}
+			}
+			else
+				columns = profiles.alignColumns(counts, existing + k, added);
+
+			moved[k] = new int[counts.length];
+			newRows[k] = new char[columns[0].length];
+			float[][] placedCounts = new float[columns[0].length][];
+			for (int col=0; col<placedCounts.length; col++)
+			{
+				int from = columns[0][col];
+				int residue = columns[1][col];
+				if (from >= 0)
+					moved[k][from] = col;
+				placedCounts[col] = from >= 0 ? counts[from] : new float[symbols];
+				newRows[k][col] = residue >= 0 ? residues[existing + k].charAt(residue) : '-';
+				if (residue >= 0)
+					placedCounts[col][added.getRow(0)[residue]]++;
+			}
+			counts = placedCounts;
+		}
+
+		//Follow every column through the later placements to where it ends up.
+		String[] placedRows = new String[count];
+		int[] finalColumn = new int[counts.length];
+		for (int col=0; col<finalColumn.length; col++)
+			finalColumn[col] = col;
+		for (int k=newSequences.length-1; k>=0; k--)
+		{
+			placedRows[existing + k] = spread(newRows[k], finalColumn, counts.length);
+			int[] earlier = new int[moved[k].length];
+			for (int col=0; col<earlier.length; col++)
+				earlier[col] = finalColumn[moved[k][col]];
+			finalColumn = earlier;
+		}
+		for (int i=0; i<existing; i++)
+			placedRows[i] = spread(rows[i].toCharArray(), finalColumn, counts.length);
+		Alignment placed = new Alignment();
+		for (String row : placedRows)
+			placed.addSequence(new Sequence(row));
+		logger.info("Placed " + newSequences.length + " new sequences in an alignment of "
+				+ existing + "; " + placed.getSequenceLength() + " columns.");
+
+		if (i_rounds <= 0 || aToken != null && aToken.isCancelled())
+		{
+			i_statistics.finish(0, Double.NaN);
+			return placed;
+		}
+
+		Properties refineProperties = new Properties();
+		refineProperties.putAll(i_properties);
+		refineProperties.put("maxRounds", Integer.toString(i_rounds));
+		refineProperties.put("progressiveSeeding", "false");
+		MultiSeqAligner refiner = new MultiSeqAligner(refineProperties);
+		refiner.setTimeLimit(i_timeLimitMillis);
+		for (ProgressListener listener : i_listeners)
+			refiner.addProgressListener(listener);
+		Alignment best = (Alignment) refiner.findSolution(residues, new Alignment[] {placed}, aToken);
+		i_statistics.finish(refiner.getNumberOfRoundsExecuted(), best.getFitness());
+		logger.info("Refined placed alignment; fitness " + best.getFitness());
+		return best;
+	}
+
+	/**
+	   Returns the row with each column moved to the given one, and gaps
+	   in the rest of the given length.
+	 */
+	private static String spread(char[] aRow, int[] columns, int aLength)
+	{
+		char[] row = new char[aLength];
+		Arrays.fill(row, '-');
+		for (int col=0; col<aRow.length; col++)
+			row[columns[col]] = aRow[col];
+		return new String(row);
+	}
+
+	/**
+	   Self-check: four growth hormone sequences are aligned along a
+	   guide tree and the other six added.  Leaving out the columns that
+	   are gaps in all of the first four should give back their rows as
+	   they were, and each new row should hold its input's residues.
+	 */
+	public static void main(String[] args)
+	{
+		IncrementalAligner aligner = new IncrementalAligner();
+		String[] inputs = new TestCases().getAAGrowthHormoneSequences();
+		String[] first = Arrays.copyOf(inputs, 4);
+		ProfileAligner profiles = new ProfileAligner(InfoCenter.getCenter().getScorer(), first);
+		String[] rows = profiles.align(first, new GuideTree(GuideTree.getWordDistances(first, 3)));
+		Alignment start = new Alignment();
+		for (String row : rows)
+			start.addSequence(new Sequence(row));
+		Alignment result = (Alignment) aligner.addSequences(start, Arrays.copyOfRange(inputs, 4, inputs.length));
+
+		StringBuilder[] kept = new StringBuilder[rows.length];
+		for (int i=0; i<kept.length; i++)
+			kept[i] = new StringBuilder();
+		for (int col=0; col<result.getSequenceLength(); col++)
+		{
+			boolean gaps = true;
+			for (int i=0; i<rows.length; i++)
+				gaps &= result.getSequenceAt(i).getElementAt(col) == '-';
+			for (int i=0; !gaps && i<rows.length; i++)
+				kept[i].append(result.getSequenceAt(i).getElementAt(col));
+		}
+		boolean ok = result.getSize() == inputs.length;
+		for (int i=0; ok && i<inputs.length; i++)
+		{
+			if (i < rows.length)
+				ok = kept[i].toString().equals(rows[i]);
+			else
+				ok = result.getSequenceAt(i).toString().replace("-", "").equals(inputs[i].replace("-", ""));
+		}
+		System.out.println("Added " + (inputs.length - rows.length) + " sequences to " + rows.length
+				+ ": " + rows[0].length() + " columns to " + result.getSequenceLength() + (ok ? " OK" : " FAILED"));
+		if (!ok)
+			System.exit(1);
+	}
+}
@@ -1,8 +1,13 @@
 package gamsa;
 
+import gamsa.metrics.Counter;
+import gamsa.metrics.MetricsRegistry;
+import gamsa.population.FitnessCache;
 import gamsa.scorer.Scorer;
 
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
    Singleton class.  This includes various utility methods (like a
@@ -16,8 +21,37 @@ public class InfoCenter
 	protected static InfoCenter c_infoCenter = new InfoCenter();
 	
 	private Random i_rand;
+	
+	//Generators for threads that were given their own seed, so that
+	// runs on different threads can each be repeated.
+	private ThreadLocal<Random> i_threadRand = new ThreadLocal<Random>();
 	private Scorer i_scorer;
 	
+	//Pool for work that is split across threads, such as scoring long pairs.
+	private ForkJoinPool i_pool;
+	
+	//Pairs at least this long are scored in parallel chunks; 0 turns this off.
+	private int i_parallelScoringThreshold;
+	
+	//Fitness of recently scored alignments.  Null if not in use.
+	private FitnessCache i_fitnessCache;
+	
+	//Number of alignments that have been scored with the scorer.
+	private AtomicLong i_evaluations = new AtomicLong();
+	
+	//Number of alignments whose scoring was abandoned at a cutoff.
+	private AtomicLong i_rejections = new AtomicLong();
+	
+	//The same two counts for each thread, for runs that share the
+	// InfoCenter with others going on at the same time.
+	private ThreadLocal<long[]> i_threadCounts = ThreadLocal.withInitial(() -> new long[2]);
+	
+	//The same counts, as metrics.
+	private Counter i_evaluationCounter = MetricsRegistry.getRegistry().counter(
+			"gamsa_evaluations_total", "Alignments scored in full");
+	private Counter i_rejectionCounter = MetricsRegistry.getRegistry().counter(
+			"gamsa_rejections_total", "Alignments whose scoring stopped at a cutoff");
+	
 	/**
 	   Gets the instance of this class.
 	 */
@@ -33,6 +67,9 @@ public class InfoCenter
 	{
 		// Seeding random number generator.
 		i_rand = new Random(System.currentTimeMillis());
+		
+		i_pool = ForkJoinPool.commonPool();
+		i_parallelScoringThreshold = 4096;
 	}
 	
 	/**
@@ -41,7 +78,34 @@ public class InfoCenter
 	 */
 	public int getRandomInt(int aRangeEnd)
 	{
-		return i_rand.nextInt(aRangeEnd);
+		return getRandom().nextInt(aRangeEnd);
+	}
+	
+	/**
+	   Returns the random number generator for the calling thread: its
+	   own if it was given a seed, or else the shared one.
+	 */
+	public Random getRandom()
+	{
+		Random rand = i_threadRand.get();
+		return rand != null ? rand : i_rand;
+	}
+	
+	/**
+	   Gives the calling thread its own random number generator, with
+	   the specified seed.
+	 */
+	public void setSeed(long aSeed)
+	{
+		i_threadRand.set(new Random(aSeed));
+	}
+	
+	/**
+	   Returns the calling thread to the shared random number generator.
+	 */
+	public void clearSeed()
+	{
+		i_threadRand.remove();
 	}
 
 	/**
@@ -58,5 +122,113 @@ public class InfoCenter
 	public void setScorer(Scorer scorer)
 	{
 		i_scorer = scorer;
+		
+		//Fitness values from the old scorer no longer apply.
+		if (i_fitnessCache != null)
+			i_fitnessCache.clear();
+	}
+	
+	/**
+	   Returns the cache of alignment fitness values, or null if
+	   there is none.
+	 */
+	public FitnessCache getFitnessCache()
+	{
+		return i_fitnessCache;
+	}
+	
+	/**
+	   Sets the cache of alignment fitness values.  Null turns
+	   caching off.
+	 */
+	public void setFitnessCache(FitnessCache aCache)
+	{
+		i_fitnessCache = aCache;
+	}
+	
+	/**
+	   Records that an alignment has been scored.
+	 */
+	public void recordEvaluation()
+	{
+		i_evaluations.incrementAndGet();
+		i_threadCounts.get()[0]++;
+		i_evaluationCounter.increment();
+	}
+	
+	/**
+	   Returns the number of alignments that have been scored so far.
+	 */
+	public long getEvaluationCount()
+	{
+		return i_evaluations.get();
+	}
+	
+	/**
+	   Records that scoring an alignment was abandoned at a cutoff.
+	 */
+	public void recordRejection()
+	{
+		i_rejections.incrementAndGet();
+		i_threadCounts.get()[1]++;
+		i_rejectionCounter.increment();
+	}
+	
+	/**
+	   Returns the number of alignments rejected at a cutoff so far.
+	 */
+	public long getRejectionCount()
+	{
+		return i_rejections.get();
+	}
+	
+	/**
+	   Returns the number of alignments scored so far on this thread.
+	 */
+	public long getThreadEvaluationCount()
+	{
+		return i_threadCounts.get()[0];
+	}
+	
+	/**
+	   Returns the number of alignments rejected so far on this thread.
+	 */
+	public long getThreadRejectionCount()
+	{
+		return i_threadCounts.get()[1];
+	}
+
+	/**
+	   Returns the pool used for parallel work.
+	 */
+	public ForkJoinPool getPool()
+	{
+		return i_pool;
+	}
+	
+	/**
+	   Sets the pool used for parallel work.
+	 */
+	public void setPool(ForkJoinPool aPool)
+	{
+		i_pool = aPool;
+	}
+	
+	/**
+	   Returns the alignment length at which a single pair of
+	   sequences is scored in parallel.  0 means never.
+	 */
+	public int getParallelScoringThreshold()
+	{
+		return i_parallelScoringThreshold;
+	}
+	
+	/**
+	   Sets the alignment length at which a single pair of
+	   sequences is scored in parallel.  0 means never.
+	 */
+	public void setParallelScoringThreshold(int aThreshold)
+	{
+		i_parallelScoringThreshold = aThreshold;
 	}
 }
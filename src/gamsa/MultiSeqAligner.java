@@ -1,45 +1,112 @@
 package gamsa;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import gamsa.operator.BlockShuffleMutation;
+import gamsa.event.GenerationEvent;
+import gamsa.event.OperatorEvent;
+import gamsa.metrics.Counter;
+import gamsa.metrics.Histogram;
+import gamsa.metrics.MetricsRegistry;
+import gamsa.metrics.PrometheusServer;
 import gamsa.operator.Crossover;
-import gamsa.operator.GapColumnDeletionMutation;
-import gamsa.operator.GapDeletionMutation;
-import gamsa.operator.GapInsertionMutation;
 import gamsa.operator.Mutation;
-import gamsa.operator.NoopCrossover;
-import gamsa.operator.NoopMutation;
-import gamsa.operator.OnePointCrossoverGapsBeginning;
-import gamsa.operator.OnePointCrossoverGapsEnd;
-import gamsa.operator.OnePointCrossoverGapsMiddle;
 import gamsa.operator.Operator;
+import gamsa.operator.OperatorProfile;
+import gamsa.operator.OperatorSelector;
 import gamsa.population.Alignment;
+import gamsa.population.FitnessCache;
 import gamsa.population.Individual;
 import gamsa.population.Population;
+import gamsa.population.RowWeights;
+import gamsa.population.Sequence;
+import gamsa.population.TieredEvaluator;
+import gamsa.profile.GuideTree;
+import gamsa.profile.ProfileAligner;
 import gamsa.scorer.Scorer;
+import gamsa.scorer.SumOfPairsBound;
 
 /**
    Basic engine to run the genetic algorithm.
    
    @author Tom Austin and Amie Radenbaugh
  */
-public class MultiSeqAligner
+public class MultiSeqAligner implements Aligner
 {
 	private static final Level LOG_LEVEL = Level.INFO;	
 	private static final boolean DEBUG = false;	
 	
 	private static Logger logger = Logger.getLogger(MultiSeqAligner.class.getName());
 	
+	//Most log records waiting to be written when logging in the background.
+	private static final int LOG_QUEUE_SIZE = 10000;
+	
+	//Log records dropped by the background writers, as last reported.
+	private static long c_reportedDrops = 0;
+	
 	private Population<Crossover> i_crossoverOps;
 	private Population<Mutation> i_mutationOps;
 	
 	//Used if crossovers and mutations are lumped together.
 	private Population<Operator> i_operators;
 	
+	//Choose the operators to apply.  Only the ones in use are set.
+	private OperatorSelector<Crossover> i_crossoverSelector;
+	private OperatorSelector<Mutation> i_mutationSelector;
+	private OperatorSelector<Operator> i_operatorSelector;
+	
+	//Draw each generation's operators up front and apply them grouped
+	// by operator, instead of drawing one before each application.
+	private boolean i_batchedOperators;
+	
+	//Where operator statistics are saved between runs, or null.
+	private OperatorProfile i_operatorProfile;
+	
+	//Start from progressive alignments instead of random gaps, and how many.
+	private boolean i_progressiveSeeding;
+	private int i_seedCount;
+	
+	//Finish with a local search on the best alignment, and its limits.
+	private boolean i_polish;
+	private int i_polishWindow;
+	private int i_polishMaxMoves;
+	
+	//Search repeated input sequences as one weighted row each, and the
+	// weights of the run in progress.
+	private boolean i_collapseDuplicates;
+	private RowWeights i_rowWeights;
+	
+	//Align two or three sequences by dynamic programming instead of
+	// searching, if the table would have no more than this many cells.
+	private boolean i_exactSmallInputs;
+	private long i_exactMaxCells;
+	
+	//A low guess at how fast the dynamic programming fills its table, so
+	// that a run with a time limit does not start a table it cannot finish.
+	private static final long EXACT_CELLS_PER_MILLI = 2000;
+	
+	//Operators used unless the properties say otherwise.
+	private static final String DEFAULT_CROSSOVERS = "NoopCrossover, OnePointCrossoverGapsBeginning, "
+			+ "OnePointCrossoverGapsMiddle, OnePointCrossoverGapsEnd";
+	private static final String DEFAULT_MUTATIONS = "NoopMutation, BlockShuffleMutation, "
+			+ "GapInsertionMutation, GapDeletionMutation, GapColumnDeletionMutation, RealignmentMutation";
+	
 	//Settings for how sequences are processed.
 	private boolean i_mergeOperators;
 	private int i_populationSize;
@@ -47,10 +114,69 @@ public class MultiSeqAligner
 	private int i_unchangedRoundsNeeded;
 	
 	//Variables to check for termination condition
-	private long i_bestLastRound;
-	private int i_numTimesUnchanged;
 	private int i_maxRounds;
-	private int i_numRounds;
+	private TerminationCriterion i_termination;
+	
+	//Compute an upper bound on the fitness for each set of inputs.
+	private boolean i_computeUpperBound;
+	
+	//Longest a search may run, in milliseconds.  0 means no limit.
+	private long i_timeLimitMillis;
+	
+	//Told about every round.
+	private List<ProgressListener> i_listeners = new ArrayList<ProgressListener>();
+	
+	//Whether the metrics are served at all, and how many rounds apart
+	// the costly gauges are brought up to date.
+	private boolean i_exportMetrics;
+	private int i_metricsSampleRounds;
+	
+	//Metrics updated once a round.
+	private static MetricsRegistry c_metrics = MetricsRegistry.getRegistry();
+	private static Counter c_generationCounter = c_metrics.counter(
+			"gamsa_generations_total", "Rounds of the genetic algorithm");
+	private static Histogram c_generationSeconds = c_metrics.histogram(
+			"gamsa_generation_seconds", "Time taken by each round",
+			new double[] {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10});
+	private static Histogram c_generationBytes = c_metrics.histogram(
+			"gamsa_generation_allocated_bytes", "Memory allocated by the searching thread in each round",
+			new double[] {1e5, 1e6, 1e7, 1e8, 1e9});
+	
+	//Statistics for the last run, and whether they count only the work
+	// done on the searching thread.
+	private RunStatistics i_statistics = new RunStatistics();
+	private boolean i_threadStatistics = false;
+	
+	//How offspring that repeat other alignments are handled.
+	public static final String DUPLICATES_KEEP = "keep";
+	public static final String DUPLICATES_REPLACE = "replace";
+	public static final String DUPLICATES_TABU = "tabu";
+	private String i_duplicateHandling;
+	
+	//Fingerprints of recent generations, oldest first.  Only used for tabu.
+	private Set<Long> i_tabuList = new LinkedHashSet<Long>();
+	private int i_tabuSize;
+	
+	//Number of pairs of alignments sampled to measure diversity.
+	private int i_diversitySamples;
+	
+	//Number of tries to mutate a duplicate into something new.
+	private static final int DUPLICATE_TRIES = 5;
+	
+	//Settings for screening offspring with an estimated fitness.
+	private boolean i_tieredEvaluation;
+	private double i_surrogatePairFraction;
+	private double i_tieredQuantile;
+	private double i_tieredMargin;
+	private double i_tieredAuditRate;
+	
+	//Null unless tiered evaluation is on.
+	private TieredEvaluator i_evaluator;
+	
+	//Settings for abandoning the scoring of offspring that cannot reach the cutoff.
+	private boolean i_earlyAbort;
+	private double i_earlyAbortQuantile;
+	private double i_cutoff;
 	
 	/**
 	   Constructor.  Default arguments will be used.
@@ -74,6 +200,42 @@ public class MultiSeqAligner
 		p.put("populationSize", "50");
 		p.put("unchangedRoundsNeeded", "50");
 		p.put("maxRounds", "200");
+		p.put("fitnessCacheSize", "10000");
+		p.put("duplicates", DUPLICATES_KEEP);
+		p.put("tabuSize", "500");
+		p.put("diversitySamples", "20");
+		p.put("tieredEvaluation", "false");
+		p.put("surrogatePairFraction", "0.25");
+		p.put("tieredQuantile", "0.5");
+		p.put("tieredMargin", "2.0");
+		p.put("tieredAuditRate", "0.05");
+		p.put("earlyAbort", "false");
+		p.put("earlyAbortQuantile", "0.5");
+		p.put("upperBound", "false");
+		p.put("boundRatio", "0");
+		p.put("plateauWindow", "30");
+		p.put("plateauMinSlope", "0");
+		p.put("timeLimitMillis", "0");
+		p.put("asyncLogging", "false");
+		p.put("jmxMetrics", "false");
+		p.put("metricsSampleRounds", "10");
+		p.put("metricsPort", "0");
+		p.put("crossoverOps", DEFAULT_CROSSOVERS);
+		p.put("mutationOps", DEFAULT_MUTATIONS);
+		p.put("operatorSelection", OperatorSelector.WHEEL);
+		p.put("operatorDecay", "0.1");
+		p.put("ucbExploration", "0.5");
+		p.put("minOperatorProbability", "0.05");
+		p.put("operatorProfileDir", "");
+		p.put("batchedOperators", "false");
+		p.put("progressiveSeeding", "false");
+		p.put("seedCount", "3");
+		p.put("polish", "false");
+		p.put("polishWindow", "4");
+		p.put("polishMaxMoves", "1000");
+		p.put("collapseDuplicates", "false");
+		p.put("exactSmallInputs", "true");
+		p.put("exactMaxCells", "4000000");
 		
 		return p;
 	}
@@ -84,7 +246,24 @@ public class MultiSeqAligner
 	 */
 	protected int getNumberOfRoundsExecuted()
 	{
-		return i_numRounds;
+		return i_termination.getRounds();
+	}
+	
+	/**
+	 * Returns the statistics for the last run.
+	 */
+	public RunStatistics getStatistics()
+	{
+		return i_statistics;
+	}
+	
+	/**
+	   Sets whether the statistics count only the evaluations made on the
+	   thread doing the search, for runs going on alongside others.
+	 */
+	void setThreadStatistics(boolean aThreadOnly)
+	{
+		i_threadStatistics = aThreadOnly;
 	}
 	
 	/**
@@ -99,21 +278,32 @@ public class MultiSeqAligner
 		}
 		logger.setLevel(LOG_LEVEL);
 		
-		//Specify sequence scorer to be used.
-		String seqScorerClassName = p.getProperty("seqScorer");
-		try
-		{
-			Class c = Class.forName(seqScorerClassName);
-			Scorer scorer = (Scorer) c.newInstance();
-			InfoCenter.getCenter().setScorer(scorer);
-		}
-		catch (Exception e)
+		//Write log records on a background thread, so the search never waits on them.
+		if (Boolean.parseBoolean(p.getProperty("asyncLogging", "false")))
+			installAsyncLogging();
+		
+		//Make the metrics available over JMX and, if a port is given, over HTTP.
+		boolean jmxMetrics = Boolean.parseBoolean(p.getProperty("jmxMetrics", "false"));
+		if (jmxMetrics)
+			c_metrics.registerMBean();
+		int metricsPort = Integer.parseInt(p.getProperty("metricsPort", "0"));
+		i_exportMetrics = jmxMetrics || metricsPort > 0;
+		i_metricsSampleRounds = Math.max(Integer.parseInt(p.getProperty("metricsSampleRounds", "10")), 1);
+		if (metricsPort > 0)
 		{
-			e.printStackTrace();
-			logger.severe("Error loading class '" + seqScorerClassName + "'.  Exiting.");
-			System.exit(1);
+			try
+			{
+				PrometheusServer.start(metricsPort);
+			}
+			catch (IOException e)
+			{
+				logger.warning("Could not serve metrics on port " + metricsPort + ": " + e);
+			}
 		}
 		
+		//Specify sequence scorer to be used.
+		loadScorer(p.getProperty("seqScorer"));
+		
 		//Specify the size of the population and the number of rounds with no change in score
 		i_populationSize = Integer.parseInt(p.getProperty("populationSize"));
 		i_unchangedRoundsNeeded = Integer.parseInt(p.getProperty("unchangedRoundsNeeded"));
@@ -122,57 +312,417 @@ public class MultiSeqAligner
 		i_maxRounds = -999;
 		if (p.containsKey("maxRounds"))
 			i_maxRounds = Integer.parseInt(p.getProperty("maxRounds"));
+		i_termination = new TerminationCriterion(i_maxRounds, i_unchangedRoundsNeeded);
+		
+		//Optionally stop once the best fitness is near the upper bound on
+		// the fitness, or has stopped climbing.  0 turns either one off.
+		double boundRatio = Double.parseDouble(p.getProperty("boundRatio", "0"));
+		i_termination.setBoundRatio(boundRatio);
+		i_termination.setPlateau(Integer.parseInt(p.getProperty("plateauWindow", "30")),
+				Double.parseDouble(p.getProperty("plateauMinSlope", "0")));
+		i_computeUpperBound = boundRatio > 0 || Boolean.parseBoolean(p.getProperty("upperBound", "false"));
+		
+		//Searches past the time limit return the best alignment found so far.
+		i_timeLimitMillis = Long.parseLong(p.getProperty("timeLimitMillis", "0"));
 		
 		//Specify the amount of spacing that should be in the alignments.
 		i_percentageIncrease = Double.parseDouble(p.getProperty("percentageIncrease"));
 		
+		//Remember the fitness of recently scored alignments.  0 turns this off.
+		int cacheSize = 0;
+		if (p.containsKey("fitnessCacheSize"))
+			cacheSize = Integer.parseInt(p.getProperty("fitnessCacheSize"));
+		InfoCenter.getCenter().setFitnessCache(cacheSize > 0 ? new FitnessCache(cacheSize) : null);
+		
+		//Duplicate handling: keep, replace (within a generation) or tabu (recent generations too).
+		i_duplicateHandling = p.getProperty("duplicates", DUPLICATES_KEEP);
+		if (!DUPLICATES_KEEP.equalsIgnoreCase(i_duplicateHandling)
+				&& !DUPLICATES_REPLACE.equalsIgnoreCase(i_duplicateHandling)
+				&& !DUPLICATES_TABU.equalsIgnoreCase(i_duplicateHandling))
+			throw new IllegalArgumentException("Unknown duplicates mode: " + i_duplicateHandling);
+		i_tabuSize = Integer.parseInt(p.getProperty("tabuSize", "500"));
+		i_diversitySamples = Integer.parseInt(p.getProperty("diversitySamples", "20"));
+		
+		//Offspring can be screened with an estimate from a sample of the
+		// pairs of rows, and only promising ones scored in full.
+		i_tieredEvaluation = Boolean.parseBoolean(p.getProperty("tieredEvaluation", "false"));
+		i_surrogatePairFraction = Double.parseDouble(p.getProperty("surrogatePairFraction", "0.25"));
+		i_tieredQuantile = Double.parseDouble(p.getProperty("tieredQuantile", "0.5"));
+		i_tieredMargin = Double.parseDouble(p.getProperty("tieredMargin", "2.0"));
+		i_tieredAuditRate = Double.parseDouble(p.getProperty("tieredAuditRate", "0.05"));
+		
+		//Scoring of offspring can stop once they cannot reach the given
+		// quantile of their parents' fitness.
+		i_earlyAbort = Boolean.parseBoolean(p.getProperty("earlyAbort", "false"));
+		i_earlyAbortQuantile = Double.parseDouble(p.getProperty("earlyAbortQuantile", "0.5"));
+		//Children scored exactly by the tiered evaluator measure the error
+		// of its estimate, so their scoring cannot be cut short.
+		if (i_earlyAbort && i_tieredEvaluation)
+			logger.warning("earlyAbort has no effect when tieredEvaluation is on.");
+		
 		//Determine if crossovers and mutations should be handled in separate steps.
 		i_mergeOperators = Boolean.parseBoolean(p.getProperty("mergeOps"));
 		
-		//Load operators...Nice to specify these from a config too.
-		i_crossoverOps = new Population<Crossover>();
-		i_crossoverOps.addIndividual(new NoopCrossover());
-		i_crossoverOps.addIndividual(new OnePointCrossoverGapsBeginning());
-		i_crossoverOps.addIndividual(new OnePointCrossoverGapsMiddle());
-		i_crossoverOps.addIndividual(new OnePointCrossoverGapsEnd());
-		
-		i_mutationOps = new Population<Mutation>();
-		i_mutationOps.addIndividual(new NoopMutation());
-		i_mutationOps.addIndividual(new BlockShuffleMutation());
-		i_mutationOps.addIndividual(new GapInsertionMutation());
-		i_mutationOps.addIndividual(new GapDeletionMutation());
-		i_mutationOps.addIndividual(new GapColumnDeletionMutation());		
+		//Load operators.  Names without a package are taken from gamsa.operator.
+		i_crossoverOps = loadOperators(p.getProperty("crossoverOps", DEFAULT_CROSSOVERS), Crossover.class);
+		i_mutationOps = loadOperators(p.getProperty("mutationOps", DEFAULT_MUTATIONS), Mutation.class);
 		
+		//Operators are chosen by the roulette wheel (gain alone), or by
+		// probability matching or UCB on the gain per unit of time.
+		String policy = p.getProperty("operatorSelection", OperatorSelector.WHEEL);
+		double decay = Double.parseDouble(p.getProperty("operatorDecay", "0.1"));
+		double exploration = Double.parseDouble(p.getProperty("ucbExploration", "0.5"));
+		double minProbability = Double.parseDouble(p.getProperty("minOperatorProbability", "0.05"));
+		i_batchedOperators = Boolean.parseBoolean(p.getProperty("batchedOperators", "false"));
+		i_progressiveSeeding = Boolean.parseBoolean(p.getProperty("progressiveSeeding", "false"));
+		i_seedCount = Integer.parseInt(p.getProperty("seedCount", "3"));
+		i_polish = Boolean.parseBoolean(p.getProperty("polish", "false"));
+		i_polishWindow = Integer.parseInt(p.getProperty("polishWindow", "4"));
+		i_polishMaxMoves = Integer.parseInt(p.getProperty("polishMaxMoves", "1000"));
+		i_collapseDuplicates = Boolean.parseBoolean(p.getProperty("collapseDuplicates", "false"));
+		i_exactSmallInputs = Boolean.parseBoolean(p.getProperty("exactSmallInputs", "true"));
+		i_exactMaxCells = Long.parseLong(p.getProperty("exactMaxCells", "4000000"));
 		if (i_mergeOperators)
 		{
 			i_operators = new Population<Operator>();
 			i_operators.addAllIndividuals(i_crossoverOps, i_mutationOps);
+			i_operatorSelector = new OperatorSelector<Operator>(i_operators, policy, decay, exploration, minProbability);
+		}
+		else
+		{
+			i_crossoverSelector = new OperatorSelector<Crossover>(i_crossoverOps, policy, decay, exploration, minProbability);
+			i_mutationSelector = new OperatorSelector<Mutation>(i_mutationOps, policy, decay, exploration, minProbability);
+		}
+		
+		//Start the operators from what earlier runs with this scorer learned.
+		String profileDir = p.getProperty("operatorProfileDir", "");
+		if (profileDir.length() > 0)
+		{
+			i_operatorProfile = new OperatorProfile(new File(profileDir),
+					InfoCenter.getCenter().getScorer().getClass());
+			try
+			{
+				int found = i_operatorProfile.load(getSelectors());
+				logger.info("Loaded " + found + " operators from " + i_operatorProfile.getFile());
+			}
+			catch (IOException e)
+			{
+				logger.warning("Could not load operator profile " + i_operatorProfile.getFile() + ": " + e);
+			}
+		}
+	}
+	
+	/**
+	   Returns the operator selectors in use.
+	 */
+	private OperatorSelector<?>[] getSelectors()
+	{
+		if (i_mergeOperators)
+			return new OperatorSelector<?>[] {i_operatorSelector};
+		return new OperatorSelector<?>[] {i_crossoverSelector, i_mutationSelector};
+	}
+	
+	/**
+	   Makes an instance of the named scorer class the InfoCenter's scorer.
+	 */
+	static void loadScorer(String aClassName)
+	{
+		try
+		{
+			Class c = Class.forName(aClassName);
+			Scorer scorer = (Scorer) c.newInstance();
+			InfoCenter.getCenter().setScorer(scorer);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			logger.severe("Error loading class '" + aClassName + "'.  Exiting.");
+			System.exit(1);
+		}
+	}
+	
+	/**
+	   Creates the operators named in the comma separated list, each
+	   of which must be of the specified type.
+	 */
+	static <T extends Operator> Population<T> loadOperators(String aNames, Class<T> aType)
+	{
+		Population<T> ops = new Population<T>();
+		for (String name : aNames.split(","))
+		{
+			name = name.trim();
+			if (name.length() == 0)
+				continue;
+			if (name.indexOf('.') < 0)
+				name = "gamsa.operator." + name;
+			try
+			{
+				Class<?> c = Class.forName(name);
+				ops.addIndividual(aType.cast(c.getDeclaredConstructor().newInstance()));
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+				logger.severe("Error loading operator '" + name + "'.  Exiting.");
+				System.exit(1);
+			}
+		}
+		if (ops.getPopulationSize() == 0)
+		{
+			logger.severe("No " + aType.getSimpleName() + " operators were given.  Exiting.");
+			System.exit(1);
+		}
+		return ops;
+	}
+	
+	/**
+	   Sends this class's log records to the root handlers through
+	   background writers, instead of directly.  Only done once.
+	 */
+	private static synchronized void installAsyncLogging()
+	{
+		for (Handler h : logger.getHandlers())
+		{
+			if (h instanceof AsyncLogHandler)
+				return;
+		}
+		for (Handler h : Logger.getLogger("").getHandlers())
+			logger.addHandler(new AsyncLogHandler(h, LOG_QUEUE_SIZE));
+		logger.setUseParentHandlers(false);
+	}
+	
+	/**
+	   Waits for log records written in the background to be finished,
+	   and reports any that had to be dropped since the last time.
+	 */
+	private static synchronized void flushLog()
+	{
+		long dropped = 0;
+		for (Handler h : logger.getHandlers())
+		{
+			h.flush();
+			if (h instanceof AsyncLogHandler)
+				dropped += ((AsyncLogHandler) h).getDroppedCount();
 		}
+		if (dropped > c_reportedDrops)
+		{
+			c_metrics.setGauge("gamsa_log_records_dropped", "Log records dropped because the queue was full", dropped);
+			logger.warning((dropped - c_reportedDrops) + " log records were dropped because the log queue was full.");
+			c_reportedDrops = dropped;
+		}
+	}
+	
+	/**
+	   Sets the longest a search may run, in milliseconds.  When
+	   it runs out of time, the best alignment found so far is
+	   returned.  0 means there is no limit.
+	 */
+	public void setTimeLimit(long aMillis)
+	{
+		i_timeLimitMillis = aMillis;
+	}
+	
+	/**
+	   Adds a listener to be told about every round.
+	 */
+	public void addProgressListener(ProgressListener aListener)
+	{
+		i_listeners.add(aListener);
+	}
+	
+	/**
+	   Removes a listener.
+	 */
+	public void removeProgressListener(ProgressListener aListener)
+	{
+		i_listeners.remove(aListener);
 	}
 	
 	/**
 	   Returns the Optimal solution.
 	 */
 	public Individual findSolution(String[] inputSequences) 
+	{
+		return findSolution(inputSequences, null);
+	}
+	
+	/**
+	   Returns the Optimal solution, or the best alignment found so
+	   far if the token is cancelled or the time limit runs out.
+	   The token may be null.
+	 */
+	public Individual findSolution(String[] inputSequences, CancellationToken aToken)
+	{
+		//Seeds could only beat an exact alignment if the scorer's dynamic
+		// programming disagreed with its own scoring, so they are only
+		// built if there is going to be a search.
+		if (i_exactSmallInputs && inputSequences != null)
+		{
+			Alignment exact = alignExactly(inputSequences, null, aToken);
+			if (exact != null)
+				return exact;
+		}
+		
+		Alignment[] seeds = null;
+		if (i_progressiveSeeding && inputSequences != null && inputSequences.length > 1
+				&& (aToken == null || !aToken.isCancelled()))
+			seeds = this.generateSeeds(inputSequences);
+		return findSolution(inputSequences, seeds, aToken);
+	}
+	
+	/**
+	   Returns the Optimal solution, starting from a population built
+	   around the seed alignments.  Each seed must hold the input
+	   sequences, in order.  The seeds and token may be null.
+	   
+	   If collapseDuplicates is set, repeated sequences are searched as
+	   one row that counts for all of its copies, and are repeated again
+	   in the result.  The fitness is the same as for the full alignment.
+	   
+	   If exactSmallInputs is set, two or three sequences short enough
+	   for exactMaxCells are aligned by the scorer's dynamic programming
+	   instead, which gives the best alignment there is.  DNAScorer does
+	   two or three; Blosum62Scorer only does pairs, so three proteins
+	   are searched as usual.  So are sequences whose table could not be
+	   filled in the time limit, and any if the token is already
+	   cancelled.  A seed is returned instead only if it
+	   scores higher, which it cannot unless the scorer's dynamic
+	   programming disagrees with its own scoring.
+	 */
+	public Individual findSolution(String[] inputSequences, Alignment[] seeds, CancellationToken aToken)
+	{
+		if (seeds != null)
+		{
+			for (Alignment seed : seeds)
+				checkSeed(seed, inputSequences);
+		}
+		if (i_exactSmallInputs && inputSequences != null)
+		{
+			Alignment exact = alignExactly(inputSequences, seeds, aToken);
+			if (exact != null)
+				return exact;
+		}
+		
+		RowWeights weights = null;
+		if (i_collapseDuplicates && inputSequences != null)
+			weights = RowWeights.collapse(inputSequences);
+		if (weights == null || !weights.hasDuplicates() || weights.getRowCount() < 2)
+			return search(inputSequences, seeds, aToken);
+		
+		logger.info("Collapsed " + inputSequences.length + " sequences to "
+				+ weights.getRowCount() + " distinct ones.");
+		Alignment[] distinctSeeds = null;
+		if (seeds != null)
+		{
+			distinctSeeds = new Alignment[seeds.length];
+			for (int s=0; s<seeds.length; s++)
+				distinctSeeds[s] = weights.collapse(seeds[s]);
+		}
+		i_rowWeights = weights;
+		try
+		{
+			return weights.expand((Alignment) search(weights.getDistinct(inputSequences), distinctSeeds, aToken));
+		}
+		finally
+		{
+			i_rowWeights = null;
+		}
+	}
+	
+	/**
+	   Returns the best alignment of two or three sequences (or the best
+	   seed, if it scores higher), or null if there are more, the table
+	   would be too large or take too long, the token is cancelled, or
+	   the scorer cannot align them exactly.  Nothing is searched, so
+	   there are no rounds, and the fitness is its own upper bound.
+	 */
+	private Alignment alignExactly(String[] inputSequences, Alignment[] seeds, CancellationToken aToken)
+	{
+		if (inputSequences.length < 2 || inputSequences.length > 3)
+			return null;
+		if (aToken != null && aToken.isCancelled())
+			return null;
+		String[] residues = new String[inputSequences.length];
+		long cells = 1;
+		for (int i=0; i<residues.length; i++)
+		{
+			residues[i] = inputSequences[i].replace("-", "");
+			cells *= residues[i].length() + 1;
+		}
+		long maxCells = i_exactMaxCells;
+		if (i_timeLimitMillis > 0)
+			maxCells = Math.min(maxCells, i_timeLimitMillis * EXACT_CELLS_PER_MILLI);
+		if (cells > maxCells)
+			return null;
+		
+		i_termination.reset();
+		i_statistics = new RunStatistics(i_threadStatistics);
+		i_statistics.start();
+		String[] rows = InfoCenter.getCenter().getScorer().getOptimalAlignment(residues);
+		if (rows == null)
+			return null;
+		Alignment alignment = new Alignment();
+		for (String row : rows)
+			alignment.addSequence(new Sequence(row));
+		for (int s=0; seeds != null && s<seeds.length; s++)
+		{
+			if (seeds[s].getFitness() > alignment.getFitness())
+				alignment = seeds[s];
+		}
+		i_statistics.finish(0, alignment.getFitness());
+		i_statistics.recordTermination(TerminationCriterion.EXACT, alignment.getFitness(), Double.NaN);
+		logger.info("Aligned " + rows.length + " sequences exactly; fitness " + alignment.getFitness());
+		return alignment;
+	}
+	
+	/**
+	   Runs the search on the sequences, starting from the seeds (if any).
+	 */
+	private Individual search(String[] inputSequences, Alignment[] seeds, CancellationToken aToken)
 	{
 		logger.info("Starting search for solution.");
 		
-		i_bestLastRound = Long.MIN_VALUE;
-		i_numTimesUnchanged=0;
-		i_numRounds = 0;
+		i_termination.reset();
+		i_termination.setCancellationToken(aToken);
+		i_statistics = new RunStatistics(i_threadStatistics);
+		i_statistics.start();
+		if (i_timeLimitMillis > 0)
+			i_termination.setDeadline(System.currentTimeMillis() + i_timeLimitMillis);
+		if (i_computeUpperBound && inputSequences != null)
+		{
+			//The bound is on the full alignment, like the fitness.
+			Scorer scorer = InfoCenter.getCenter().getScorer();
+			String[] fullSequences = i_rowWeights == null ? inputSequences : i_rowWeights.expand(inputSequences);
+			i_termination.setUpperBound(SumOfPairsBound.compute(scorer, fullSequences));
+			logger.info("Upper bound on fitness: " + i_termination.getUpperBound());
+		}
+		i_tabuList.clear();
+		i_evaluator = null;
+		if (i_tieredEvaluation)
+			i_evaluator = new TieredEvaluator(i_surrogatePairFraction, i_tieredQuantile, i_tieredMargin, i_tieredAuditRate);
 		double bestScore = Double.NEGATIVE_INFINITY;
 		double tempBest;
 		
-		Population<Alignment> pop = this.generateInitialPopulation(inputSequences);
+		Population<Alignment> pop = this.generateInitialPopulation(inputSequences, seeds);
 		logger.fine("Initial population:");
 		for (Alignment a : pop)
-			logger.fine(a.toString());
+			logger.fine(a::toString);
 		
 		int counter = 0;
 		Alignment best;
 		do
 		{
-			best = pop.best();
+			GenerationEvent generation = new GenerationEvent();
+			generation.begin();
+			long evaluationsBefore = i_statistics.getEvaluationsSoFar();
+			long roundStart = System.nanoTime();
+			long allocatedBefore = getAllocatedBytes();
+			
+			best = this.bestExact(pop);
+			if (i_evaluator != null)
+				i_evaluator.beginGeneration(pop);
+			else if (i_earlyAbort)
+				i_cutoff = TieredEvaluator.getQuantile(pop, i_earlyAbortQuantile);
 			
 			pop = this.performReproduction(pop);
 			
@@ -183,12 +733,21 @@ public class MultiSeqAligner
 			else
 			{
 				pop = this.performCrossover(pop);
-				pop = this.performMutation(pop);
+				//Out of time: the crossovers alone make a full generation.
+				if (!i_termination.isInterrupted())
+					pop = this.performMutation(pop);
 			}
 			
+			if (!DUPLICATES_KEEP.equalsIgnoreCase(i_duplicateHandling))
+				this.replaceDuplicates(pop);
+			
 			//Preserve the last best individual for another generation.
 			pop.addIndividual(best);
 			
+			double diversity = this.measureDiversity(pop);
+			i_statistics.recordDiversity(diversity);
+			logger.fine(() -> "Diversity: " + diversity);
+			
 			// keep track of the overall best score
 			tempBest = best.getFitness();
 			if (Double.compare(tempBest, bestScore) > 0)
@@ -196,33 +755,171 @@ public class MultiSeqAligner
 			
 			if (counter%10 == 0)
 			{
-				logger.info("Number of Rounds: " + i_numRounds);
-				logger.info("Best so far in population: " + pop.best().getFitness());
+				logger.info("Number of Rounds: " + i_termination.getRounds());
+				logger.info("Best so far in population: " + this.bestExact(pop).getFitness());
 				logger.info("Best ever: " + bestScore);
-				logger.info("" + best);
-				logger.fine("Crossover Operators: " + i_crossoverOps.getDistributionString());
-				logger.fine("Mutation Operators: " + i_mutationOps.getDistributionString());
+				logger.info("Diversity: " + diversity);
+				//The alignment is only rendered if the record is written.
+				logger.log(Level.INFO, "{0}", best);
+				logger.fine(() -> "Operators: " + getDistributionString());
 			}
 			counter++;
+			
+			this.recordMetrics(pop, roundStart, allocatedBefore, counter);
+			
+			if (generation.shouldCommit())
+			{
+				generation.round = counter;
+				generation.bestFitness = this.bestExact(pop).getFitness();
+				generation.meanFitness = pop.getPopulationFitness() / pop.getPopulationSize();
+				generation.evaluations = i_statistics.getEvaluationsSoFar() - evaluationsBefore;
+				generation.commit();
+			}
+			
+			if (!i_listeners.isEmpty())
+				this.notifyListeners(counter, pop, bestScore, diversity);
 		} while (!hasSolution(pop));
 		
+		// Return the best scoring individual in the population.
+		best = this.bestExact(pop);
+		
+		//Polishing is skipped if the caller wants the answer now.
+		String reason = i_termination.getReason();
+		if (i_polish && !TerminationCriterion.CANCELLED.equals(reason)
+				&& !TerminationCriterion.DEADLINE.equals(reason))
+		{
+			long polishStart = System.nanoTime();
+			double before = best.getFitness();
+			best = new Polisher(InfoCenter.getCenter().getScorer(), i_polishWindow)
+					.polish(best, i_polishMaxMoves, aToken);
+			logger.info("Polished from " + before + " to " + best.getFitness() + " in "
+					+ (System.nanoTime() - polishStart) / 1000000 + " ms");
+		}
+		i_statistics.finish(i_termination.getRounds(), best.getFitness());
+		i_statistics.recordTermination(i_termination.getReason(), i_termination.getUpperBound(),
+				i_termination.getPlateauSlope());
+		if (i_evaluator != null)
+			i_statistics.recordTieredEvaluation(i_evaluator);
+		
 		logger.info("Found solution");
-		logger.info("Number of Rounds: " + i_numRounds);
+		logger.info("Number of Rounds: " + i_termination.getRounds());
+		logger.info("Stopped on: " + i_termination.getReason());
+		if (!Double.isNaN(i_termination.getUpperBound()))
+			logger.info("Best/Bound: " + i_statistics.getBoundRatio());
 		logger.info("Best ever: " + bestScore);
-		logger.info("Crossover Operators: " + i_crossoverOps.getDistributionString());
-		logger.info("Mutation Operators: " + i_mutationOps.getDistributionString());
+		logger.info("Operators: " + getDistributionString());
+		logger.info("Fitness Evaluations: " + i_statistics.getEvaluations());
+		logger.info("Fitness Cache Hit Rate: " + i_statistics.getCacheHitRate());
+		logger.info("Duplicates Replaced: " + i_statistics.getDuplicatesReplaced());
+		logger.info("Mean Diversity: " + i_statistics.getMeanDiversity());
+		if (i_earlyAbort)
+			logger.info("Rejected Offspring: " + i_statistics.getRejections());
+		if (i_evaluator != null)
+			logger.info("Screened Offspring: " + i_statistics.getScreenedOffspring()
+					+ ", surrogate error " + i_statistics.getSurrogateMeanError()
+					+ " +/- " + i_statistics.getSurrogateErrorStdDev());
 		
-		// Return the best scoring individual in the population.
-		return pop.best();
+		if (i_operatorProfile != null)
+		{
+			try
+			{
+				i_operatorProfile.save("Operator statistics for "
+						+ InfoCenter.getCenter().getScorer().getClass().getName(), getSelectors());
+			}
+			catch (IOException e)
+			{
+				logger.warning("Could not save operator profile " + i_operatorProfile.getFile() + ": " + e);
+			}
+		}
+		flushLog();
+		
+		return best;
 	}
 
 	/**
-	   Generates a population of Alignments.
+	   Throws an IllegalArgumentException unless the seed holds the
+	   input sequences, in order.
+	 */
+	private static void checkSeed(Alignment aSeed, String[] inputSequences)
+	{
+		if (inputSequences == null || aSeed.getSize() != inputSequences.length)
+			throw new IllegalArgumentException("Seed does not have one row per input sequence");
+		for (int i=0; i<inputSequences.length; i++)
+		{
+			if (!aSeed.getSequenceAt(i).getInputString().replace("-", "").equals(inputSequences[i].replace("-", "")))
+				throw new IllegalArgumentException("Row " + i + " of seed does not match the input sequence");
+		}
+	}
+	
+	/**
+	   Aligns the sequences progressively, once along a guide tree from
+	   their word distances and then along trees from slightly shuffled
+	   distances, so that the seeds differ where the order is unclear.
+	 */
+	private Alignment[] generateSeeds(String[] inputSequences)
+	{
+		long start = System.nanoTime();
+		ProfileAligner aligner = new ProfileAligner(InfoCenter.getCenter().getScorer(), inputSequences);
+		
+		//Short words share too much by chance in small alphabets.
+		int wordLength = aligner.getSymbolCount() <= 4 ? 6 : 3;
+		double[][] distances = GuideTree.getWordDistances(inputSequences, wordLength);
+		
+		Alignment[] seeds = new Alignment[Math.max(i_seedCount, 1)];
+		double bestFitness = Double.NEGATIVE_INFINITY;
+		InfoCenter rand = InfoCenter.getCenter();
+		for (int s=0; s<seeds.length; s++)
+		{
+			double[][] noisy = distances;
+			if (s > 0)
+			{
+				int n = distances.length;
+				noisy = new double[n][n];
+				for (int i=0; i<n; i++)
+				{
+					for (int j=i+1; j<n; j++)
+					{
+						noisy[i][j] = distances[i][j] * (0.9 + rand.getRandomInt(1000) * 0.0002);
+						noisy[j][i] = noisy[i][j];
+					}
+				}
+			}
+			
+			seeds[s] = new Alignment();
+			for (String row : aligner.align(inputSequences, new GuideTree(noisy)))
+				seeds[s].addSequence(new Sequence(row));
+			bestFitness = Math.max(bestFitness, seeds[s].getFitness());
+		}
+		logger.info("Built " + seeds.length + " progressive seeds in "
+				+ (System.nanoTime() - start) / 1000000 + " ms, best fitness " + bestFitness);
+		return seeds;
+	}
+	
+	/**
+	   Generates a population of Alignments.  With seeds, the population
+	   is the seeds and mutated copies of them; otherwise gaps are
+	   scattered at random.
 	 */
-	private Population<Alignment> generateInitialPopulation(String[] inputSequences)
+	private Population<Alignment> generateInitialPopulation(String[] inputSequences, Alignment[] seeds)
 	{
 		Population<Alignment> pop = new Population<Alignment>();
-		if (inputSequences != null)
+		if (seeds != null && seeds.length > 0)
+		{
+			for (int i=0; i<i_populationSize; i++)
+			{
+				Alignment a = seeds[i % seeds.length];
+				
+				//Past the seeds themselves, apply one to three mutations.
+				if (i >= seeds.length)
+				{
+					int mutations = 1 + InfoCenter.getCenter().getRandomInt(3);
+					for (int m=0; m<mutations; m++)
+						a = i_mutationOps.getRandomIndividual().perform(a);
+				}
+				pop.addIndividual(a);
+			}
+		}
+		else if (inputSequences != null)
 		{
 			int maxSequenceSize = 0;
 			
@@ -243,7 +940,9 @@ public class MultiSeqAligner
 			// create the individuals
 			for (int i=0; i<i_populationSize; i++)
 			{
-				pop.addIndividual(new Alignment(inputSequences, alignmentLength));
+				Alignment a = new Alignment(inputSequences, alignmentLength);
+				a.setRowWeights(i_rowWeights);
+				pop.addIndividual(a);
 			}
 		}
 		return pop;
@@ -284,6 +983,7 @@ public class MultiSeqAligner
 		int tries = 0;
 		Crossover xover;
 		Alignment[] children;
+		Iterator<Crossover> batch = i_batchedOperators ? drawBatch(i_crossoverSelector, oldPop.getPopulationSize()) : null;
 		
 		// The next population size should be the same size as the current generation.
 		while (newPop.getPopulationSize() < oldPop.getPopulationSize())
@@ -298,7 +998,11 @@ public class MultiSeqAligner
 				father = oldPop.getRandomIndividual();
 			} while (tries++<10 && father == mother);
 			
-			xover = i_crossoverOps.getRandomIndividual();
+			xover = batch != null ? batch.next() : i_crossoverSelector.select();
+			OperatorEvent event = new OperatorEvent();
+			event.begin();
+			long start = System.nanoTime();
+			long allocatedBefore = getAllocatedBytes();
 			//logger.info("Before XOver: " + xover.getClass().getName());
 			children = xover.perform(mother, father);
 			//logger.info("After XOver: " + xover.getClass().getName());
@@ -322,10 +1026,14 @@ public class MultiSeqAligner
 			newPop.addIndividual(children[1]);
 			
 			//Update the success of this operator, and past operators.
-			rateOperators(xover, children, mother, father);
-			i_crossoverOps.recalculateProbabilities();
-			logger.finer(i_crossoverOps.getDistributionString());
+			evaluateChildren(children);
+			i_crossoverSelector.update(xover, rateOperators(xover, children, mother, father),
+					System.nanoTime() - start, getAllocatedBytes() - allocatedBefore);
+			commitOperator(event, xover, children, mother, father);
+			logger.finer(i_crossoverSelector::getDistributionString);
 		}
+		if (batch != null)
+			i_crossoverSelector.endBatch();
 		oldPop = null;
 		return newPop;
 	}
@@ -341,6 +1049,7 @@ public class MultiSeqAligner
 		Mutation mute;
 		Alignment child;
 		Alignment[] children = new Alignment[1];
+		Iterator<Mutation> batch = i_batchedOperators ? drawBatch(i_mutationSelector, oldPop.getPopulationSize()) : null;
 		
 		// The next population size should be the same size as the current generation.
 		while (newPop.getPopulationSize() < oldPop.getPopulationSize())
@@ -348,7 +1057,11 @@ public class MultiSeqAligner
 			//Choose a parent.
 			parent = oldPop.getRandomIndividual();			
 			
-			mute = i_mutationOps.getRandomIndividual();
+			mute = batch != null ? batch.next() : i_mutationSelector.select();
+			OperatorEvent event = new OperatorEvent();
+			event.begin();
+			long start = System.nanoTime();
+			long allocatedBefore = getAllocatedBytes();
 			//logger.info("Before Mutation: " + mute.getClass().getName());
 			child = mute.perform(parent);
 			//logger.info("After Mutation: " + mute.getClass().getName());
@@ -369,10 +1082,14 @@ public class MultiSeqAligner
 			
 			//Update the success of this operator, and past operators.
 			children[0] = child;
-			rateOperators(mute, children, parent);
-			i_mutationOps.recalculateProbabilities();
-			logger.finer(i_mutationOps.getDistributionString());
+			evaluateChildren(children);
+			i_mutationSelector.update(mute, rateOperators(mute, children, parent),
+					System.nanoTime() - start, getAllocatedBytes() - allocatedBefore);
+			commitOperator(event, mute, children, parent);
+			logger.finer(i_mutationSelector::getDistributionString);
 		}
+		if (batch != null)
+			i_mutationSelector.endBatch();
 		oldPop = null;
 		return newPop;
 	}
@@ -389,11 +1106,16 @@ public class MultiSeqAligner
 		Alignment[] children = null;
 		Alignment[] parents = null;
 		int tries = 0;
+		Iterator<Operator> batch = i_batchedOperators ? drawBatch(i_operatorSelector, oldPop.getPopulationSize()) : null;
 		
 		// The next population size should be the same size as the current generation.
 		while (newPop.getPopulationSize() < oldPop.getPopulationSize())
 		{
-			op = i_operators.getRandomIndividual();
+			op = batch != null ? batch.next() : i_operatorSelector.select();
+			OperatorEvent event = new OperatorEvent();
+			event.begin();
+			long start = System.nanoTime();
+			long allocatedBefore = getAllocatedBytes();
 			
 			//Both mutations and crossovers need at least one parent
 			mother = oldPop.getRandomIndividual();			
@@ -433,21 +1155,318 @@ public class MultiSeqAligner
 			}
 			
 			//Update the success of this operator, and past operators.
-			rateOperators(op, children, parents);
-			i_operators.recalculateProbabilities();
-			logger.finer(i_operators.getDistributionString());
+			evaluateChildren(children);
+			i_operatorSelector.update(op, rateOperators(op, children, parents),
+					System.nanoTime() - start, getAllocatedBytes() - allocatedBefore);
+			commitOperator(event, op, children, parents);
+			logger.finer(i_operatorSelector::getDistributionString);
 		}
+		if (batch != null)
+			i_operatorSelector.endBatch();
 		
 		return newPop;
 	}
+	
+	/**
+	   Draws the operators for a whole generation at once, enough to
+	   produce the specified number of children, and returns them
+	   grouped by operator.  Applying each operator's share in a row
+	   keeps one operator's code (and data) hot at a time, and spares
+	   redrawing the chances after every application.
+	 */
+	private static <T extends Operator> Iterator<T> drawBatch(OperatorSelector<T> aSelector, int aChildren)
+	{
+		int[] counts = aSelector.drawCounts(aChildren);
+		List<T> batch = new ArrayList<T>();
+		for (int i=0; i<counts.length; i++)
+		{
+			T op = aSelector.getOperators().getIndividualAt(i);
+			for (int n=0; n<counts[i]; n++)
+				batch.add(op);
+		}
+		return batch.iterator();
+	}
 
+	/**
+	   Replaces offspring that repeat another alignment in this generation
+	   with fresh mutations of themselves.  In tabu mode, alignments seen
+	   in recent generations are replaced as well.
+	 */
+	private void replaceDuplicates(Population<Alignment> pop)
+	{
+		boolean tabu = DUPLICATES_TABU.equalsIgnoreCase(i_duplicateHandling);
+		Set<Alignment> seen = new HashSet<Alignment>();
+		int replaced = 0;
+		
+		for (int i=0; i<pop.getPopulationSize(); i++)
+		{
+			Alignment child = pop.getIndividualAt(i);
+			if (!isRepeat(child, seen, tabu))
+			{
+				seen.add(child);
+				continue;
+			}
+			
+			//Noop mutations (and unlucky ones) give back the same alignment, so try a few times.
+			Alignment variant = child;
+			for (int tries=0; tries<DUPLICATE_TRIES && isRepeat(variant, seen, tabu); tries++)
+				variant = i_mutationOps.getRandomIndividual().perform(child);
+			
+			//Out of tries: the repeat stays, and is not counted.
+			if (isRepeat(variant, seen, tabu))
+				continue;
+			pop.setIndividualAt(i, variant);
+			seen.add(variant);
+			replaced++;
+		}
+		i_statistics.recordDuplicatesReplaced(replaced);
+		
+		if (tabu)
+		{
+			for (Alignment a : seen)
+			{
+				i_tabuList.remove(a.getFingerprint());
+				i_tabuList.add(a.getFingerprint());
+			}
+			//Drop the oldest entries.
+			Iterator<Long> it = i_tabuList.iterator();
+			while (i_tabuList.size() > i_tabuSize)
+			{
+				it.next();
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	   Returns true if the alignment was already seen in this generation
+	   or, for tabu, in a recent one.
+	 */
+	private boolean isRepeat(Alignment a, Set<Alignment> seen, boolean tabu)
+	{
+		return seen.contains(a) || (tabu && i_tabuList.contains(a.getFingerprint()));
+	}
+	
+	/**
+	   Returns a cheap estimate of how varied the population is: the
+	   average fraction of rows that differ between randomly chosen
+	   pairs of alignments.  0 means every sampled pair was identical.
+	 */
+	private double measureDiversity(Population<Alignment> pop)
+	{
+		InfoCenter rand = InfoCenter.getCenter();
+		int size = pop.getPopulationSize();
+		if (size < 2 || i_diversitySamples <= 0)
+			return 0;
+		
+		double total = 0;
+		for (int n=0; n<i_diversitySamples; n++)
+		{
+			Alignment a = pop.getIndividualAt(rand.getRandomInt(size));
+			Alignment b = pop.getIndividualAt(rand.getRandomInt(size));
+			int rows = Math.min(a.getSize(), b.getSize());
+			int different = 0;
+			for (int r=0; r<rows; r++)
+			{
+				if (a.getSequenceAt(r).getFingerprint() != b.getSequenceAt(r).getFingerprint())
+					different++;
+			}
+			total += rows == 0 ? 0 : (double) different / rows;
+		}
+		return total / i_diversitySamples;
+	}
+	
+	/**
+	   Updates the metrics at the end of a round.  The gauges take a
+	   pass over the population, so they are only updated if the
+	   metrics are served, and then only every metricsSampleRounds.
+	 */
+	private void recordMetrics(Population<Alignment> pop, long aRoundStart, long anAllocatedBefore, int aRound)
+	{
+		c_generationCounter.increment();
+		c_generationSeconds.observe((System.nanoTime() - aRoundStart) / 1e9);
+		long allocated = getAllocatedBytes();
+		if (allocated >= 0 && anAllocatedBefore >= 0)
+			c_generationBytes.observe(allocated - anAllocatedBefore);
+		if (!i_exportMetrics || aRound % i_metricsSampleRounds != 0)
+			return;
+		
+		c_metrics.setGauge("gamsa_population_bytes", "Estimated memory held by the population",
+				estimatePopulationBytes(pop));
+		c_metrics.setGauge("gamsa_best_fitness", "Fitness of the best alignment in the population",
+				this.bestExact(pop).getFitness());
+		
+		FitnessCache cache = InfoCenter.getCenter().getFitnessCache();
+		if (cache != null)
+		{
+			long hits = cache.getHits();
+			long lookups = hits + cache.getMisses();
+			c_metrics.setGauge("gamsa_fitness_cache_hits", "Fitness values found in the cache", hits);
+			c_metrics.setGauge("gamsa_fitness_cache_lookups", "Lookups in the fitness cache", lookups);
+			c_metrics.setGauge("gamsa_fitness_cache_hit_ratio", "Share of lookups found in the fitness cache",
+					lookups == 0 ? 0 : (double) hits / lookups);
+		}
+		
+		OperatorSelector<? extends Operator> crossovers = i_mergeOperators ? i_operatorSelector : i_crossoverSelector;
+		OperatorSelector<? extends Operator> mutations = i_mergeOperators ? i_operatorSelector : i_mutationSelector;
+		recordOperatorMetrics(crossovers, Crossover.class);
+		recordOperatorMetrics(mutations, Mutation.class);
+	}
+	
+	/**
+	   Sets the selection probability gauge for each operator of the given type.
+	 */
+	private void recordOperatorMetrics(OperatorSelector<? extends Operator> ops, Class<?> type)
+	{
+		String[] names = getOperatorNames(ops, type);
+		double[] probabilities = getOperatorProbabilities(ops, type);
+		for (int i=0; i<names.length; i++)
+			c_metrics.setGauge("gamsa_operator_probability", "operator", names[i],
+					"Chance of selecting the operator", probabilities[i]);
+		for (Operator op : ops.getOperators())
+		{
+			if (type.isInstance(op))
+				c_metrics.setGauge("gamsa_operator_mean_seconds", "operator", op.getClass().getSimpleName(),
+						"Average time taken by an application of the operator", op.getMeanNanos() / 1e9);
+		}
+	}
+	
+	/**
+	   Returns the bytes allocated so far by the current thread, or -1
+	   if the JVM does not say.
+	 */
+	private static long getAllocatedBytes()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+		{
+			com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+			if (sunThreads.isThreadAllocatedMemoryEnabled())
+				return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+	
+	/**
+	   Returns a rough estimate of the memory held by the population.
+	   Sequences shared between alignments are only counted once.
+	 */
+	private static long estimatePopulationBytes(Population<Alignment> pop)
+	{
+		Map<Sequence,Boolean> seen = new IdentityHashMap<Sequence,Boolean>();
+		long bytes = 0;
+		for (Alignment a : pop)
+		{
+			//The alignment and its list.
+			bytes += 64 + 8 * a.getSize();
+			for (Sequence seq : a)
+			{
+				//The sequence object and its characters.
+				if (seen.put(seq, Boolean.TRUE) == null)
+					bytes += 48 + 2 * seq.getSize();
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	   Sends a snapshot of the round to every listener.
+	 */
+	private void notifyListeners(int aRound, Population<Alignment> pop, double aBestEver, double aDiversity)
+	{
+		OperatorSelector<? extends Operator> crossovers = i_mergeOperators ? i_operatorSelector : i_crossoverSelector;
+		OperatorSelector<? extends Operator> mutations = i_mergeOperators ? i_operatorSelector : i_mutationSelector;
+		
+		GenerationSnapshot snapshot = new GenerationSnapshot(aRound, this.bestExact(pop), aBestEver, aDiversity,
+				i_statistics.getEvaluationsSoFar(), i_statistics.getElapsedMillisSoFar(),
+				getOperatorNames(crossovers, Crossover.class), getOperatorProbabilities(crossovers, Crossover.class),
+				getOperatorNames(mutations, Mutation.class), getOperatorProbabilities(mutations, Mutation.class));
+		for (ProgressListener listener : i_listeners)
+			listener.generationCompleted(snapshot);
+	}
+	
+	/**
+	   Returns the names of the operators of the given type.
+	 */
+	private String[] getOperatorNames(OperatorSelector<? extends Operator> ops, Class<?> type)
+	{
+		List<String> names = new ArrayList<String>();
+		for (Operator op : ops.getOperators())
+		{
+			if (type.isInstance(op))
+				names.add(op.getClass().getSimpleName());
+		}
+		return names.toArray(new String[names.size()]);
+	}
+	
+	/**
+	   Returns the chance of selecting each operator of the given type,
+	   in the same order as getOperatorNames().
+	 */
+	private double[] getOperatorProbabilities(OperatorSelector<? extends Operator> ops, Class<?> type)
+	{
+		double[] all = ops.getProbabilities();
+		double[] chosen = new double[all.length];
+		int count = 0;
+		for (int i=0; i<all.length; i++)
+		{
+			if (type.isInstance(ops.getOperators().getIndividualAt(i)))
+				chosen[count++] = all[i];
+		}
+		return Arrays.copyOf(chosen, count);
+	}
+	
+	/**
+	   Scores new children, or just estimates their fitness if
+	   tiered evaluation is on.  Otherwise, with early abort, children
+	   are only scored until they are known to fall below the cutoff.
+	 */
+	private void evaluateChildren(Alignment[] children)
+	{
+		if (i_evaluator != null)
+			i_evaluator.evaluate(children);
+		else if (i_earlyAbort)
+		{
+			for (Alignment child : children)
+				child.getFitness(i_cutoff);
+		}
+	}
+	
+	/**
+	   Returns the best alignment in the population, judged on exact
+	   fitness.  Alignments that only have an estimate are scored in
+	   full until the best one is exact.
+	 */
+	private Alignment bestExact(Population<Alignment> pop)
+	{
+		Alignment best = pop.best();
+		while (best.isApproximate())
+		{
+			best.getExactFitness();
+			best = pop.best();
+		}
+		return best;
+	}
+	
+	/**
+	   Returns the chance of choosing each operator, with its average
+	   gain and cost.
+	 */
+	private String getDistributionString()
+	{
+		if (i_mergeOperators)
+			return i_operatorSelector.getDistributionString();
+		return "Crossovers: " + i_crossoverSelector.getDistributionString()
+				+ "\nMutations: " + i_mutationSelector.getDistributionString();
+	}
+	
 	/**
 	   Rate the success of the operation, plus operations leading up
-	   to this operation.
+	   to this operation.  Returns the change in fitness.
 	 */
-	private void rateOperators(Operator op, Alignment[] children, Alignment... parents)
+	private double rateOperators(Operator op, Alignment[] children, Alignment... parents)
 	{
-		logger.finest(op.toString());
+		logger.finest(op::toString);
 		
 		//Rate the children
 		double childrenFitness = 0;
@@ -463,7 +1482,23 @@ public class MultiSeqAligner
 		// fitness and the parents' fitness.
 		double opSuccess = childrenFitness - parentFitness;
 		
-		op.addScore(opSuccess);
+		return opSuccess;
+	}
+	
+	/**
+	   Fills in and records the operator event, if it is being recorded.
+	 */
+	private void commitOperator(OperatorEvent event, Operator op, Alignment[] children, Alignment... parents)
+	{
+		if (event.shouldCommit())
+		{
+			event.operator = op.getClass();
+			for (Alignment child : children)
+				event.childFitness += child.getFitness();
+			for (Alignment parent : parents)
+				event.parentFitness += parent.getFitness();
+			event.commit();
+		}
 	}
 	
 	/**
@@ -472,35 +1507,99 @@ public class MultiSeqAligner
 	   the population.  If this has not changed for
 	   a certain number of generations, we assume that
 	   the population has reached a stable point.
+	   See TerminationCriterion for the other ways to stop.
 	 */
 	private boolean hasSolution(Population<Alignment> p)
     {
-		if (i_maxRounds > 0)
+		logger.fine(() -> "NumRounds: " + i_termination.getRounds() + "/" + i_maxRounds);
+		return i_termination.isMet(bestExact(p).getFitness());
+    }
+	
+	/**
+	   Self-check: two or three short random sequences, aligned exactly,
+	   should score as well as the best of every alignment of them,
+	   found by trying them all.  Blosum62Scorer is tried on pairs only.
+	 */
+	public static void main(String[] args)
+	{
+		String[] scorers = {"gamsa.scorer.DNAScorer", "gamsa.scorer.Blosum62Scorer"};
+		String[] alphabets = {"ACGT", "ARNDCQEGHILKMFPSTWYV"};
+		int[] maxCounts = {3, 2};
+		Random rand = new Random(1);
+		boolean ok = true;
+		for (int k=0; k<scorers.length; k++)
 		{
-			logger.fine("NumRounds: " + i_numRounds + "/" + i_maxRounds);
-			if (i_numRounds >= i_maxRounds)
-				return true;
-			else
-				i_numRounds++;
+			Properties p = getDefaultProperties();
+			p.put("seqScorer", scorers[k]);
+			MultiSeqAligner aligner = new MultiSeqAligner(p);
+			int failures = 0;
+			for (int trial=0; trial<100; trial++)
+			{
+				String[] inputs = new String[2 + rand.nextInt(maxCounts[k] - 1)];
+				for (int i=0; i<inputs.length; i++)
+				{
+					StringBuilder sb = new StringBuilder();
+					int length = 1 + rand.nextInt(inputs.length == 2 ? 5 : 3);
+					for (int c=0; c<length; c++)
+						sb.append(alphabets[k].charAt(rand.nextInt(alphabets[k].length())));
+					inputs[i] = sb.toString();
+				}
+				
+				double exact = aligner.findSolution(inputs).getFitness();
+				StringBuilder[] rows = new StringBuilder[inputs.length];
+				for (int i=0; i<rows.length; i++)
+					rows[i] = new StringBuilder();
+				double best = enumerate(inputs, new int[inputs.length], rows);
+				if (exact != best || !TerminationCriterion.EXACT.equals(aligner.getStatistics().getTerminationReason()))
+				{
+					failures++;
+					System.out.println(Arrays.toString(inputs) + ": exact " + exact + ", best " + best);
+				}
+			}
+			System.out.println(scorers[k] + ": " + failures + " of 100 differ" + (failures == 0 ? " OK" : " FAILED"));
+			ok &= failures == 0;
 		}
-		else
+		if (!ok)
+			System.exit(1);
+	}
+	
+	/**
+	   Returns the best fitness of any alignment of the rest of the
+	   sequences, after the given positions, following the rows so far.
+	 */
+	private static double enumerate(String[] residues, int[] positions, StringBuilder[] rows)
+	{
+		int n = residues.length;
+		boolean done = true;
+		for (int i=0; i<n; i++)
+			done &= positions[i] == residues[i].length();
+		if (done)
 		{
-			i_numRounds++;
-		}
-		
-        Alignment newBest = p.best();
-        
-		if (Math.round(newBest.getFitness()) == i_bestLastRound)
-            i_numTimesUnchanged++;
-        else
-        {
-            i_numTimesUnchanged = 0;
-            i_bestLastRound = Math.round(newBest.getFitness());
-        }
-        
-		if (i_unchangedRoundsNeeded > i_numTimesUnchanged)
-            return false;
-        else
-            return true;
-    }
+			Alignment alignment = new Alignment();
+			for (StringBuilder row : rows)
+				alignment.addSequence(new Sequence(row.toString()));
+			return alignment.getFitness();
+		}
+		
+		//Each move takes the next residue of the sequences in its bits.
+		double best = Double.NEGATIVE_INFINITY;
+		for (int move=1; move<1<<n; move++)
+		{
+			boolean valid = true;
+			for (int i=0; i<n; i++)
+				valid &= (move >> i & 1) == 0 || positions[i] < residues[i].length();
+			if (!valid)
+				continue;
+			for (int i=0; i<n; i++)
+				rows[i].append((move >> i & 1) == 1 ? residues[i].charAt(positions[i]++) : '-');
+			best = Math.max(best, enumerate(residues, positions, rows));
+			for (int i=0; i<n; i++)
+			{
+				rows[i].setLength(rows[i].length() - 1);
+				if ((move >> i & 1) == 1)
+					positions[i]--;
+			}
+		}
+		return best;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,259 @@
+package gamsa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import gamsa.population.Alignment;
+import gamsa.population.RowWeights;
+import gamsa.population.Sequence;
+import gamsa.scorer.Scorer;
+
+/**
+   Improves a finished alignment by local search.  Every move of a
+   single gap, and every shift of a whole run of gaps, within a window
+   of where it is now is tried in every row, and the best move that
+   raises the fitness is made.  This repeats until no move helps.
+
+   A move changes one row, so only the pairs with that row are scored
+   again; the scores of all pairs are kept between moves.  The rows
+   are searched in parallel on the InfoCenter's pool.  A row that
+   stands for repeated sequences (see RowWeights) counts for all of
+   its copies.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class Polisher
+{
+	//Smallest gain that counts as an improvement, so rounding
+	// errors in the scores cannot make the search go on forever.
+	private static final double MIN_GAIN = 1e-3;
+
+	/**
+	   The best move found in one row.
+	 */
+	private static class Move
+	{
+		private int i_row;
+		private Sequence i_sequence;
+		private double i_gain;
+		private double[] i_pairScores;
+	}
+
+	/**
+	   Task that finds the best move in one row.
+	 */
+	private class RowTask implements Callable<Move>
+	{
+		private List<Sequence> i_rows;
+		private int i_row;
+
+		public RowTask(List<Sequence> rows, int aRow)
+		{
+			i_rows = rows;
+			i_row = aRow;
+		}
+
+		public Move call()
+		{
+			return findBestMove(i_rows, i_row);
+		}
+	}
+
+	private Scorer i_scorer;
+	private int i_window;
+
+	//Score of each pair of rows in the alignment being polished, and
+	// the copies of each row, if it has any.
+	private double[][] i_pairScores;
+	private RowWeights i_weights;
+
+	/**
+	   Constructor.  Gaps are moved by up to the window's number of columns.
+	 */
+	public Polisher(Scorer aScorer, int aWindow)
+	{
+		i_scorer = aScorer;
+		i_window = aWindow;
+	}
+
+	/**
+	   Returns the alignment after making improving moves until none is
+	   left, the maximum number of moves is made, or the token (which
+	   may be null) is cancelled.  Returns the alignment itself if no
+	   move helps.
+	 */
+	public Alignment polish(Alignment anAlignment, int aMaxMoves, CancellationToken aToken)
+	{
+		List<Sequence> rows = new ArrayList<Sequence>();
+		for (Sequence seq : anAlignment)
+			rows.add(seq);
+		int size = rows.size();
+
+		i_weights = anAlignment.getRowWeights();
+		i_pairScores = new double[size][size];
+		for (int i=0; i<size; i++)
+		{
+			for (int j=i+1; j<size; j++)
+			{
+				i_pairScores[i][j] = scorePair(i, rows.get(i), j, rows.get(j));
+				i_pairScores[j][i] = i_pairScores[i][j];
+			}
+		}
+
+		int moves = 0;
+		while (moves < aMaxMoves && (aToken == null || !aToken.isCancelled()))
+		{
+			Move best = null;
+			for (Move move : findBestMoves(rows))
+			{
+				if (move != null && (best == null || move.i_gain > best.i_gain))
+					best = move;
+			}
+			if (best == null || best.i_gain < MIN_GAIN)
+				break;
+
+			rows.set(best.i_row, best.i_sequence);
+			for (int k=0; k<size; k++)
+			{
+				i_pairScores[best.i_row][k] = best.i_pairScores[k];
+				i_pairScores[k][best.i_row] = best.i_pairScores[k];
+			}
+			moves++;
+		}
+
+		if (moves == 0)
+			return anAlignment;
+		Alignment polished = anAlignment.clone();
+		for (int i=0; i<size; i++)
+			polished.setSequenceAt(i, rows.get(i));
+		return polished;
+	}
+
+	/**
+	   Returns the best move in each row, searching the rows in parallel.
+	 */
+	private List<Move> findBestMoves(List<Sequence> rows)
+	{
+		List<RowTask> tasks = new ArrayList<RowTask>();
+		for (int i=0; i<rows.size(); i++)
+			tasks.add(new RowTask(rows, i));
+
+		List<Move> moves = new ArrayList<Move>();
+		try
+		{
+			for (Future<Move> result : InfoCenter.getCenter().getPool().invokeAll(tasks))
+				moves.add(result.get());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while polishing", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException("Could not polish the alignment", e.getCause());
+		}
+		return moves;
+	}
+
+	/**
+	   Returns the move in the row that raises the fitness the most, or
+	   null if there are no gaps to move.  The gain may be 0 or less.
+	 */
+	private Move findBestMove(List<Sequence> rows, int aRow)
+	{
+		String row = rows.get(aRow).toString();
+		int length = row.length();
+		Move best = null;
+		double[] scores = new double[rows.size()];
+
+		for (int start=0; start<length; start++)
+		{
+			if (row.charAt(start) != '-' || (start > 0 && row.charAt(start-1) == '-'))
+				continue;
+			int end = start;
+			while (end < length && row.charAt(end) == '-')
+				end++;
+			int run = end - start;
+
+			//Shift the whole run.
+			String without = row.substring(0, start) + row.substring(end);
+			for (int pos=Math.max(0, start - i_window); pos<=Math.min(without.length(), start + i_window); pos++)
+			{
+				if (pos != start)
+					best = tryMove(rows, aRow, insertGaps(without, pos, run), scores, best);
+			}
+
+			//Move one gap of a longer run on its own.
+			if (run > 1)
+			{
+				String shorter = row.substring(0, start) + row.substring(start + 1);
+				for (int pos=Math.max(0, start - i_window); pos<=Math.min(shorter.length(), end - 1 + i_window); pos++)
+				{
+					if (pos < start || pos > end - 1)
+						best = tryMove(rows, aRow, insertGaps(shorter, pos, 1), scores, best);
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	   Scores the row as changed against the other rows, and returns
+	   whichever of it and the best move so far gains more.
+	 */
+	private Move tryMove(List<Sequence> rows, int aRow, String aChanged, double[] scores, Move aBest)
+	{
+		Sequence changed = new Sequence(aChanged);
+		double gain = 0;
+		if (i_weights != null)
+		{
+			gain = i_weights.scoreCopies(i_scorer, aRow, changed)
+					- i_weights.scoreCopies(i_scorer, aRow, rows.get(aRow));
+		}
+		for (int k=0; k<rows.size(); k++)
+		{
+			if (k == aRow)
+				continue;
+			scores[k] = scorePair(aRow, changed, k, rows.get(k));
+			gain += scores[k] - i_pairScores[aRow][k];
+		}
+		if (aBest != null && gain <= aBest.i_gain)
+			return aBest;
+
+		Move move = new Move();
+		move.i_row = aRow;
+		move.i_sequence = changed;
+		move.i_gain = gain;
+		move.i_pairScores = scores.clone();
+		return move;
+	}
+
+	/**
+	   Returns the score of two rows, the one that comes first in the
+	   alignment first, over all of their copies.
+	 */
+	private double scorePair(int aRow1, Sequence aSequence1, int aRow2, Sequence aSequence2)
+	{
+		if (i_weights != null)
+			return i_weights.scorePair(i_scorer, aRow1, aSequence1, aRow2, aSequence2);
+		return aRow1 < aRow2 ? i_scorer.compareSequences(aSequence1, aSequence2)
+				: i_scorer.compareSequences(aSequence2, aSequence1);
+	}
+
+	/**
+	   Returns the row with a run of gaps inserted at the position.
+	 */
+	private static String insertGaps(String aRow, int aPosition, int aCount)
+	{
+		StringBuilder sb = new StringBuilder(aRow.length() + aCount);
+		sb.append(aRow, 0, aPosition);
+		for (int i=0; i<aCount; i++)
+			sb.append('-');
+		sb.append(aRow, aPosition, aRow.length());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,16 @@
+package gamsa;
+
+/**
+   Interface for anything that wants to follow a search as it runs.
+   Listeners are called on the searching thread at the end of every
+   round, so they should return quickly.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public interface ProgressListener
+{
+	/**
+	   Called at the end of every round.
+	 */
+	public void generationCompleted(GenerationSnapshot snapshot);
+}
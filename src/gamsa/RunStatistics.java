@@ -0,0 +1,375 @@
+package gamsa;
+
+import gamsa.population.FitnessCache;
+import gamsa.population.TieredEvaluator;
+
+/**
+   Statistics about a single search for a solution.  Evaluation and
+   cache counts are taken from the InfoCenter at the start and end of
+   the run, so runs going on at the same time will count each other's
+   work as well, unless the statistics count only the work done on the
+   thread that started them.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class RunStatistics
+{
+	private long i_startTime;
+	private long i_endTime;
+	private int i_rounds;
+	private double i_bestFitness = Double.NEGATIVE_INFINITY;
+
+	private long i_evaluationsAtStart;
+	private long i_evaluations;
+
+	private long i_rejectionsAtStart;
+	private long i_rejections;
+
+	private long i_cacheHitsAtStart;
+	private long i_cacheMissesAtStart;
+	private long i_cacheHits;
+	private long i_cacheMisses;
+
+	private long i_duplicatesReplaced;
+	private double i_diversityTotal;
+	private int i_diversityCount;
+	private double i_lastDiversity;
+
+	private long i_screenedOffspring;
+	private long i_surrogateSamples;
+	private double i_surrogateMeanError;
+	private double i_surrogateMeanAbsError;
+	private double i_surrogateErrorStdDev;
+
+	private String i_terminationReason;
+	private double i_upperBound = Double.NaN;
+	private double i_plateauSlope = Double.NaN;
+
+	private boolean i_threadOnly;
+
+	/**
+	   Constructor.  Counts the work of every thread.
+	 */
+	public RunStatistics()
+	{
+		this(false);
+	}
+
+	/**
+	   Constructor.  If thread only is set, only the work done on the
+	   thread that starts and finishes the run is counted.
+	 */
+	public RunStatistics(boolean aThreadOnly)
+	{
+		i_threadOnly = aThreadOnly;
+	}
+
+	/**
+	   Records the starting point for the run.
+	 */
+	public void start()
+	{
+		i_startTime = System.currentTimeMillis();
+		i_evaluationsAtStart = getEvaluationCount();
+		i_rejectionsAtStart = getRejectionCount();
+
+		FitnessCache cache = InfoCenter.getCenter().getFitnessCache();
+		if (cache != null)
+		{
+			i_cacheHitsAtStart = i_threadOnly ? cache.getThreadHits() : cache.getHits();
+			i_cacheMissesAtStart = i_threadOnly ? cache.getThreadMisses() : cache.getMisses();
+		}
+	}
+
+	/**
+	   Records the end of the run.
+	 */
+	public void finish(int aRounds, double aBestFitness)
+	{
+		i_endTime = System.currentTimeMillis();
+		i_rounds = aRounds;
+		i_bestFitness = aBestFitness;
+		i_evaluations = getEvaluationCount() - i_evaluationsAtStart;
+		i_rejections = getRejectionCount() - i_rejectionsAtStart;
+
+		FitnessCache cache = InfoCenter.getCenter().getFitnessCache();
+		if (cache != null)
+		{
+			i_cacheHits = (i_threadOnly ? cache.getThreadHits() : cache.getHits()) - i_cacheHitsAtStart;
+			i_cacheMisses = (i_threadOnly ? cache.getThreadMisses() : cache.getMisses()) - i_cacheMissesAtStart;
+		}
+	}
+
+	/**
+	   Returns the InfoCenter's count of evaluations, for this thread or all.
+	 */
+	private long getEvaluationCount()
+	{
+		InfoCenter center = InfoCenter.getCenter();
+		return i_threadOnly ? center.getThreadEvaluationCount() : center.getEvaluationCount();
+	}
+
+	/**
+	   Returns the InfoCenter's count of rejections, for this thread or all.
+	 */
+	private long getRejectionCount()
+	{
+		InfoCenter center = InfoCenter.getCenter();
+		return i_threadOnly ? center.getThreadRejectionCount() : center.getRejectionCount();
+	}
+
+	/**
+	   Returns the number of alignments scored in full since the run started.
+	 */
+	public long getEvaluationsSoFar()
+	{
+		return getEvaluationCount() - i_evaluationsAtStart;
+	}
+
+	/**
+	   Returns the time since the run started, in milliseconds.
+	 */
+	public long getElapsedMillisSoFar()
+	{
+		return System.currentTimeMillis() - i_startTime;
+	}
+
+	/**
+	   Records the number of duplicate offspring replaced in a generation.
+	 */
+	public void recordDuplicatesReplaced(int aCount)
+	{
+		i_duplicatesReplaced += aCount;
+	}
+
+	/**
+	   Records the diversity measured for a generation.
+	 */
+	public void recordDiversity(double aDiversity)
+	{
+		i_diversityTotal += aDiversity;
+		i_diversityCount++;
+		i_lastDiversity = aDiversity;
+	}
+
+	/**
+	   Records how the tiered evaluator did over the run.
+	 */
+	public void recordTieredEvaluation(TieredEvaluator anEvaluator)
+	{
+		i_screenedOffspring = anEvaluator.getScreenedCount();
+		i_surrogateSamples = anEvaluator.getErrorSamples();
+		i_surrogateMeanError = anEvaluator.getMeanError();
+		i_surrogateMeanAbsError = anEvaluator.getMeanAbsoluteError();
+		i_surrogateErrorStdDev = anEvaluator.getErrorStdDev();
+	}
+
+	/**
+	   Records why the run stopped, the upper bound on the fitness
+	   (NaN if it was not computed) and the last plateau slope (NaN
+	   if there was none).
+	 */
+	public void recordTermination(String aReason, double anUpperBound, double aPlateauSlope)
+	{
+		i_terminationReason = aReason;
+		i_upperBound = anUpperBound;
+		i_plateauSlope = aPlateauSlope;
+	}
+
+	/**
+	   Returns the number of rounds executed.
+	 */
+	public int getRounds()
+	{
+		return i_rounds;
+	}
+
+	/**
+	   Returns the fitness of the best alignment found.
+	 */
+	public double getBestFitness()
+	{
+		return i_bestFitness;
+	}
+
+	/**
+	   Returns the run time in milliseconds.
+	 */
+	public long getElapsedMillis()
+	{
+		return i_endTime - i_startTime;
+	}
+
+	/**
+	   Returns the number of alignments that were scored in full.
+	 */
+	public long getEvaluations()
+	{
+		return i_evaluations;
+	}
+
+	/**
+	   Returns the number of alignments whose scoring was abandoned
+	   because they could not reach the cutoff.
+	 */
+	public long getRejections()
+	{
+		return i_rejections;
+	}
+
+	/**
+	   Returns the number of fitness values served by the cache.
+	 */
+	public long getCacheHits()
+	{
+		return i_cacheHits;
+	}
+
+	/**
+	   Returns the fraction of cache lookups that found a fitness,
+	   or 0 if there were none.
+	 */
+	public double getCacheHitRate()
+	{
+		long lookups = i_cacheHits + i_cacheMisses;
+		return lookups == 0 ? 0 : (double) i_cacheHits / lookups;
+	}
+
+	/**
+	   Returns the number of duplicate offspring that were replaced.
+	 */
+	public long getDuplicatesReplaced()
+	{
+		return i_duplicatesReplaced;
+	}
+
+	/**
+	   Returns the diversity of the last generation.
+	 */
+	public double getLastDiversity()
+	{
+		return i_lastDiversity;
+	}
+
+	/**
+	   Returns the average diversity over all generations.
+	 */
+	public double getMeanDiversity()
+	{
+		return i_diversityCount == 0 ? 0 : i_diversityTotal / i_diversityCount;
+	}
+
+	/**
+	   Returns the number of offspring that kept an estimated fitness
+	   instead of being scored in full.
+	 */
+	public long getScreenedOffspring()
+	{
+		return i_screenedOffspring;
+	}
+
+	/**
+	   Returns the number of estimates checked against the exact fitness.
+	 */
+	public long getSurrogateSamples()
+	{
+		return i_surrogateSamples;
+	}
+
+	/**
+	   Returns the average error of the estimated fitness (estimate - exact).
+	 */
+	public double getSurrogateMeanError()
+	{
+		return i_surrogateMeanError;
+	}
+
+	/**
+	   Returns the average absolute error of the estimated fitness.
+	 */
+	public double getSurrogateMeanAbsError()
+	{
+		return i_surrogateMeanAbsError;
+	}
+
+	/**
+	   Returns the standard deviation of the error of the estimated fitness.
+	 */
+	public double getSurrogateErrorStdDev()
+	{
+		return i_surrogateErrorStdDev;
+	}
+
+	/**
+	   Returns why the run stopped.
+	 */
+	public String getTerminationReason()
+	{
+		return i_terminationReason;
+	}
+
+	/**
+	   Returns the upper bound on the fitness, or NaN if it was not computed.
+	 */
+	public double getUpperBound()
+	{
+		return i_upperBound;
+	}
+
+	/**
+	   Returns the best fitness divided by the upper bound, or NaN
+	   if there is no bound.
+	 */
+	public double getBoundRatio()
+	{
+		return i_bestFitness / i_upperBound;
+	}
+
+	/**
+	   Returns how far the best fitness is below the upper bound, or NaN
+	   if there is no bound.
+	 */
+	public double getBoundGap()
+	{
+		return i_upperBound - i_bestFitness;
+	}
+
+	/**
+	   Returns the high end of the likely slope of the best fitness
+	   over the last rounds, or NaN if it was not measured.
+	 */
+	public double getPlateauSlope()
+	{
+		return i_plateauSlope;
+	}
+
+	/**
+	   Returns one statistic per line.
+	   @see java.lang.Object#toString()
+	 */
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("Rounds: ").append(i_rounds).append("\n");
+		sb.append("Best Fitness: ").append(i_bestFitness).append("\n");
+		sb.append("Stopped On: ").append(i_terminationReason).append("\n");
+		if (!Double.isNaN(i_upperBound))
+			sb.append(String.format("Upper Bound: %.1f (best/bound %.3f, gap %.1f)\n",
+				i_upperBound, getBoundRatio(), getBoundGap()));
+		if (!Double.isNaN(i_plateauSlope))
+			sb.append(String.format("Plateau Slope: %.3f per round\n", i_plateauSlope));
+		sb.append("Fitness Evaluations: ").append(i_evaluations).append("\n");
+		sb.append("Rejected Early: ").append(i_rejections).append("\n");
+		sb.append("Fitness Cache Hits: ").append(i_cacheHits)
+			.append(String.format(" (%.1f%% of lookups)", 100 * getCacheHitRate())).append("\n");
+		sb.append("Duplicates Replaced: ").append(i_duplicatesReplaced).append("\n");
+		sb.append(String.format("Diversity: %.3f mean, %.3f last", getMeanDiversity(), i_lastDiversity));
+		if (i_surrogateSamples > 0)
+		{
+			sb.append("\nScreened Offspring: ").append(i_screenedOffspring).append("\n");
+			sb.append(String.format("Surrogate Error: %.2f mean, %.2f mean absolute, %.2f std dev (%d samples)",
+				i_surrogateMeanError, i_surrogateMeanAbsError, i_surrogateErrorStdDev, i_surrogateSamples));
+		}
+		return sb.toString();
+	}
+}
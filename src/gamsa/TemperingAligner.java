@@ -0,0 +1,485 @@
+package gamsa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import gamsa.operator.Mutation;
+import gamsa.population.Alignment;
+import gamsa.population.Individual;
+import gamsa.population.Population;
+import gamsa.scorer.Scorer;
+import gamsa.scorer.SumOfPairsBound;
+
+/**
+   Search engine that runs parallel tempering instead of the genetic
+   algorithm.  Several replicas of the alignment are searched at once,
+   each at its own temperature.  A replica proposes a change with one
+   of the mutation operators and takes it if it scores better, or with
+   a chance that shrinks as it scores worse and grows with the
+   temperature (the Metropolis rule).  After every round of steps,
+   neighbouring replicas may swap alignments, so that good alignments
+   found by the hot, freely wandering replicas sink to the cold ones.
+
+   Only one child is scored per step.  A mutation usually changes few
+   rows, and a replica keeps the score of every pair of rows, so only
+   the pairs with a changed row are scored again.  The replicas of a
+   round are run on the InfoCenter's pool.
+
+   Rounds and stopping are as for MultiSeqAligner, with a round being
+   one set of steps by every replica.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class TemperingAligner implements Aligner
+{
+	private static Logger logger = Logger.getLogger(TemperingAligner.class.getName());
+
+	/**
+	   One alignment being searched at a fixed temperature.
+	 */
+	private class Replica implements Callable<Replica>
+	{
+		private double i_temperature;
+		private Random i_random;
+
+		//The current alignment, its pair scores and their total.
+		private Alignment i_current;
+		private float[][] i_pairs;
+		private double i_fitness;
+
+		//The best alignment this replica has held.
+		private Alignment i_best;
+		private double i_bestFitness;
+
+		private long i_accepted;
+		private long i_proposed;
+
+		public Replica(Alignment anAlignment, double aTemperature, long aSeed)
+		{
+			i_temperature = aTemperature;
+			i_random = new Random(aSeed);
+			int size = anAlignment.getSize();
+			i_pairs = new float[size][size];
+			setState(anAlignment, scorePairs(anAlignment, null, i_pairs));
+			i_best = i_current;
+			i_bestFitness = i_fitness;
+		}
+
+		/**
+		   Makes the alignment, with the pair scores already in i_pairs,
+		   the current one.
+		 */
+		private void setState(Alignment anAlignment, double aFitness)
+		{
+			i_current = anAlignment;
+			i_fitness = aFitness;
+		}
+
+		/**
+		   Runs one round of steps.
+		 */
+		public Replica call()
+		{
+			int size = i_current.getSize();
+			float[][] proposed = new float[size][size];
+			for (int step=0; step<i_stepsPerRound; step++)
+			{
+				Mutation op = i_mutationOps.getIndividualAt(i_random.nextInt(i_mutationOps.getPopulationSize()));
+				Alignment child = op.perform(i_current);
+				double fitness = scorePairs(child, this, proposed);
+				i_proposed++;
+
+				double change = fitness - i_fitness;
+				if (change >= 0 || i_random.nextDouble() < Math.exp(change / i_temperature))
+				{
+					float[][] swap = i_pairs;
+					i_pairs = proposed;
+					proposed = swap;
+					setState(child, fitness);
+					i_accepted++;
+					if (fitness > i_bestFitness)
+					{
+						i_best = child;
+						i_bestFitness = fitness;
+					}
+				}
+			}
+			return this;
+		}
+	}
+	////End of replica class.
+
+	private Population<Mutation> i_mutationOps;
+	private int i_replicaCount;
+	private double i_minTemperature;
+	private double i_maxTemperature;
+	private int i_stepsPerRound;
+	private double i_percentageIncrease;
+
+	private int i_maxRounds;
+	private TerminationCriterion i_termination;
+	private boolean i_computeUpperBound;
+	private long i_timeLimitMillis;
+
+	private List<ProgressListener> i_listeners = new ArrayList<ProgressListener>();
+	private RunStatistics i_statistics = new RunStatistics();
+
+	/**
+	   Constructor.  Default arguments will be used.
+	 */
+	public TemperingAligner()
+	{
+		this(getDefaultProperties());
+	}
+
+	/**
+	   Specifies default properties, in case there is no config.  These
+	   are MultiSeqAligner's, with the settings for the replicas added.
+	 */
+	protected static Properties getDefaultProperties()
+	{
+		Properties p = MultiSeqAligner.getDefaultProperties();
+
+		p.put("replicas", Integer.toString(Math.max(4, Runtime.getRuntime().availableProcessors())));
+		p.put("minTemperature", "0.5");
+		p.put("maxTemperature", "50");
+		p.put("stepsPerRound", "20");
+		p.put("maxRounds", "5000");
+		p.put("unchangedRoundsNeeded", "200");
+
+		return p;
+	}
+
+	/**
+	   Constructor.  Properties will override default values.
+	 */
+	public TemperingAligner(Properties p)
+	{
+		MultiSeqAligner.loadScorer(p.getProperty("seqScorer"));
+		i_mutationOps = MultiSeqAligner.loadOperators(p.getProperty("mutationOps",
+				MultiSeqAligner.getDefaultProperties().getProperty("mutationOps")), Mutation.class);
+
+		i_replicaCount = Integer.parseInt(p.getProperty("replicas",
+				Integer.toString(Math.max(4, Runtime.getRuntime().availableProcessors()))));
+		i_minTemperature = Double.parseDouble(p.getProperty("minTemperature", "0.5"));
+		i_maxTemperature = Double.parseDouble(p.getProperty("maxTemperature", "50"));
+		i_stepsPerRound = Integer.parseInt(p.getProperty("stepsPerRound", "20"));
+		i_percentageIncrease = Double.parseDouble(p.getProperty("percentageIncrease", "15.0"));
+
+		//A negative value means that maxRounds will be disabled.
+		i_maxRounds = Integer.parseInt(p.getProperty("maxRounds", "-999"));
+		i_termination = new TerminationCriterion(i_maxRounds,
+				Integer.parseInt(p.getProperty("unchangedRoundsNeeded", "50")));
+		double boundRatio = Double.parseDouble(p.getProperty("boundRatio", "0"));
+		i_termination.setBoundRatio(boundRatio);
+		i_termination.setPlateau(Integer.parseInt(p.getProperty("plateauWindow", "30")),
+				Double.parseDouble(p.getProperty("plateauMinSlope", "0")));
+		i_computeUpperBound = boundRatio > 0 || Boolean.parseBoolean(p.getProperty("upperBound", "false"));
+		i_timeLimitMillis = Long.parseLong(p.getProperty("timeLimitMillis", "0"));
+	}
+
+	/**
+	   Returns the statistics for the last run.
+	 */
+	public RunStatistics getStatistics()
+	{
+		return i_statistics;
+	}
+
+	/**
+	   Sets the longest a search may run, in milliseconds.  0 means
+	   there is no limit.
+	 */
+	public void setTimeLimit(long aMillis)
+	{
+		i_timeLimitMillis = aMillis;
+	}
+
+	/**
+	   Adds a listener to be told about every round.
+	 */
+	public void addProgressListener(ProgressListener aListener)
+	{
+		i_listeners.add(aListener);
+	}
+
+	/**
+	   Removes a listener.
+	 */
+	public void removeProgressListener(ProgressListener aListener)
+	{
+		i_listeners.remove(aListener);
+	}
+
+	/**
+	   Returns the best alignment found.
+	 */
+	public Individual findSolution(String[] inputSequences)
+	{
+		return findSolution(inputSequences, null);
+	}
+
+	/**
+	   Returns the best alignment found, or the best so far if the
+	   token is cancelled or the time limit runs out.  The token may
+	   be null.
+	 */
+	public Individual findSolution(String[] inputSequences, CancellationToken aToken)
+	{
+		logger.info("Starting tempering with " + i_replicaCount + " replicas.");
+
+		i_termination.reset();
+		i_termination.setCancellationToken(aToken);
+		i_statistics = new RunStatistics();
+		i_statistics.start();
+		if (i_timeLimitMillis > 0)
+			i_termination.setDeadline(System.currentTimeMillis() + i_timeLimitMillis);
+		if (i_computeUpperBound)
+		{
+			Scorer scorer = InfoCenter.getCenter().getScorer();
+			i_termination.setUpperBound(SumOfPairsBound.compute(scorer, inputSequences));
+			logger.info("Upper bound on fitness: " + i_termination.getUpperBound());
+		}
+
+		//Every replica starts from its own random alignment, as in the GA.
+		int maxSequenceSize = 0;
+		for (String seq : inputSequences)
+			maxSequenceSize = Math.max(maxSequenceSize, seq.length());
+		int alignmentLength = (int) (maxSequenceSize * (1 + i_percentageIncrease * .01));
+
+		//Temperatures are spaced evenly on a log scale, coldest first.
+		List<Replica> replicas = new ArrayList<Replica>();
+		InfoCenter center = InfoCenter.getCenter();
+		Random random = new Random(center.getRandomInt(Integer.MAX_VALUE));
+		for (int r=0; r<i_replicaCount; r++)
+		{
+			double temperature = i_replicaCount == 1 ? i_minTemperature
+					: i_minTemperature * Math.pow(i_maxTemperature / i_minTemperature, (double) r / (i_replicaCount - 1));
+			replicas.add(new Replica(new Alignment(inputSequences, alignmentLength), temperature,
+					random.nextLong()));
+		}
+
+		Alignment best = null;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		long swaps = 0;
+		long swapsTried = 0;
+		int round = 0;
+		do
+		{
+			try
+			{
+				for (Future<Replica> result : center.getPool().invokeAll(replicas))
+					result.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while running the replicas", e);
+			}
+			catch (ExecutionException e)
+			{
+				throw new IllegalStateException("Could not run the replicas", e.getCause());
+			}
+
+			//Try to swap neighbours, alternating which pairs are tried.
+			for (int r=round % 2; r+1<replicas.size(); r+=2)
+			{
+				Replica cold = replicas.get(r);
+				Replica hot = replicas.get(r+1);
+				double odds = (hot.i_fitness - cold.i_fitness) * (1 / cold.i_temperature - 1 / hot.i_temperature);
+				swapsTried++;
+				if (odds >= 0 || random.nextDouble() < Math.exp(odds))
+				{
+					Alignment alignment = cold.i_current;
+					float[][] pairs = cold.i_pairs;
+					double fitness = cold.i_fitness;
+					cold.i_pairs = hot.i_pairs;
+					cold.setState(hot.i_current, hot.i_fitness);
+					hot.i_pairs = pairs;
+					hot.setState(alignment, fitness);
+					swaps++;
+				}
+			}
+
+			for (Replica replica : replicas)
+			{
+				if (replica.i_bestFitness > bestScore)
+				{
+					best = replica.i_best;
+					bestScore = replica.i_bestFitness;
+				}
+			}
+			round++;
+
+			if (round % 100 == 0)
+			{
+				logger.info("Number of Rounds: " + round);
+				logger.info("Best ever: " + bestScore);
+				logger.info("Acceptance: " + getAcceptanceString(replicas));
+			}
+
+			if (!i_listeners.isEmpty())
+			{
+				GenerationSnapshot snapshot = new GenerationSnapshot(round, best, bestScore, measureDiversity(replicas),
+						i_statistics.getEvaluationsSoFar(), i_statistics.getElapsedMillisSoFar(),
+						new String[0], new double[0], getOperatorNames(), getOperatorProbabilities());
+				for (ProgressListener listener : i_listeners)
+					listener.generationCompleted(snapshot);
+			}
+		} while (!i_termination.isMet(bestScore));
+
+		i_statistics.finish(i_termination.getRounds(), best.getFitness());
+		i_statistics.recordTermination(i_termination.getReason(), i_termination.getUpperBound(),
+				i_termination.getPlateauSlope());
+
+		logger.info("Found solution");
+		logger.info("Number of Rounds: " + i_termination.getRounds());
+		logger.info("Stopped on: " + i_termination.getReason());
+		logger.info("Best ever: " + bestScore);
+		logger.info("Acceptance: " + getAcceptanceString(replicas));
+		logger.info("Swaps: " + swaps + "/" + swapsTried);
+		logger.info("Fitness Evaluations: " + i_statistics.getEvaluations());
+
+		return best;
+	}
+
+	/**
+	   Fills in the scores of every pair of rows in the alignment, and
+	   returns their total.  Pairs whose rows are the same objects as
+	   in the replica's current alignment are copied from it instead of
+	   being scored; the replica may be null.
+	 */
+	private static double scorePairs(Alignment anAlignment, Replica aReplica, float[][] pairs)
+	{
+		Scorer scorer = InfoCenter.getCenter().getScorer();
+		int size = anAlignment.getSize();
+		boolean[] changed = new boolean[size];
+		for (int i=0; i<size; i++)
+		{
+			changed[i] = aReplica == null
+					|| anAlignment.getSequenceAt(i) != aReplica.i_current.getSequenceAt(i);
+		}
+
+		double fitness = 0;
+		for (int i=0; i<size; i++)
+		{
+			for (int j=i+1; j<size; j++)
+			{
+				if (changed[i] || changed[j])
+					pairs[i][j] = scorer.compareSequences(anAlignment.getSequenceAt(i), anAlignment.getSequenceAt(j));
+				else
+					pairs[i][j] = aReplica.i_pairs[i][j];
+				fitness += pairs[i][j];
+			}
+		}
+		InfoCenter.getCenter().recordEvaluation();
+		return fitness;
+	}
+
+	/**
+	   Returns the average fraction of rows that differ between the
+	   alignments of two replicas.
+	 */
+	private static double measureDiversity(List<Replica> replicas)
+	{
+		double total = 0;
+		int pairs = 0;
+		for (int a=0; a<replicas.size(); a++)
+		{
+			for (int b=a+1; b<replicas.size(); b++)
+			{
+				Alignment first = replicas.get(a).i_current;
+				Alignment second = replicas.get(b).i_current;
+				int different = 0;
+				for (int r=0; r<first.getSize(); r++)
+				{
+					if (first.getSequenceAt(r).getFingerprint() != second.getSequenceAt(r).getFingerprint())
+						different++;
+				}
+				total += (double) different / first.getSize();
+				pairs++;
+			}
+		}
+		return pairs == 0 ? 0 : total / pairs;
+	}
+
+	/**
+	   Returns the temperature and share of steps taken for each replica.
+	 */
+	private static String getAcceptanceString(List<Replica> replicas)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Replica replica : replicas)
+		{
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append(String.format("T=%.2f: %.3f", replica.i_temperature,
+					replica.i_proposed == 0 ? 0 : (double) replica.i_accepted / replica.i_proposed));
+		}
+		return sb.toString();
+	}
+
+	/**
+	   Returns the class names of the mutations.
+	 */
+	private String[] getOperatorNames()
+	{
+		String[] names = new String[i_mutationOps.getPopulationSize()];
+		for (int i=0; i<names.length; i++)
+			names[i] = i_mutationOps.getIndividualAt(i).getClass().getSimpleName();
+		return names;
+	}
+
+	/**
+	   Returns the chance of proposing each mutation, which is the same
+	   for all of them.
+	 */
+	private double[] getOperatorProbabilities()
+	{
+		double[] probabilities = new double[i_mutationOps.getPopulationSize()];
+		Arrays.fill(probabilities, 1.0 / probabilities.length);
+		return probabilities;
+	}
+
+	/**
+	   Self-check: a replica scores again only the pairs with a changed
+	   row, so after every round the fitness it keeps for its current
+	   and best alignments should still match a full scoring of them.
+	   The replica is run hot, so that it takes many worse steps too.
+	 */
+	public static void main(String[] args)
+	{
+		TemperingAligner aligner = new TemperingAligner(getDefaultProperties());
+		String[] inputs = new TestCases().getAAHemoGlobinSequences();
+		Replica replica = aligner.new Replica(new Alignment(inputs, 170), aligner.i_maxTemperature, 1);
+		Scorer scorer = InfoCenter.getCenter().getScorer();
+		boolean ok = true;
+		for (int round=0; round<200; round++)
+		{
+			replica.call();
+			Alignment[] kept = {replica.i_current, replica.i_best};
+			double[] fitness = {replica.i_fitness, replica.i_bestFitness};
+			for (int k=0; k<kept.length; k++)
+			{
+				double full = 0;
+				for (int i=0; i<kept[k].getSize(); i++)
+				{
+					for (int j=i+1; j<kept[k].getSize(); j++)
+						full += scorer.compareSequences(kept[k].getSequenceAt(i), kept[k].getSequenceAt(j));
+				}
+				ok &= full == fitness[k];
+			}
+		}
+		System.out.println("Accepted " + replica.i_accepted + " of " + replica.i_proposed
+				+ " steps, best " + replica.i_bestFitness + (ok ? " OK" : " FAILED"));
+		if (!ok)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,263 @@
+package gamsa;
+
+/**
+   Decides when a search has gone on long enough.  The search always
+   stops after the maximum number of rounds (if there is one) or once the
+   best fitness has not changed for the given number of rounds.  It can
+   also stop once the best fitness is close enough to an upper bound on
+   the fitness, or once the best fitness has stopped climbing: the slope
+   of the best fitness over a window of recent rounds is fitted, and the
+   search stops when even the high end of its likely range is below the
+   minimum slope.  Finally, the search stops if it runs past its
+   deadline or is cancelled.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class TerminationCriterion
+{
+	//Reasons for stopping.
+	public static final String MAX_ROUNDS = "maxRounds";
+	public static final String UNCHANGED = "unchanged";
+	public static final String BOUND_RATIO = "boundRatio";
+	public static final String PLATEAU = "plateau";
+	public static final String DEADLINE = "deadline";
+	public static final String CANCELLED = "cancelled";
+	//Not a search at all: the input was small enough to align exactly.
+	public static final String EXACT = "exact";
+
+	//Roughly a 95% confidence level for the slope.
+	private static final double CONFIDENCE = 2.0;
+
+	private int i_maxRounds;
+	private int i_unchangedRoundsNeeded;
+
+	//0 turns these off.
+	private double i_boundRatio;
+	private double i_plateauMinSlope;
+	private int i_plateauWindow;
+
+	private double i_upperBound = Double.NaN;
+
+	private long i_bestLastRound;
+	private int i_numTimesUnchanged;
+	private int i_numRounds;
+
+	//Best fitness of recent rounds, as a ring.
+	private double[] i_history;
+	private int i_historySize;
+	private double i_plateauSlope = Double.NaN;
+
+	//Time (from System.currentTimeMillis()) to stop at, or 0 for none.
+	private long i_deadline;
+	private CancellationToken i_token;
+
+	private String i_reason;
+
+	/**
+	   Constructor.  A maxRounds of 0 or less means there is no maximum.
+	 */
+	public TerminationCriterion(int maxRounds, int unchangedRoundsNeeded)
+	{
+		i_maxRounds = maxRounds;
+		i_unchangedRoundsNeeded = unchangedRoundsNeeded;
+		reset();
+	}
+
+	/**
+	   Stops the search once the best fitness is within the ratio of the
+	   upper bound.  For a positive bound, this means best/bound reaches
+	   the ratio.  0 turns this off.
+	 */
+	public void setBoundRatio(double aRatio)
+	{
+		i_boundRatio = aRatio;
+	}
+
+	/**
+	   Stops the search once the best fitness climbs by less than the
+	   minimum slope per round, over the specified number of rounds.
+	   A slope of 0 turns this off.
+	 */
+	public void setPlateau(int aWindow, double aMinSlope)
+	{
+		i_plateauWindow = aWindow;
+		i_plateauMinSlope = aMinSlope;
+		reset();
+	}
+
+	/**
+	   Sets the upper bound on the fitness of the current search.
+	 */
+	public void setUpperBound(double aBound)
+	{
+		i_upperBound = aBound;
+	}
+
+	/**
+	   Returns the upper bound, or NaN if there is none.
+	 */
+	public double getUpperBound()
+	{
+		return i_upperBound;
+	}
+
+	/**
+	   Sets the time (as from System.currentTimeMillis()) at which the
+	   search should stop.  0 means there is no deadline.
+	 */
+	public void setDeadline(long aDeadline)
+	{
+		i_deadline = aDeadline;
+	}
+
+	/**
+	   Sets the token checked for cancellation.  May be null.
+	 */
+	public void setCancellationToken(CancellationToken aToken)
+	{
+		i_token = aToken;
+	}
+
+	/**
+	   Returns true if the search was cancelled or is past its deadline.
+	   Unlike isMet(), this does not count as a round.
+	 */
+	public boolean isInterrupted()
+	{
+		if (i_token != null && i_token.isCancelled())
+			return stop(CANCELLED);
+		if (i_deadline > 0 && System.currentTimeMillis() >= i_deadline)
+			return stop(DEADLINE);
+		return false;
+	}
+
+	/**
+	   Clears everything from the last search.
+	 */
+	public void reset()
+	{
+		i_bestLastRound = Long.MIN_VALUE;
+		i_numTimesUnchanged = 0;
+		i_numRounds = 0;
+		i_history = new double[Math.max(i_plateauWindow, 0)];
+		i_historySize = 0;
+		i_plateauSlope = Double.NaN;
+		i_upperBound = Double.NaN;
+		i_deadline = 0;
+		i_token = null;
+		i_reason = null;
+	}
+
+	/**
+	   Called once a round with the best fitness in the population.
+	   Returns true if the search should stop.
+	 */
+	public boolean isMet(double aBestFitness)
+	{
+		if (isInterrupted())
+			return true;
+		if (i_maxRounds > 0 && i_numRounds >= i_maxRounds)
+			return stop(MAX_ROUNDS);
+		i_numRounds++;
+
+		if (Math.round(aBestFitness) == i_bestLastRound)
+			i_numTimesUnchanged++;
+		else
+		{
+			i_numTimesUnchanged = 0;
+			i_bestLastRound = Math.round(aBestFitness);
+		}
+		if (i_unchangedRoundsNeeded <= i_numTimesUnchanged)
+			return stop(UNCHANGED);
+
+		if (i_boundRatio > 0 && !Double.isNaN(i_upperBound)
+				&& aBestFitness >= i_upperBound - (1 - i_boundRatio) * Math.abs(i_upperBound))
+			return stop(BOUND_RATIO);
+
+		if (i_history.length > 1)
+		{
+			i_history[i_historySize++ % i_history.length] = aBestFitness;
+			if (i_historySize >= i_history.length)
+			{
+				updatePlateauSlope();
+				if (i_plateauMinSlope > 0 && i_plateauSlope < i_plateauMinSlope)
+					return stop(PLATEAU);
+			}
+		}
+		return false;
+	}
+
+	/**
+	   Fits a line to the best fitness over the window, and keeps the
+	   high end of the likely range of its slope.
+	 */
+	private void updatePlateauSlope()
+	{
+		int n = i_history.length;
+		double meanX = (n - 1) / 2.0;
+		double meanY = 0;
+		for (int k=0; k<n; k++)
+			meanY += valueAt(k);
+		meanY /= n;
+
+		double sxx = 0;
+		double sxy = 0;
+		for (int k=0; k<n; k++)
+		{
+			sxx += (k - meanX) * (k - meanX);
+			sxy += (k - meanX) * (valueAt(k) - meanY);
+		}
+		double slope = sxy / sxx;
+
+		double residuals = 0;
+		for (int k=0; k<n; k++)
+		{
+			double error = valueAt(k) - meanY - slope * (k - meanX);
+			residuals += error * error;
+		}
+		double standardError = n > 2 ? Math.sqrt(residuals / (n - 2) / sxx) : 0;
+		i_plateauSlope = slope + CONFIDENCE * standardError;
+	}
+
+	/**
+	   Returns the k-th oldest value in the window.
+	 */
+	private double valueAt(int k)
+	{
+		return i_history[(i_historySize + k) % i_history.length];
+	}
+
+	/**
+	   Records why the search stopped.
+	 */
+	private boolean stop(String aReason)
+	{
+		i_reason = aReason;
+		return true;
+	}
+
+	/**
+	   Returns the number of rounds executed.
+	 */
+	public int getRounds()
+	{
+		return i_numRounds;
+	}
+
+	/**
+	   Returns why the search stopped, or null if it has not.
+	 */
+	public String getReason()
+	{
+		return i_reason;
+	}
+
+	/**
+	   Returns the high end of the likely slope of the best fitness over
+	   the last window, or NaN if there have not been enough rounds.
+	 */
+	public double getPlateauSlope()
+	{
+		return i_plateauSlope;
+	}
+}
@@ -116,10 +116,47 @@ public class TestCases
 		out.println("Population Size: " + properties.getProperty("populationSize"));
 		out.println("Number of Unchanged Rounds: " + properties.getProperty("unchangedRoundsNeeded"));
 		out.println("Number of Total Rounds: " + aligner.getNumberOfRoundsExecuted());
+		out.println("Fitness Evaluations: " + aligner.getStatistics().getEvaluations());
+		out.println("Fitness Cache Hits: " + aligner.getStatistics().getCacheHits()
+				+ String.format(" (%.1f%%)", 100 * aligner.getStatistics().getCacheHitRate()));
+		out.println("Stopped On: " + aligner.getStatistics().getTerminationReason());
+		if (!Double.isNaN(aligner.getStatistics().getUpperBound()))
+			out.println("Upper Bound: " + aligner.getStatistics().getUpperBound()
+					+ " (best/bound " + aligner.getStatistics().getBoundRatio() + ")");
+		out.println("Rejected Early: " + aligner.getStatistics().getRejections());
+		out.println("Duplicates Replaced: " + aligner.getStatistics().getDuplicatesReplaced());
+		out.println("Mean Diversity: " + aligner.getStatistics().getMeanDiversity());
+		if (aligner.getStatistics().getSurrogateSamples() > 0)
+		{
+			out.println("Screened Offspring: " + aligner.getStatistics().getScreenedOffspring());
+			out.println("Surrogate Error: " + aligner.getStatistics().getSurrogateMeanError()
+					+ " +/- " + aligner.getStatistics().getSurrogateErrorStdDev());
+		}
 		out.println("Goodbye, and thank you for flying GAMSA.");
 		out.println("******");
 	}
 	
+	/**
+	 * Runs the aligner on the hemoglobin sequences with the specified time
+	 * limit, and returns whether it stopped within half a second of it.
+	 * The aligners call this from their own main(), as a self-check.
+	 */
+	static boolean checkTimeLimit(Aligner anAligner, long aMillis)
+	{
+		i_center.setScorer(new Blosum62Scorer());
+		anAligner.setTimeLimit(aMillis);
+		String[] inputSequences = new TestCases().getAAHemoGlobinSequences();
+		
+		long startTime = System.currentTimeMillis();
+		Individual best = anAligner.findSolution(inputSequences);
+		long elapsed = System.currentTimeMillis() - startTime;
+		
+		boolean inTime = elapsed <= aMillis + 500;
+		out.println(anAligner.getClass().getSimpleName() + ": " + elapsed + " ms with a limit of "
+				+ aMillis + " ms, fitness " + best.getFitness() + (inTime ? " OK" : " FAILED"));
+		return inTime;
+	}
+	
 	public String[] getDNAMickeyMouseSequences()
 	{		
 		String s1 = "ATTGCCATT";
@@ -0,0 +1,36 @@
+package gamsa.event;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+   Flight Recorder event covering one round of the search, from
+   reproduction through to the termination check.  Off unless enabled
+   in the recording's settings.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+@Name("gamsa.Generation")
+@Label("Generation")
+@Category({"GAMSA"})
+@Description("One round of the genetic algorithm")
+@Enabled(false)
+public class GenerationEvent extends Event
+{
+	@Label("Round")
+	public int round;
+
+	@Label("Best Fitness")
+	public double bestFitness;
+
+	@Label("Mean Fitness")
+	public double meanFitness;
+
+	@Label("Evaluations")
+	@Description("Alignments scored in full during the round")
+	public long evaluations;
+}
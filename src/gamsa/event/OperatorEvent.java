@@ -0,0 +1,34 @@
+package gamsa.event;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+   Flight Recorder event covering one application of an operator,
+   including scoring its children.  Off unless enabled in the
+   recording's settings.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+@Name("gamsa.Operator")
+@Label("Operator Application")
+@Category({"GAMSA"})
+@Description("A crossover or mutation applied to its parents, and its children scored")
+@Enabled(false)
+public class OperatorEvent extends Event
+{
+	@Label("Operator")
+	public Class<?> operator;
+
+	@Label("Parent Fitness")
+	@Description("Total fitness of the parents")
+	public double parentFitness;
+
+	@Label("Child Fitness")
+	@Description("Total fitness of the children")
+	public double childFitness;
+}
@@ -0,0 +1,33 @@
+package gamsa.event;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+   Flight Recorder event covering the scoring of one alignment, or
+   part of one.  Off unless enabled in the recording's settings.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+@Name("gamsa.Scoring")
+@Label("Scoring")
+@Category({"GAMSA"})
+@Description("Pairs of sequences compared with the scorer")
+@Enabled(false)
+public class ScoringEvent extends Event
+{
+	@Label("Pairs")
+	public int pairs;
+
+	@Label("Columns")
+	@Description("Columns compared, over all pairs")
+	public long columns;
+
+	@Label("Rejected")
+	@Description("True if scoring stopped early at a cutoff")
+	public boolean rejected;
+}
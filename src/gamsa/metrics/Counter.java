@@ -0,0 +1,37 @@
+package gamsa.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+   A count that only goes up.  Cheap to update from many threads.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class Counter
+{
+	private LongAdder i_count = new LongAdder();
+
+	/**
+	   Adds one.
+	 */
+	public void increment()
+	{
+		i_count.increment();
+	}
+
+	/**
+	   Adds the specified amount.
+	 */
+	public void add(long anAmount)
+	{
+		i_count.add(anAmount);
+	}
+
+	/**
+	   Returns the count.
+	 */
+	public long getCount()
+	{
+		return i_count.sum();
+	}
+}
@@ -0,0 +1,86 @@
+package gamsa.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+   Counts observations in buckets with fixed upper bounds, along with
+   their total, in the form Prometheus expects.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class Histogram
+{
+	private double[] i_bounds;
+
+	//One more bucket than bounds, for anything above the last bound.
+	private LongAdder[] i_buckets;
+	private DoubleAdder i_sum = new DoubleAdder();
+
+	/**
+	   Constructor.  The bounds must be in increasing order.
+	 */
+	public Histogram(double[] bounds)
+	{
+		i_bounds = bounds.clone();
+		i_buckets = new LongAdder[bounds.length + 1];
+		for (int i=0; i<i_buckets.length; i++)
+			i_buckets[i] = new LongAdder();
+	}
+
+	/**
+	   Records an observation.
+	 */
+	public void observe(double aValue)
+	{
+		int i = 0;
+		while (i < i_bounds.length && aValue > i_bounds[i])
+			i++;
+		i_buckets[i].increment();
+		i_sum.add(aValue);
+	}
+
+	/**
+	   Returns the upper bounds of the buckets, not counting the last
+	   bucket, which has none.
+	 */
+	public double[] getBounds()
+	{
+		return i_bounds.clone();
+	}
+
+	/**
+	   Returns the number of observations at or below each bound, with
+	   the total number of observations last.
+	 */
+	public long[] getCumulativeCounts()
+	{
+		long[] counts = new long[i_buckets.length];
+		long total = 0;
+		for (int i=0; i<i_buckets.length; i++)
+		{
+			total += i_buckets[i].sum();
+			counts[i] = total;
+		}
+		return counts;
+	}
+
+	/**
+	   Returns the number of observations.
+	 */
+	public long getCount()
+	{
+		long total = 0;
+		for (LongAdder bucket : i_buckets)
+			total += bucket.sum();
+		return total;
+	}
+
+	/**
+	   Returns the total of all observations.
+	 */
+	public double getSum()
+	{
+		return i_sum.sum();
+	}
+}
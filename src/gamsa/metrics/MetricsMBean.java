@@ -0,0 +1,133 @@
+package gamsa.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+   Shows the values in the registry as read-only MBean attributes.
+   Each counter also gets a name_per_second attribute, the rate since
+   that attribute was last read.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class MetricsMBean implements DynamicMBean
+{
+	private static final String PER_SECOND = "_per_second";
+
+	private MetricsRegistry i_registry;
+
+	//Time and count at the last read of each rate.
+	private Map<String,long[]> i_lastReads = new HashMap<String,long[]>();
+
+	/**
+	   Constructor.
+	 */
+	public MetricsMBean(MetricsRegistry aRegistry)
+	{
+		i_registry = aRegistry;
+	}
+
+	/**
+	   Returns the value of a metric, or the rate of a counter.
+	   @see javax.management.DynamicMBean#getAttribute(java.lang.String)
+	 */
+	public Object getAttribute(String aName) throws AttributeNotFoundException
+	{
+		Map<String,Number> values = i_registry.getValues();
+		if (aName.endsWith(PER_SECOND))
+		{
+			Number count = values.get(aName.substring(0, aName.length() - PER_SECOND.length()));
+			if (count != null)
+				return getRate(aName, count.longValue());
+		}
+		Number value = values.get(aName);
+		if (value == null)
+			throw new AttributeNotFoundException(aName);
+		return value.doubleValue();
+	}
+
+	/**
+	   Returns the rate of a counter since the last time it was read.
+	 */
+	private synchronized double getRate(String aName, long aCount)
+	{
+		long now = System.nanoTime();
+		long[] last = i_lastReads.put(aName, new long[] {now, aCount});
+		if (last == null || now == last[0])
+			return 0;
+		return (aCount - last[1]) * 1e9 / (now - last[0]);
+	}
+
+	/**
+	   @see javax.management.DynamicMBean#getAttributes(java.lang.String[])
+	 */
+	public AttributeList getAttributes(String[] names)
+	{
+		AttributeList list = new AttributeList();
+		for (String name : names)
+		{
+			try
+			{
+				list.add(new Attribute(name, getAttribute(name)));
+			}
+			catch (AttributeNotFoundException e)
+			{
+				//Left out, as the interface expects.
+			}
+		}
+		return list;
+	}
+
+	/**
+	   Lists the metrics there are right now.
+	   @see javax.management.DynamicMBean#getMBeanInfo()
+	 */
+	public MBeanInfo getMBeanInfo()
+	{
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name : i_registry.getValues().keySet())
+			attributes.add(new MBeanAttributeInfo(name, "double", name, true, false, false));
+		for (String name : i_registry.getCounterNames())
+			attributes.add(new MBeanAttributeInfo(name + PER_SECOND, "double",
+					"Rate of " + name + " since it was last read", true, false, false));
+		return new MBeanInfo(getClass().getName(), "GAMSA search metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+	}
+
+	/**
+	   Metrics are read-only.
+	   @see javax.management.DynamicMBean#setAttribute(javax.management.Attribute)
+	 */
+	public void setAttribute(Attribute anAttribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException(anAttribute.getName() + " is read-only");
+	}
+
+	/**
+	   Metrics are read-only.
+	   @see javax.management.DynamicMBean#setAttributes(javax.management.AttributeList)
+	 */
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+
+	/**
+	   There are no operations.
+	   @see javax.management.DynamicMBean#invoke(java.lang.String, java.lang.Object[], java.lang.String[])
+	 */
+	public Object invoke(String anAction, Object[] params, String[] signature)
+	{
+		throw new UnsupportedOperationException(anAction);
+	}
+}
@@ -0,0 +1,245 @@
+package gamsa.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+   Holds the counters, histograms and gauges describing running
+   searches, and writes them out for Prometheus.  There is one
+   registry, shared by everything in the JVM.
+
+   Counters and histograms are updated as work is done; gauges are set
+   to a new value once a round.  A gauge may have a single label, such
+   as the name of an operator.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class MetricsRegistry
+{
+	//Name the registry is given as an MBean.
+	public static final String OBJECT_NAME = "gamsa:type=Metrics";
+
+	protected static MetricsRegistry c_registry = new MetricsRegistry();
+
+	private Map<String,Counter> i_counters = new ConcurrentSkipListMap<String,Counter>();
+	private Map<String,Histogram> i_histograms = new ConcurrentSkipListMap<String,Histogram>();
+
+	//Gauge name, then label (empty if there is none), then value.
+	private Map<String,Map<String,Double>> i_gauges = new ConcurrentSkipListMap<String,Map<String,Double>>();
+
+	private Map<String,String> i_help = new ConcurrentSkipListMap<String,String>();
+
+	/**
+	   Private constructor.  Use getRegistry() instead.
+	 */
+	private MetricsRegistry()
+	{
+	}
+
+	/**
+	   Gets the instance of this class.
+	 */
+	public static MetricsRegistry getRegistry()
+	{
+		return c_registry;
+	}
+
+	/**
+	   Returns the counter with the specified name, creating it if needed.
+	 */
+	public Counter counter(String aName, String aHelp)
+	{
+		Counter counter = i_counters.get(aName);
+		if (counter == null)
+		{
+			synchronized (this)
+			{
+				counter = i_counters.get(aName);
+				if (counter == null)
+				{
+					counter = new Counter();
+					i_help.put(aName, aHelp);
+					i_counters.put(aName, counter);
+				}
+			}
+		}
+		return counter;
+	}
+
+	/**
+	   Returns the histogram with the specified name, creating it with
+	   the bucket bounds if needed.
+	 */
+	public Histogram histogram(String aName, String aHelp, double[] bounds)
+	{
+		Histogram histogram = i_histograms.get(aName);
+		if (histogram == null)
+		{
+			synchronized (this)
+			{
+				histogram = i_histograms.get(aName);
+				if (histogram == null)
+				{
+					histogram = new Histogram(bounds);
+					i_help.put(aName, aHelp);
+					i_histograms.put(aName, histogram);
+				}
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	   Sets a gauge with no label.
+	 */
+	public void setGauge(String aName, String aHelp, double aValue)
+	{
+		setGauge(aName, null, null, aHelp, aValue);
+	}
+
+	/**
+	   Sets a gauge for one value of its label.
+	 */
+	public void setGauge(String aName, String aLabel, String aLabelValue, String aHelp, double aValue)
+	{
+		Map<String,Double> values = i_gauges.get(aName);
+		if (values == null)
+		{
+			synchronized (this)
+			{
+				values = i_gauges.get(aName);
+				if (values == null)
+				{
+					values = new ConcurrentSkipListMap<String,Double>();
+					i_help.put(aName, aHelp);
+					i_gauges.put(aName, values);
+				}
+			}
+		}
+		String label = aLabel == null ? "" : aLabel + "=\"" + escape(aLabelValue) + "\"";
+		values.put(label, aValue);
+	}
+
+	/**
+	   Returns every value, keyed by a flat name: counters by their
+	   name, histograms as name_count and name_sum, and labeled gauges
+	   as name.labelValue.
+	 */
+	public Map<String,Number> getValues()
+	{
+		Map<String,Number> values = new TreeMap<String,Number>();
+		for (Map.Entry<String,Counter> e : i_counters.entrySet())
+			values.put(e.getKey(), e.getValue().getCount());
+		for (Map.Entry<String,Histogram> e : i_histograms.entrySet())
+		{
+			values.put(e.getKey() + "_count", e.getValue().getCount());
+			values.put(e.getKey() + "_sum", e.getValue().getSum());
+		}
+		for (Map.Entry<String,Map<String,Double>> e : i_gauges.entrySet())
+		{
+			for (Map.Entry<String,Double> v : e.getValue().entrySet())
+			{
+				String label = v.getKey();
+				if (label.isEmpty())
+					values.put(e.getKey(), v.getValue());
+				else
+				{
+					//Just the value, without the label name and quotes.
+					String value = label.substring(label.indexOf('"') + 1, label.length() - 1);
+					values.put(e.getKey() + "." + value, v.getValue());
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	   Returns the names of the counters.
+	 */
+	public Iterable<String> getCounterNames()
+	{
+		return i_counters.keySet();
+	}
+
+	/**
+	   Writes every metric in the Prometheus text format.
+	 */
+	public String toPrometheusText()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String,Counter> e : i_counters.entrySet())
+		{
+			writeHeader(sb, e.getKey(), "counter");
+			sb.append(e.getKey()).append(' ').append(e.getValue().getCount()).append('\n');
+		}
+		for (Map.Entry<String,Histogram> e : i_histograms.entrySet())
+		{
+			String name = e.getKey();
+			Histogram histogram = e.getValue();
+			writeHeader(sb, name, "histogram");
+			double[] bounds = histogram.getBounds();
+			long[] counts = histogram.getCumulativeCounts();
+			for (int i=0; i<bounds.length; i++)
+				sb.append(name).append("_bucket{le=\"").append(bounds[i]).append("\"} ").append(counts[i]).append('\n');
+			sb.append(name).append("_bucket{le=\"+Inf\"} ").append(counts[bounds.length]).append('\n');
+			sb.append(name).append("_sum ").append(histogram.getSum()).append('\n');
+			sb.append(name).append("_count ").append(counts[bounds.length]).append('\n');
+		}
+		for (Map.Entry<String,Map<String,Double>> e : i_gauges.entrySet())
+		{
+			writeHeader(sb, e.getKey(), "gauge");
+			for (Map.Entry<String,Double> v : e.getValue().entrySet())
+			{
+				sb.append(e.getKey());
+				if (!v.getKey().isEmpty())
+					sb.append('{').append(v.getKey()).append('}');
+				sb.append(' ').append(v.getValue()).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	   Registers the registry with the platform MBean server, unless
+	   it is already there.
+	 */
+	public synchronized void registerMBean()
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name))
+				server.registerMBean(new MetricsMBean(this), name);
+		}
+		catch (JMException e)
+		{
+			throw new IllegalStateException("Could not register " + OBJECT_NAME, e);
+		}
+	}
+
+	/**
+	   Writes the HELP and TYPE lines for a metric.
+	 */
+	private void writeHeader(StringBuilder sb, String aName, String aType)
+	{
+		String help = i_help.get(aName);
+		if (help != null)
+			sb.append("# HELP ").append(aName).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(aName).append(' ').append(aType).append('\n');
+	}
+
+	/**
+	   Escapes a label value for the Prometheus text format.
+	 */
+	private static String escape(String aValue)
+	{
+		return aValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
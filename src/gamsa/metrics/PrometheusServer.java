@@ -0,0 +1,96 @@
+package gamsa.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+   Serves the registry in the Prometheus text format at /metrics.
+   Only listens on the loopback address.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class PrometheusServer
+{
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static PrometheusServer c_server = null;
+
+	private HttpServer i_server;
+
+	/**
+	   Private constructor.  Use start() instead.
+	 */
+	private PrometheusServer(final MetricsRegistry aRegistry, int aPort) throws IOException
+	{
+		i_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), aPort), 0);
+		i_server.createContext("/metrics", new HttpHandler()
+		{
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				byte[] body = aRegistry.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		//The server's thread takes after the thread that starts it, so
+		//start it from a daemon thread to keep it from holding up exit.
+		Thread starter = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				i_server.start();
+			}
+		}, "gamsa-metrics-start");
+		starter.setDaemon(true);
+		starter.start();
+		try
+		{
+			starter.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	   Starts serving the registry on the specified port, unless a
+	   server is already running.  Returns the running server.
+	 */
+	public static synchronized PrometheusServer start(int aPort) throws IOException
+	{
+		if (c_server == null)
+			c_server = new PrometheusServer(MetricsRegistry.getRegistry(), aPort);
+		return c_server;
+	}
+
+	/**
+	   Returns the port the server is listening on.
+	 */
+	public int getPort()
+	{
+		return i_server.getAddress().getPort();
+	}
+
+	/**
+	   Stops the server.
+	 */
+	public static synchronized void stop()
+	{
+		if (c_server != null)
+		{
+			c_server.i_server.stop(0);
+			c_server = null;
+		}
+	}
+}
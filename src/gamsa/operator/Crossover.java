@@ -25,4 +25,13 @@ public abstract class Crossover extends Operator
     		
     		return perform(parents[0], parents[1]);
     }
+
+    /**
+       Returns the number of children produced by one application.
+       @see gamsa.operator.Operator#getChildCount()
+     */
+    public int getChildCount()
+    {
+        return 2;
+    }
 }
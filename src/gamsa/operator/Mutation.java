@@ -29,4 +29,13 @@ public abstract class Mutation extends Operator
 		return child;
 		
 	}
+
+	/**
+	   Returns the number of children produced by one application.
+	   @see gamsa.operator.Operator#getChildCount()
+	 */
+	public int getChildCount()
+	{
+		return 1;
+	}
 }
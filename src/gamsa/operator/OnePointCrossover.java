@@ -42,6 +42,8 @@ public class OnePointCrossover extends Crossover
 		
 		newAlign1 = new Alignment();
 		newAlign2 = new Alignment();
+		newAlign1.setRowWeights(mother.getRowWeights());
+		newAlign2.setRowWeights(father.getRowWeights());
 		
 		// get a random crossover point
 		crossoverPoint = ic.getRandomInt(mother.getSequenceLength());
@@ -17,6 +17,15 @@ public abstract class Operator extends Individual
 	private double i_currentGenerationScore;
 	private int i_useCount;
 	
+	//Cost of every application so far.
+	private long i_applications;
+	private long i_totalNanos;
+	private long i_totalBytes;
+	
+	//Totals of every score added, and of just the improvements.
+	private double i_totalScore;
+	private double i_totalImprovement;
+	
 	/**
 	   Constructor.
 	 */
@@ -34,6 +43,80 @@ public abstract class Operator extends Individual
 	{
 		i_currentGenerationScore += d;
 		i_useCount++;
+		i_totalScore += d;
+		if (d > 0)
+			i_totalImprovement += d;
+	}
+	
+	/**
+	   Returns the fitness as of the last round, without moving it on
+	   to the next round as getFitness() does.
+	 */
+	public double getRecentFitness()
+	{
+		return i_fitness;
+	}
+	
+	/**
+	   Sets the fitness to start from, such as one saved by an earlier run.
+	 */
+	public void setRecentFitness(double aFitness)
+	{
+		i_fitness = aFitness;
+	}
+	
+	/**
+	   Adds the cost of one application of the operator: the time
+	   taken, in nanoseconds, and the memory allocated, in bytes
+	   (negative if it could not be measured).
+	 */
+	public void addCost(long aNanos, long aBytes)
+	{
+		i_applications++;
+		i_totalNanos += aNanos;
+		if (aBytes > 0)
+			i_totalBytes += aBytes;
+	}
+	
+	/**
+	   Returns the number of times the operator has been applied.
+	 */
+	public long getApplications()
+	{
+		return i_applications;
+	}
+	
+	/**
+	   Returns the average score added per application.
+	 */
+	public double getMeanScore()
+	{
+		return i_applications == 0 ? 0 : i_totalScore / i_applications;
+	}
+	
+	/**
+	   Returns the average improvement per application, counting
+	   scores below 0 as 0.
+	 */
+	public double getMeanImprovement()
+	{
+		return i_applications == 0 ? 0 : i_totalImprovement / i_applications;
+	}
+	
+	/**
+	   Returns the average time taken by an application, in nanoseconds.
+	 */
+	public double getMeanNanos()
+	{
+		return i_applications == 0 ? 0 : (double) i_totalNanos / i_applications;
+	}
+	
+	/**
+	   Returns the average memory allocated by an application, in bytes.
+	 */
+	public double getMeanBytes()
+	{
+		return i_applications == 0 ? 0 : (double) i_totalBytes / i_applications;
 	}
 	
 	/**
@@ -57,4 +140,9 @@ public abstract class Operator extends Individual
 	   between Crossovers and Mutations.
 	 */
 	public abstract Alignment[] performOp(Alignment... parents);
+	
+	/**
+	   Returns the number of children produced by one application.
+	 */
+	public abstract int getChildCount();
 }
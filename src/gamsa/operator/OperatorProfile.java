@@ -0,0 +1,179 @@
+package gamsa.operator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+   Saves how well each operator did at the end of a run, so that the
+   next run with the same scorer can start from there instead of from
+   nothing.  Operators that barely help on DNA but dominate on protein
+   (or the reverse) are then favoured or avoided from the first round.
+
+   A profile is a properties file with, for each operator class, its
+   average score (the fitness used by the roulette wheel), average
+   improvement, average time and number of uses (used by the other
+   selection policies).  There is one file per scorer.  Each save is
+   averaged with what the file held when it was loaded, with the older
+   runs counting for half as much each time.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class OperatorProfile
+{
+	//Most uses a saved average counts as, so that new runs can still
+	// move away from it quickly.
+	private static final long MAX_PRIOR_USES = 20;
+
+	private File i_file;
+
+	//What the file held when it was loaded.
+	private Properties i_loaded = new Properties();
+
+	/**
+	   Constructor.  The profile is kept in the directory, in a file
+	   named after the scorer class.
+	 */
+	public OperatorProfile(File aDirectory, Class<?> aScorerClass)
+	{
+		i_file = new File(aDirectory, aScorerClass.getSimpleName() + ".operators");
+	}
+
+	/**
+	   Returns the profile's file.
+	 */
+	public File getFile()
+	{
+		return i_file;
+	}
+
+	/**
+	   Loads the profile, if the file exists, into the operators of
+	   the selectors.  Returns the number of operators found in it.
+	 */
+	public int load(OperatorSelector<?>... selectors) throws IOException
+	{
+		Properties p = new Properties();
+		if (i_file.exists())
+		{
+			InputStream in = new FileInputStream(i_file);
+			try
+			{
+				p.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		i_loaded = p;
+
+		int found = 0;
+		for (OperatorSelector<?> selector : selectors)
+			found += load(p, selector);
+		return found;
+	}
+
+	/**
+	   Loads the saved values for each operator of the selector.
+	 */
+	private static <T extends Operator> int load(Properties p, OperatorSelector<T> aSelector)
+	{
+		int found = 0;
+		for (T op : aSelector.getOperators())
+		{
+			String key = op.getClass().getName();
+			if (!p.containsKey(key + ".fitness"))
+				continue;
+			try
+			{
+				op.setRecentFitness(Double.parseDouble(p.getProperty(key + ".fitness")));
+				long uses = Math.min(Long.parseLong(p.getProperty(key + ".uses", "0")), MAX_PRIOR_USES);
+				if (uses > 0)
+					aSelector.setPrior(op, Double.parseDouble(p.getProperty(key + ".gain")),
+							Double.parseDouble(p.getProperty(key + ".millis")), uses);
+				found++;
+			}
+			catch (RuntimeException e)
+			{
+				//A damaged entry just means starting this operator from nothing.
+			}
+		}
+		return found;
+	}
+
+	/**
+	   Saves the operators of the selectors to the file, averaged with
+	   the profile as it was loaded.  The operators' statistics cover
+	   every run since then.
+	 */
+	public void save(String aComment, OperatorSelector<?>... selectors) throws IOException
+	{
+		Properties p = new Properties();
+		for (OperatorSelector<?> selector : selectors)
+		{
+			for (Operator op : selector.getOperators())
+				save(p, i_loaded, op);
+		}
+
+		File dir = i_file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.exists() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+		OutputStream out = new FileOutputStream(i_file);
+		try
+		{
+			p.store(out, aComment);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	   Adds the values for the operator, averaged with the old ones.
+	 */
+	private void save(Properties p, Properties old, Operator anOp)
+	{
+		String key = anOp.getClass().getName();
+		long uses = anOp.getApplications();
+		long oldUses = 0;
+		try
+		{
+			oldUses = Long.parseLong(old.getProperty(key + ".uses", "0")) / 2;
+		}
+		catch (NumberFormatException e)
+		{
+			//Start over for this operator.
+		}
+
+		p.setProperty(key + ".fitness", average(old, key + ".fitness", oldUses, anOp.getMeanScore(), uses));
+		p.setProperty(key + ".gain", average(old, key + ".gain", oldUses, anOp.getMeanImprovement(), uses));
+		p.setProperty(key + ".millis", average(old, key + ".millis", oldUses, anOp.getMeanNanos() / 1e6, uses));
+		p.setProperty(key + ".uses", Long.toString(oldUses + uses));
+	}
+
+	/**
+	   Returns the average of the old value and the new one, weighted
+	   by their number of uses.
+	 */
+	private String average(Properties old, String aKey, long anOldUses, double aValue, long aUses)
+	{
+		double oldValue = 0;
+		try
+		{
+			oldValue = Double.parseDouble(old.getProperty(aKey, "0"));
+		}
+		catch (NumberFormatException e)
+		{
+			anOldUses = 0;
+		}
+		if (anOldUses + aUses == 0)
+			return "0";
+		return Double.toString((oldValue * anOldUses + aValue * aUses) / (anOldUses + aUses));
+	}
+}
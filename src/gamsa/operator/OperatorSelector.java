@@ -0,0 +1,330 @@
+package gamsa.operator;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import gamsa.InfoCenter;
+import gamsa.population.Population;
+
+/**
+   Chooses which operator to apply next.  The original policy spins
+   the population's roulette wheel, which favours operators by their
+   recent gain alone.  The other policies weigh the gain of each
+   operator against its cost, so that an operator that takes twice as
+   long must gain twice as much to be chosen as often:
+
+   "matching" picks each operator with a chance in proportion to its
+   gain per millisecond, with a floor so no operator is shut out.
+
+   "ucb" picks the operator with the best gain per millisecond plus a
+   bonus for operators that have not been tried much (UCB1).  The same
+   floor applies, as a chance of picking any operator at random.
+
+   The floor matters for operators that gain nothing themselves but
+   keep the alignments in shape, such as removing columns of gaps.
+
+   Only improvements count as gain: most applications make the
+   alignment worse, and an operator should not look better than
+   another just because it does nothing (cheaply).  Gains and costs
+   are averaged with more weight on recent applications, since
+   operators that help early in a search often stop helping later on.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class OperatorSelector<T extends Operator>
+{
+	//Selection policies.
+	public static final String WHEEL = "wheel";
+	public static final String MATCHING = "matching";
+	public static final String UCB = "ucb";
+
+	private Population<T> i_ops;
+	private String i_policy;
+
+	//Weight of the newest application in the averages.
+	private double i_decay;
+	private double i_exploration;
+	private double i_minProbability;
+
+	//Averages and counts, in the same order as the population.
+	private double[] i_gain;
+	private double[] i_millis;
+	private long[] i_pulls;
+	private long i_totalPulls;
+
+	//Position of each operator in the population.
+	private Map<T,Integer> i_indices = new IdentityHashMap<T,Integer>();
+
+	//True between drawCounts() and endBatch().
+	private boolean i_batch = false;
+
+	private InfoCenter i_rand = InfoCenter.getCenter();
+
+	/**
+	   Constructor.  The decay is the weight given to the newest
+	   application in the running averages, the exploration the size
+	   of the UCB bonus, and the minimum probability the floor for
+	   probability matching.
+	 */
+	public OperatorSelector(Population<T> anOps, String aPolicy, double aDecay,
+			double anExploration, double aMinProbability)
+	{
+		if (!WHEEL.equalsIgnoreCase(aPolicy) && !MATCHING.equalsIgnoreCase(aPolicy)
+				&& !UCB.equalsIgnoreCase(aPolicy))
+			throw new IllegalArgumentException("Unknown operator selection policy: " + aPolicy);
+
+		i_ops = anOps;
+		i_policy = aPolicy.toLowerCase();
+		i_decay = aDecay;
+		i_exploration = anExploration;
+		i_minProbability = aMinProbability;
+
+		int size = anOps.getPopulationSize();
+		i_gain = new double[size];
+		i_millis = new double[size];
+		i_pulls = new long[size];
+		for (int i=0; i<size; i++)
+			i_indices.put(anOps.getIndividualAt(i), i);
+	}
+
+	/**
+	   Returns the operators being chosen from.
+	 */
+	public Population<T> getOperators()
+	{
+		return i_ops;
+	}
+
+	/**
+	   Returns the next operator to apply.
+	 */
+	public T select()
+	{
+		if (WHEEL.equals(i_policy))
+			return i_ops.getRandomIndividual();
+		return i_ops.getIndividualAt(choose(i_pulls, i_totalPulls));
+	}
+
+	/**
+	   Decides up front how many times each operator is applied, enough
+	   to produce the specified number of children.  The counts are in
+	   the same order as the population.  The chances stay fixed until
+	   endBatch() is called; for UCB, each draw counts as a use, so the
+	   draws spread out as they would one at a time.
+	 */
+	public int[] drawCounts(int aChildren)
+	{
+		int[] counts = new int[i_pulls.length];
+		long[] pulls = i_pulls.clone();
+		long totalPulls = i_totalPulls;
+		int children = 0;
+		while (children < aChildren)
+		{
+			int i = choose(pulls, totalPulls);
+			counts[i]++;
+			pulls[i]++;
+			totalPulls++;
+			children += i_ops.getIndividualAt(i).getChildCount();
+		}
+		i_batch = true;
+		return counts;
+	}
+
+	/**
+	   Brings the chances up to date after a batch.
+	 */
+	public void endBatch()
+	{
+		i_batch = false;
+		if (WHEEL.equals(i_policy))
+			i_ops.recalculateProbabilities();
+	}
+
+	/**
+	   Returns the index of the operator to apply, given the number of
+	   uses of each operator.
+	 */
+	private int choose(long[] pulls, long totalPulls)
+	{
+		if (WHEEL.equals(i_policy))
+			return i_indices.get(i_ops.getRandomIndividual());
+
+		//Every operator is tried once before any are compared.
+		for (int i=0; i<pulls.length; i++)
+		{
+			if (pulls[i] == 0)
+				return i;
+		}
+
+		int size = pulls.length;
+		if (UCB.equals(i_policy))
+		{
+			if (i_rand.getRandomInt(1000000) < getFloor() * size * 1000000)
+				return i_rand.getRandomInt(size);
+
+			double[] quality = getNormalizedQuality();
+			int best = 0;
+			double bestScore = Double.NEGATIVE_INFINITY;
+			for (int i=0; i<quality.length; i++)
+			{
+				double score = quality[i] + i_exploration * Math.sqrt(2 * Math.log(totalPulls) / pulls[i]);
+				if (score > bestScore)
+				{
+					bestScore = score;
+					best = i;
+				}
+			}
+			return best;
+		}
+
+		double[] probabilities = getProbabilities();
+		double spin = i_rand.getRandomInt(1000000) / 1000000.0;
+		for (int i=0; i<probabilities.length; i++)
+		{
+			spin -= probabilities[i];
+			if (spin < 0)
+				return i;
+		}
+		return probabilities.length - 1;
+	}
+
+	/**
+	   Records one application of the operator: the change in fitness
+	   it produced, and what it cost in time (nanoseconds) and memory
+	   (bytes, negative if unknown).
+	 */
+	public void update(T anOp, double aGain, long aNanos, long aBytes)
+	{
+		anOp.addScore(aGain);
+		anOp.addCost(aNanos, aBytes);
+
+		//The averages are kept for the wheel as well, so they can be saved.
+		int i = i_indices.get(anOp);
+		double gain = Math.max(aGain, 0);
+		double millis = aNanos / 1e6;
+		if (i_pulls[i] == 0)
+		{
+			i_gain[i] = gain;
+			i_millis[i] = millis;
+		}
+		else
+		{
+			i_gain[i] += i_decay * (gain - i_gain[i]);
+			i_millis[i] += i_decay * (millis - i_millis[i]);
+		}
+		i_pulls[i]++;
+		i_totalPulls++;
+
+		if (WHEEL.equals(i_policy) && !i_batch)
+			i_ops.recalculateProbabilities();
+	}
+
+	/**
+	   Starts the operator from averages learned before, as if it had
+	   already been used the specified number of times.
+	 */
+	public void setPrior(T anOp, double aGain, double aMillis, long aUses)
+	{
+		int i = i_indices.get(anOp);
+		i_totalPulls += aUses - i_pulls[i];
+		i_gain[i] = aGain;
+		i_millis[i] = aMillis;
+		i_pulls[i] = aUses;
+	}
+
+	/**
+	   Returns the gain per millisecond of each operator.
+	 */
+	private double[] getQuality()
+	{
+		double[] quality = new double[i_gain.length];
+		for (int i=0; i<quality.length; i++)
+		{
+			//Keep very quick operators from dividing by nearly nothing.
+			quality[i] = i_gain[i] / Math.max(i_millis[i], 0.001);
+		}
+		return quality;
+	}
+
+	/**
+	   Returns the gain per millisecond of each operator, scaled so the
+	   worst is 0 and the best is 1.
+	 */
+	private double[] getNormalizedQuality()
+	{
+		double[] quality = getQuality();
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (double q : quality)
+		{
+			min = Math.min(min, q);
+			max = Math.max(max, q);
+		}
+		for (int i=0; i<quality.length; i++)
+			quality[i] = max > min ? (quality[i] - min) / (max - min) : 0.5;
+		return quality;
+	}
+
+	/**
+	   Returns the chance of choosing each operator, in the same order
+	   as the population.  For UCB, which always picks the top operator,
+	   this is the share of the choices so far.
+	 */
+	public double[] getProbabilities()
+	{
+		int size = i_pulls.length;
+		double[] probabilities = new double[size];
+		if (WHEEL.equals(i_policy))
+			return i_ops.getSelectionProbabilities();
+		if (i_totalPulls == 0)
+		{
+			Arrays.fill(probabilities, 1.0 / size);
+			return probabilities;
+		}
+		if (UCB.equals(i_policy))
+		{
+			for (int i=0; i<size; i++)
+				probabilities[i] = (double) i_pulls[i] / i_totalPulls;
+			return probabilities;
+		}
+
+		double[] quality = getQuality();
+		double total = 0;
+		for (double q : quality)
+			total += q;
+		double floor = getFloor();
+		for (int i=0; i<size; i++)
+			probabilities[i] = floor + (1 - size * floor) * (total > 0 ? quality[i] / total : 1.0 / size);
+		return probabilities;
+	}
+
+	/**
+	   Returns the least chance of choosing any one operator.
+	 */
+	private double getFloor()
+	{
+		return Math.min(i_minProbability, 1.0 / i_pulls.length);
+	}
+
+	/**
+	   Returns a String showing the chance of choosing each operator,
+	   with its average gain and cost.
+	 */
+	public String getDistributionString()
+	{
+		if (WHEEL.equals(i_policy))
+			return i_ops.getDistributionString();
+
+		double[] probabilities = getProbabilities();
+		StringBuilder sb = new StringBuilder(i_policy.toUpperCase()).append(" DIST:");
+		for (int i=0; i<probabilities.length; i++)
+		{
+			T op = i_ops.getIndividualAt(i);
+			sb.append(String.format("\n\t(%s) p=%.3f gain=%.2f time=%.3fms alloc=%.0fB uses=%d",
+					op.getClass().getSimpleName(), probabilities[i], i_gain[i],
+					op.getMeanNanos() / 1e6, op.getMeanBytes(), op.getApplications()));
+		}
+		return sb.toString();
+	}
+}
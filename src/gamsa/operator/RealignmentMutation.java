@@ -0,0 +1,351 @@
+package gamsa.operator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import gamsa.InfoCenter;
+import gamsa.population.Alignment;
+import gamsa.population.Sequence;
+import gamsa.profile.Profile;
+import gamsa.scorer.Scorer;
+
+/**
+   Takes one sequence out of the alignment and puts it back in the best
+   place against the columns of the others, by dynamic programming with
+   the scorer's substitution scores and affine gaps.  Where the sequence
+   needs a column the others do not have, one is added with gaps in the
+   other rows.
+
+   Only placements within a band around the current one are considered,
+   so the time and memory taken grow with the length of the sequence
+   rather than with its square.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class RealignmentMutation extends Mutation
+{
+	private static InfoCenter i_rand = InfoCenter.getCenter();
+
+	//How far, in columns, a residue may move from where it is now.
+	private static final int BAND_WIDTH = 32;
+
+	//States of the dynamic programming.  A residue may sit in a column
+	// of the others, in a new column, or the sequence may have a gap.
+	private static final int MATCH = 0;
+	private static final int INSERT = 1;
+	private static final int GAP = 2;
+
+	private static final float NONE = Float.NEGATIVE_INFINITY;
+
+	/**
+	   Returns a child with one random sequence realigned against the
+	   others, or the parent if the alignment has only one sequence.
+
+	   @see gamsa.operator.Mutation#perform(gamsa.population.Alignment)
+	 */
+	@Override
+	public Alignment perform(Alignment parent)
+	{
+		if (parent.getSize() < 2)
+			return parent;
+		return realign(parent, i_rand.getRandomInt(parent.getSize()));
+	}
+
+	/**
+	   Returns a child with the specified sequence realigned.
+	 */
+	public Alignment realign(Alignment parent, int aRow)
+	{
+		Scorer scorer = i_rand.getScorer();
+		int rows = parent.getSize();
+		int columns = parent.getSequenceLength();
+
+		//Give each symbol a code, and turn the other rows into codes.
+		Map<Character,Integer> codes = new HashMap<Character,Integer>();
+		StringBuilder symbols = new StringBuilder();
+		String[] text = new String[rows];
+		int[] members = new int[rows - 1];
+		int[][] others = new int[rows - 1][];
+		for (int r=0, o=0; r<rows; r++)
+		{
+			text[r] = parent.getSequenceAt(r).toString();
+			int[] row = toCodes(text[r], codes, symbols);
+			if (r != aRow)
+			{
+				members[o] = r;
+				others[o++] = row;
+			}
+		}
+		Profile profile = new Profile(members, others, symbols.length());
+
+		//Residues of the row, and the column each one is in now.
+		String row = text[aRow];
+		int length = 0;
+		int[] residues = new int[columns];
+		int[] placement = new int[columns];
+		for (int col=0; col<columns; col++)
+		{
+			if (row.charAt(col) != '-')
+			{
+				residues[length] = codes.get(row.charAt(col));
+				placement[length++] = col;
+			}
+		}
+		if (length == 0)
+			return parent;
+
+		int[] path = align(scorer, symbols.toString(), profile, residues, placement, length);
+
+		//Rebuild the rows along the path.  Other rows only change if a
+		// column was added.
+		Alignment child = parent.clone();
+		boolean inserted = false;
+		StringBuilder realigned = new StringBuilder(path.length);
+		int residue = 0;
+		for (int step : path)
+		{
+			if (step == GAP)
+				realigned.append('-');
+			else
+				realigned.append(symbols.charAt(residues[residue++]));
+			inserted |= step == INSERT;
+		}
+		child.setSequenceAt(aRow, new Sequence(realigned.toString()));
+
+		if (inserted)
+		{
+			for (int r=0; r<rows; r++)
+			{
+				if (r == aRow)
+					continue;
+				StringBuilder sb = new StringBuilder(path.length);
+				int col = 0;
+				for (int step : path)
+					sb.append(step == INSERT ? '-' : text[r].charAt(col++));
+				child.setSequenceAt(r, new Sequence(sb.toString()));
+			}
+		}
+		return child;
+	}
+
+	/**
+	   Returns the codes of the symbols in the row, -1 for a gap.  New
+	   symbols are given the next code.
+	 */
+	private static int[] toCodes(String aRow, Map<Character,Integer> codes, StringBuilder symbols)
+	{
+		int[] row = new int[aRow.length()];
+		for (int col=0; col<row.length; col++)
+		{
+			char c = aRow.charAt(col);
+			if (c == '-')
+			{
+				row[col] = -1;
+				continue;
+			}
+			Integer code = codes.get(c);
+			if (code == null)
+			{
+				code = symbols.length();
+				codes.put(c, code);
+				symbols.append(c);
+			}
+			row[col] = code;
+		}
+		return row;
+	}
+
+	/**
+	   Returns the best path of the residues through the columns of the
+	   profile, as one state per column of the child.  Each residue may
+	   only be placed within BAND_WIDTH columns of where it is now.
+	 */
+	private static int[] align(Scorer aScorer, String symbols, Profile aProfile,
+			int[] residues, int[] placement, int length)
+	{
+		int columns = aProfile.getLength();
+		int others = aProfile.getRowCount();
+		int symbolCount = symbols.length();
+		float open = aScorer.getGapOpenPenalty();
+		float extend = aScorer.getGapExtendPenalty();
+
+		//Score of each symbol against each column, and the number of
+		// rows with a residue in the column.
+		float[][] substitution = new float[symbolCount][symbolCount];
+		for (int s=0; s<symbolCount; s++)
+		{
+			for (int t=0; t<symbolCount; t++)
+				substitution[s][t] = aScorer.getSubstitution(symbols.charAt(s), symbols.charAt(t));
+		}
+		float[][] columnScores = new float[columns][symbolCount];
+		float[] occupied = new float[columns];
+		for (int col=0; col<columns; col++)
+		{
+			float[] counts = aProfile.getCounts(col);
+			for (int t=0; t<symbolCount; t++)
+				occupied[col] += counts[t];
+			for (int s=0; s<symbolCount; s++)
+			{
+				//Rows with a gap here pay to extend it against the residue.
+				float total = (others - occupied[col]) * extend;
+				for (int t=0; t<symbolCount; t++)
+					total += counts[t] * substitution[s][t];
+				columnScores[col][s] = total;
+			}
+		}
+
+		//Columns that may have been used after each residue: those the
+		// current placement uses before the next residue, widened by the
+		// band, and reaching the first and last column.
+		int[] lo = new int[length + 1];
+		int[] hi = new int[length + 1];
+		for (int i=0; i<=length; i++)
+		{
+			lo[i] = i == 0 ? 0 : Math.max(0, placement[i-1] + 1 - BAND_WIDTH);
+			hi[i] = i == length ? columns : Math.min(columns, placement[i] + BAND_WIDTH);
+		}
+
+		float[] match = null;
+		float[] insert = null;
+		float[] gap = null;
+		byte[][] trace = new byte[length + 1][];
+		for (int i=0; i<=length; i++)
+		{
+			int width = hi[i] - lo[i] + 1;
+			float[] lastMatch = match;
+			float[] lastInsert = insert;
+			float[] lastGap = gap;
+			match = new float[width];
+			insert = new float[width];
+			gap = new float[width];
+			trace[i] = new byte[width];
+
+			//A gap in the sequence before its first residue or after its
+			// last one costs half, as do the other rows' gaps at either end.
+			float edge = i == 0 || i == length ? 0.5f : 1;
+			for (int j=lo[i]; j<=hi[i]; j++)
+			{
+				int k = j - lo[i];
+				int from = 0;
+				if (i == 0 && j == 0)
+				{
+					match[k] = 0;
+					insert[k] = NONE;
+					gap[k] = NONE;
+					continue;
+				}
+
+				//Residue i in column j.
+				match[k] = NONE;
+				if (i > 0 && j > 0 && j - 1 >= lo[i-1] && j - 1 <= hi[i-1])
+				{
+					int p = j - 1 - lo[i-1];
+					int prev = best(lastMatch[p], lastInsert[p], lastGap[p]);
+					match[k] = value(prev, lastMatch[p], lastInsert[p], lastGap[p])
+							+ columnScores[j-1][residues[i-1]];
+					from |= prev;
+				}
+
+				//Residue i in a new column, after column j.
+				insert[k] = NONE;
+				if (i > 0 && j >= lo[i-1] && j <= hi[i-1])
+				{
+					int p = j - lo[i-1];
+					float scale = others * (j == 0 || j == columns ? 0.5f : 1);
+					float viaMatch = lastMatch[p] + open * scale;
+					float viaInsert = lastInsert[p] + extend * scale;
+					float viaGap = lastGap[p] + open * scale;
+					int prev = best(viaMatch, viaInsert, viaGap);
+					insert[k] = value(prev, viaMatch, viaInsert, viaGap);
+					from |= prev << 2;
+				}
+
+				//A gap in the sequence at column j.
+				gap[k] = NONE;
+				if (j > lo[i])
+				{
+					float scale = occupied[j-1] * edge;
+					float viaMatch = match[k-1] + open * scale;
+					float viaInsert = insert[k-1] + open * scale;
+					float viaGap = gap[k-1] + extend * scale;
+					int prev = best(viaMatch, viaInsert, viaGap);
+					gap[k] = value(prev, viaMatch, viaInsert, viaGap);
+					from |= prev << 4;
+				}
+				trace[i][k] = (byte) from;
+			}
+		}
+
+		//Walk back from the end.
+		int k = hi[length] - lo[length];
+		int state = best(match[k], insert[k], gap[k]);
+		int[] steps = new int[length + columns];
+		int count = 0;
+		int i = length;
+		int j = columns;
+		while (i > 0 || j > 0)
+		{
+			int from = trace[i][j - lo[i]];
+			steps[count++] = state;
+			if (state == MATCH)
+			{
+				state = from & 3;
+				i--;
+				j--;
+			}
+			else if (state == INSERT)
+			{
+				state = (from >> 2) & 3;
+				i--;
+			}
+			else
+			{
+				state = (from >> 4) & 3;
+				j--;
+			}
+		}
+
+		int[] path = new int[count];
+		for (int s=0; s<count; s++)
+			path[s] = steps[count - 1 - s];
+		return path;
+	}
+
+	/**
+	   Returns the state with the highest score.  Ties go to the match.
+	 */
+	private static int best(float aMatch, float anInsert, float aGap)
+	{
+		if (aMatch >= anInsert && aMatch >= aGap)
+			return MATCH;
+		return anInsert >= aGap ? INSERT : GAP;
+	}
+
+	/**
+	   Returns the score of the specified state.
+	 */
+	private static float value(int aState, float aMatch, float anInsert, float aGap)
+	{
+		return aState == MATCH ? aMatch : aState == INSERT ? anInsert : aGap;
+	}
+
+	/**
+	   Tests mutation.
+	 */
+	public static void main(String[] args)
+	{
+		Mutation m = new RealignmentMutation();
+
+		i_rand.setScorer(new gamsa.scorer.DNAScorer());
+		Alignment a = new Alignment();
+
+		a.addSequence(new Sequence("ACGT-ACGTTGCA-"));
+		a.addSequence(new Sequence("-ACG-TACGTTGCA"));
+		a.addSequence(new Sequence("ACGTAC--GTTGCA"));
+
+		System.out.println(a);
+		for (int i=0; i<a.getSize(); i++)
+			a = ((RealignmentMutation) m).realign(a, i);
+		System.out.println(a);
+	}
+}
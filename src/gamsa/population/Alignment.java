@@ -1,6 +1,9 @@
 package gamsa.population;
 
 import gamsa.InfoCenter;
+import gamsa.event.ScoringEvent;
+import gamsa.metrics.Counter;
+import gamsa.metrics.MetricsRegistry;
 import gamsa.scorer.Scorer;
 
 import java.util.ArrayList;
@@ -14,14 +17,34 @@ import java.util.List;
  */
 public class Alignment extends Individual implements Cloneable, Iterable<Sequence>
 {
+	//Work done by the scorer, over all alignments.
+	private static final Counter c_pairCounter = MetricsRegistry.getRegistry().counter(
+			"gamsa_pair_comparisons_total", "Pairs of sequences compared by the scorer");
+	private static final Counter c_columnCounter = MetricsRegistry.getRegistry().counter(
+			"gamsa_columns_compared_total", "Columns compared by the scorer, over all pairs");
+	
 	//List of Sequences that make up the alignment.
 	private List<Sequence> i_sequences;
 	
 	//Determines how to compare sequences.
 	private Scorer i_scorer;
 	
+	//Copies of each row, if the rows stand for repeated sequences.
+	private RowWeights i_weights;
+	
 	private Double i_cachedFitness = null;
 	
+	//True if the cached fitness is only an estimate.
+	private boolean i_approximate = false;
+	
+	//True if scoring stopped early because the alignment could not reach a cutoff.
+	private boolean i_rejected = false;
+	
+	//XOR of the row keys of all sequences.  Kept up to date as rows
+	// are replaced, once it has been calculated.
+	private long i_fingerprint;
+	private boolean i_fingerprintKnown = false;
+	
 	/**
 	    Creates an empty alignment.
 	 */
@@ -49,18 +72,23 @@ public class Alignment extends Individual implements Cloneable, Iterable<Sequenc
 	}
     
     /**
-       Clones this sequence.
+       Clones this alignment.  Sequences are never changed once they
+       are built, so the clone shares them, along with the fitness
+       and fingerprint.
      */
     @Override
     public Alignment clone()
     {
         Alignment clonedAlign = new Alignment();
         
-        for (Sequence s : this.i_sequences)
-        {
-            clonedAlign.i_sequences.add(s.clone());
-        }
+        clonedAlign.i_sequences.addAll(this.i_sequences);
         clonedAlign.i_scorer = this.i_scorer;
+        clonedAlign.i_weights = this.i_weights;
+        clonedAlign.i_cachedFitness = this.i_cachedFitness;
+        clonedAlign.i_approximate = this.i_approximate;
+        clonedAlign.i_rejected = this.i_rejected;
+        clonedAlign.i_fingerprint = this.i_fingerprint;
+        clonedAlign.i_fingerprintKnown = this.i_fingerprintKnown;
         
         return clonedAlign;
     }
@@ -72,41 +100,289 @@ public class Alignment extends Individual implements Cloneable, Iterable<Sequenc
     @Override
 	public String toString()
 	{
-		String s = "Individual:\n";
+		StringBuilder sb = new StringBuilder("Individual:\n");
 		for (Sequence seq : i_sequences)
 		{
-			s += seq.toString() + "\n";
+			sb.append(seq.toString()).append("\n");
 		}
-		s += "Fitness: " + getFitness();
-		return s;
+		sb.append("Fitness: ").append(getFitness());
+		return sb.toString();
 	}
 	
 	/**
-	   Calculate the fitness for the aligned sequences.
+	   Calculate the fitness for the aligned sequences.  If the same
+	   alignment was scored recently, its fitness is taken from the
+	   fitness cache instead.  If the alignment was only given an
+	   estimate (see TieredEvaluator), the estimate is returned.
+	   Rows with weights count once for each of their copies.
 	 */
 	public double getFitness()
 	{
-		if (i_cachedFitness != null)
+		if (hasKnownFitness())
 			return i_cachedFitness.doubleValue();
 		
-		double fitness = 0;
-		Sequence comparingSequence;
-		Sequence tempSequence;
+		ScoringEvent event = new ScoringEvent();
+		event.begin();
+		double fitness = getCopiesScore();
 		
 		//Compare each sequence with every other.
 		for (int i=0; i<i_sequences.size(); i++)
 		{
-			comparingSequence = i_sequences.get(i);
 			for (int j=i+1; j<i_sequences.size(); j++)
+				fitness += scorePair(i, j);
+		}
+		commitScoring(event, i_sequences.size() * (i_sequences.size() - 1) / 2, false);
+		setExactFitness(fitness);
+		return fitness;
+	}
+	
+	/**
+	   Calculate the fitness, but give up as soon as the alignment
+	   cannot reach the cutoff.  The pairs not yet scored are bounded
+	   by the best score each row could get (see
+	   Scorer.getMaxSubstitution()).  A rejected alignment is given
+	   that upper bound, which is below the cutoff, as its fitness.
+	 */
+	public double getFitness(double aCutoff)
+	{
+		if (hasKnownFitness())
+			return i_cachedFitness.doubleValue();
+		
+		int size = i_sequences.size();
+		double[] rowBounds = new double[size];
+		for (int i=0; i<size; i++)
+			rowBounds[i] = getRowBound(i_sequences.get(i));
+		
+		double remaining = 0;
+		for (int i=0; i<size; i++)
+		{
+			for (int j=i+1; j<size; j++)
+				remaining += Math.min(rowBounds[i], rowBounds[j]) * getPairCount(i, j);
+		}
+		
+		ScoringEvent event = new ScoringEvent();
+		event.begin();
+		double fitness = getCopiesScore();
+		int pairs = 0;
+		for (int i=0; i<size; i++)
+		{
+			for (int j=i+1; j<size; j++)
 			{
-				tempSequence = i_sequences.get(j);
-				fitness += i_scorer.compareSequences(comparingSequence, tempSequence);
+				fitness += scorePair(i, j);
+				pairs++;
+				remaining -= Math.min(rowBounds[i], rowBounds[j]) * getPairCount(i, j);
+				if (fitness + remaining < aCutoff)
+				{
+					commitScoring(event, pairs, true);
+					setApproximateFitness(fitness + remaining);
+					i_rejected = true;
+					InfoCenter.getCenter().recordRejection();
+					return fitness + remaining;
+				}
 			}
 		}
-		i_cachedFitness = new Double(fitness);
+		
+		commitScoring(event, pairs, false);
+		setExactFitness(fitness);
 		return fitness;
 	}
 	
+	/**
+	   Returns the score of the two rows, i before j, over all of their
+	   copies.
+	 */
+	private double scorePair(int i, int j)
+	{
+		if (i_weights == null)
+			return i_scorer.compareSequences(i_sequences.get(i), i_sequences.get(j));
+		return i_weights.scorePair(i_scorer, i, i_sequences.get(i), j, i_sequences.get(j));
+	}
+	
+	/**
+	   Returns the number of pairs of copies of the two rows.
+	 */
+	private int getPairCount(int i, int j)
+	{
+		return i_weights == null ? 1 : i_weights.getPairCount(i, j);
+	}
+	
+	/**
+	   Returns the score of the copies of each row against each other.
+	   Copies are aligned the same way, but gaps at the ends still cost.
+	 */
+	double getCopiesScore()
+	{
+		double score = 0;
+		for (int i=0; i_weights != null && i<i_sequences.size(); i++)
+			score += i_weights.scoreCopies(i_scorer, i, i_sequences.get(i));
+		return score;
+	}
+	
+	/**
+	   Counts the pairs compared, and fills in and records the scoring
+	   event if it is being recorded.
+	 */
+	private void commitScoring(ScoringEvent event, int aPairs, boolean aRejected)
+	{
+		long columns = i_sequences.isEmpty() ? 0 : (long) aPairs * i_sequences.get(0).getSize();
+		c_pairCounter.add(aPairs);
+		c_columnCounter.add(columns);
+		if (event.shouldCommit())
+		{
+			event.pairs = aPairs;
+			event.columns = columns;
+			event.rejected = aRejected;
+			event.commit();
+		}
+	}
+	
+	/**
+	   Returns the most the row could score against any other row.
+	 */
+	private double getRowBound(Sequence aSequence)
+	{
+		double bound = 0;
+		for (int k=0; k<aSequence.getSize(); k++)
+			bound += i_scorer.getMaxSubstitution(aSequence.getElementAt(k));
+		return bound;
+	}
+	
+	/**
+	   Stores a fitness that was scored in full.
+	 */
+	private void setExactFitness(double aFitness)
+	{
+		i_cachedFitness = new Double(aFitness);
+		InfoCenter.getCenter().recordEvaluation();
+		FitnessCache cache = InfoCenter.getCenter().getFitnessCache();
+		if (cache != null)
+			cache.put(getCacheKey(), aFitness);
+	}
+	
+	/**
+	   Returns the key of the fitness in the fitness cache: the
+	   fingerprint, mixed with that of the row weights if there are any.
+	 */
+	private long getCacheKey()
+	{
+		return i_weights == null ? getFingerprint() : getFingerprint() ^ Sequence.mix(i_weights.getFingerprint());
+	}
+	
+	/**
+	   Returns true if the fitness (or an estimate of it) is already
+	   known, either from an earlier call or from the fitness cache.
+	 */
+	boolean hasKnownFitness()
+	{
+		if (i_cachedFitness != null)
+			return true;
+		
+		FitnessCache cache = InfoCenter.getCenter().getFitnessCache();
+		if (cache != null)
+			i_cachedFitness = cache.get(getCacheKey());
+		return i_cachedFitness != null;
+	}
+	
+	/**
+	   Returns the fitness, scoring the alignment in full if it
+	   only had an estimate.
+	 */
+	public double getExactFitness()
+	{
+		if (i_approximate)
+		{
+			i_cachedFitness = null;
+			i_approximate = false;
+			i_rejected = false;
+		}
+		return getFitness();
+	}
+	
+	/**
+	   Returns true if the fitness is only an estimate.
+	 */
+	public boolean isApproximate()
+	{
+		return i_approximate;
+	}
+	
+	/**
+	   Returns true if scoring was abandoned because the alignment
+	   could not reach a cutoff.  Its fitness is then an upper bound.
+	 */
+	public boolean isRejected()
+	{
+		return i_rejected;
+	}
+	
+	/**
+	   Sets an estimated fitness, to be used until the exact one is needed.
+	 */
+	void setApproximateFitness(double aFitness)
+	{
+		i_cachedFitness = Double.valueOf(aFitness);
+		i_approximate = true;
+	}
+	
+	/**
+	   Returns the sum of the scores of the specified pairs of rows.
+	 */
+	double scorePairs(int[] rows1, int[] rows2)
+	{
+		ScoringEvent event = new ScoringEvent();
+		event.begin();
+		double score = 0;
+		for (int p=0; p<rows1.length; p++)
+			score += scorePair(rows1[p], rows2[p]);
+		commitScoring(event, rows1.length, false);
+		return score;
+	}
+	
+	/**
+	   Returns the copies of each row, or null if every row is one
+	   sequence of its own.
+	 */
+	public RowWeights getRowWeights()
+	{
+		return i_weights;
+	}
+	
+	/**
+	   Sets the copies of each row.  Null makes every row count once.
+	 */
+	public void setRowWeights(RowWeights aWeights)
+	{
+		i_cachedFitness = null;
+		i_approximate = false;
+		i_rejected = false;
+		i_weights = aWeights;
+	}
+	
+	/**
+	   Returns a 64-bit fingerprint of the alignment.  Each row contributes
+	   a key made from its position and the sequence's own fingerprint,
+	   so replacing a row only needs the keys of the old and new rows.
+	 */
+	public long getFingerprint()
+	{
+		if (!i_fingerprintKnown)
+		{
+			i_fingerprint = 0;
+			for (int i=0; i<i_sequences.size(); i++)
+				i_fingerprint ^= rowKey(i, i_sequences.get(i));
+			i_fingerprintKnown = true;
+		}
+		return i_fingerprint;
+	}
+	
+	/**
+	   Returns the fingerprint key for a sequence in the specified row.
+	 */
+	private static long rowKey(int aRow, Sequence aSequence)
+	{
+		return Sequence.mix(aSequence.getFingerprint() + (aRow + 1) * 0x632BE59BD9B4E019L);
+	}
+	
     /**
 	 * Returns the number of sequences in the alignment.
 	 */
@@ -133,13 +409,36 @@ public class Alignment extends Individual implements Cloneable, Iterable<Sequenc
 	
 	/**
 	   Checks if the specified sequence represent the same alignment.
+	   Fingerprints are compared first; the rows themselves are only
+	   compared when the fingerprints match.
 	   @see java.lang.Object#equals(java.lang.Object)
 	 */
 	public boolean equals(Object other)
 	{
+		if (this == other) return true;
 		if (!(other instanceof Alignment)) return false;
-		//Crude comparison -- we check the string representations.
-		return this.toString().equals(other.toString());
+		
+		Alignment that = (Alignment) other;
+		if (this.getFingerprint() != that.getFingerprint()
+				|| this.i_sequences.size() != that.i_sequences.size())
+			return false;
+		
+		for (int i=0; i<i_sequences.size(); i++)
+		{
+			if (!this.i_sequences.get(i).sameElements(that.i_sequences.get(i)))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	   Based on the fingerprint, so that it agrees with equals.
+	   @see java.lang.Object#hashCode()
+	 */
+	public int hashCode()
+	{
+		long fingerprint = getFingerprint();
+		return (int) (fingerprint ^ (fingerprint >>> 32));
 	}
 	
 	/**
@@ -148,6 +447,10 @@ public class Alignment extends Individual implements Cloneable, Iterable<Sequenc
 	public void addSequence(Sequence aSequence)
 	{
 		i_cachedFitness = null;
+		i_approximate = false;
+		i_rejected = false;
+		if (i_fingerprintKnown)
+			i_fingerprint ^= rowKey(i_sequences.size(), aSequence);
 		i_sequences.add(aSequence);
 	}
 
@@ -157,6 +460,10 @@ public class Alignment extends Individual implements Cloneable, Iterable<Sequenc
 	public void setSequenceAt(int seqNumber, Sequence seq)
 	{
 		i_cachedFitness = null;
+		i_approximate = false;
+		i_rejected = false;
+		if (i_fingerprintKnown)
+			i_fingerprint ^= rowKey(seqNumber, i_sequences.get(seqNumber)) ^ rowKey(seqNumber, seq);
         i_sequences.set(seqNumber, seq);
 	}
 
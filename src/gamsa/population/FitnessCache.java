@@ -0,0 +1,102 @@
+package gamsa.population;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+   Remembers the fitness of recently scored alignments, keyed by their
+   fingerprints, so that an alignment that shows up again (an unchanged
+   child, or one the population has converged back to) is not rescored.
+   The least recently used entries are dropped once the cache is full.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class FitnessCache
+{
+	private Map<Long,Double> i_entries;
+
+	private long i_hits = 0;
+	private long i_misses = 0;
+
+	//Hits and misses of each thread's lookups.
+	private ThreadLocal<long[]> i_threadCounts = ThreadLocal.withInitial(() -> new long[2]);
+
+	/**
+	   Creates a cache that holds at most the specified number of fitness values.
+	 */
+	public FitnessCache(final int aCapacity)
+	{
+		i_entries = new LinkedHashMap<Long,Double>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long,Double> eldest)
+			{
+				return size() > aCapacity;
+			}
+		};
+	}
+
+	/**
+	   Returns the fitness stored for the fingerprint, or null if there is none.
+	 */
+	public synchronized Double get(long aFingerprint)
+	{
+		Double fitness = i_entries.get(aFingerprint);
+		if (fitness == null)
+			i_misses++;
+		else
+			i_hits++;
+		i_threadCounts.get()[fitness == null ? 1 : 0]++;
+		return fitness;
+	}
+
+	/**
+	   Stores the fitness for the fingerprint.
+	 */
+	public synchronized void put(long aFingerprint, double aFitness)
+	{
+		i_entries.put(aFingerprint, aFitness);
+	}
+
+	/**
+	   Removes all entries.  Needed whenever the way alignments are scored changes.
+	 */
+	public synchronized void clear()
+	{
+		i_entries.clear();
+	}
+
+	/**
+	   Returns the number of lookups that found a fitness.
+	 */
+	public synchronized long getHits()
+	{
+		return i_hits;
+	}
+
+	/**
+	   Returns the number of lookups that did not find a fitness.
+	 */
+	public synchronized long getMisses()
+	{
+		return i_misses;
+	}
+
+	/**
+	   Returns the number of lookups on this thread that found a fitness.
+	 */
+	public long getThreadHits()
+	{
+		return i_threadCounts.get()[0];
+	}
+
+	/**
+	   Returns the number of lookups on this thread that did not.
+	 */
+	public long getThreadMisses()
+	{
+		return i_threadCounts.get()[1];
+	}
+}
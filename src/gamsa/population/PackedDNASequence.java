@@ -0,0 +1,203 @@
+package gamsa.population;
+
+/**
+ * A nucleotide sequence packed 2 bits per base, with a separate
+ * bitmap marking the gaps.  Leading and trailing gaps are not stored
+ * separately; they are described by the index of the first and last
+ * base, and an edge-gap mask is derived from those on demand.
+ *
+ * Bases are laid out 32 to a long (A=00, C=01, G=10, T=11), so that two
+ * sequences can be compared 32 columns at a time.  Only upper case A, C,
+ * G and T are supported; anything else should use the plain char form.
+ *
+ * @author Tom Austin and Amie Radenbaugh
+ */
+public class PackedDNASequence
+{
+	// Bit 0 of every 2-bit slot in a word.
+	public static final long EVEN_BITS = 0x5555555555555555L;
+
+	// Number of columns held in a word of bases.
+	public static final int COLUMNS_PER_WORD = 32;
+
+	// Bases, 32 per word.  Gap columns hold 00.
+	private long[] i_bases;
+
+	// Gap bitmap, 64 columns per word.  Includes leading and trailing gaps.
+	private long[] i_gaps;
+
+	private int i_length;
+
+	// First and last column holding a base.  Columns outside of this
+	// range are leading or trailing gaps.
+	private int i_firstBase;
+	private int i_lastBase;
+
+	/**
+	 * Private constructor.  Use pack() instead.
+	 */
+	private PackedDNASequence(int aLength)
+	{
+		i_length = aLength;
+		i_bases = new long[(aLength + COLUMNS_PER_WORD - 1) / COLUMNS_PER_WORD];
+		i_gaps = new long[(aLength + 63) / 64];
+		i_firstBase = aLength;
+		i_lastBase = -1;
+	}
+
+	/**
+	 * Packs the specified characters, or returns null if they include
+	 * anything other than 'A', 'C', 'G', 'T' and '-'.
+	 */
+	public static PackedDNASequence pack(char[] aSequence)
+	{
+		PackedDNASequence packed = new PackedDNASequence(aSequence.length);
+		long code;
+
+		for (int i=0; i<aSequence.length; i++)
+		{
+			switch (aSequence[i])
+			{
+				case 'A': code = 0; break;
+				case 'C': code = 1; break;
+				case 'G': code = 2; break;
+				case 'T': code = 3; break;
+				case '-':
+				{
+					packed.i_gaps[i >>> 6] |= 1L << (i & 63);
+					continue;
+				}
+				default:
+					return null;
+			}
+			packed.i_bases[i >>> 5] |= code << ((i & 31) << 1);
+			if (packed.i_firstBase == aSequence.length)
+				packed.i_firstBase = i;
+			packed.i_lastBase = i;
+		}
+		return packed;
+	}
+
+	/**
+	 * Returns the number of columns in the sequence.
+	 */
+	public int getSize()
+	{
+		return i_length;
+	}
+
+	/**
+	 * Returns the number of words used to hold the bases.
+	 */
+	public int getWordCount()
+	{
+		return i_bases.length;
+	}
+
+	/**
+	 * Returns the bases for the specified word, 2 bits per column.
+	 */
+	public long getBaseWord(int aWord)
+	{
+		return i_bases[aWord];
+	}
+
+	/**
+	 * Returns the gaps for the specified word of bases, with the
+	 * gap flag for each column held in the low bit of its 2-bit slot.
+	 */
+	public long getGapWord(int aWord)
+	{
+		long gaps = i_gaps[aWord >>> 1] >>> ((aWord & 1) << 5);
+		return spread(gaps);
+	}
+
+	/**
+	 * Returns the leading and trailing gaps for the specified word of bases,
+	 * using the same layout as getGapWord().
+	 */
+	public long getEdgeWord(int aWord)
+	{
+		int start = aWord * COLUMNS_PER_WORD;
+		return lowColumns(i_firstBase - start)
+			| (EVEN_BITS & ~lowColumns(i_lastBase + 1 - start));
+	}
+
+	/**
+	 * Returns the columns of the specified word that fall within the
+	 * sequence, using the same layout as getGapWord().
+	 */
+	public long getValidWord(int aWord)
+	{
+		return lowColumns(i_length - aWord * COLUMNS_PER_WORD);
+	}
+
+	/**
+	 * Returns the first column from aStart (inclusive) to anEnd (exclusive)
+	 * that holds a base, or -1 if there is none.
+	 */
+	public int findFirstBase(int aStart, int anEnd)
+	{
+		for (int w = aStart >>> 6; (w << 6) < anEnd; w++)
+		{
+			long bases = ~i_gaps[w] & rangeMask(w, aStart, anEnd);
+			if (bases != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(bases);
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the last column from aStart (inclusive) to anEnd (exclusive)
+	 * that holds a base, or -1 if there is none.
+	 */
+	public int findLastBase(int aStart, int anEnd)
+	{
+		for (int w = (anEnd - 1) >>> 6; anEnd > aStart && w >= (aStart >>> 6); w--)
+		{
+			long bases = ~i_gaps[w] & rangeMask(w, aStart, anEnd);
+			if (bases != 0)
+				return (w << 6) + 63 - Long.numberOfLeadingZeros(bases);
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the bits of gap word w that fall within the column range.
+	 */
+	private static long rangeMask(int w, int aStart, int anEnd)
+	{
+		long mask = -1L;
+		if (aStart > (w << 6))
+			mask &= -1L << (aStart - (w << 6));
+		if (anEnd < ((w + 1) << 6))
+			mask &= (1L << (anEnd - (w << 6))) - 1;
+		return mask;
+	}
+	
+	/**
+	 * Returns a mask with the low bit set for the first n columns of a word.
+	 */
+	public static long lowColumns(int n)
+	{
+		if (n <= 0)
+			return 0;
+		if (n >= COLUMNS_PER_WORD)
+			return EVEN_BITS;
+		return EVEN_BITS & ((1L << (n << 1)) - 1);
+	}
+
+	/**
+	 * Moves the low 32 bits of the argument to the even bit positions.
+	 */
+	private static long spread(long x)
+	{
+		x &= 0xFFFFFFFFL;
+		x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+		x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+		x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x << 2)) & 0x3333333333333333L;
+		x = (x | (x << 1)) & EVEN_BITS;
+		return x;
+	}
+}
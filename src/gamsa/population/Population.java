@@ -3,6 +3,7 @@ package gamsa.population;
 import gamsa.InfoCenter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -103,6 +104,27 @@ public class Population<T extends Individual> implements Iterable<T>{
 			return (T) wheel[n];
 		}
 		
+		/**
+		   Returns the share of the wheel held by each individual,
+		   in the same order as the population.
+		 */
+		public double[] getShares()
+		{
+			double[] shares = new double[i_individuals.size()];
+			for (int i=0; i<shares.length; i++)
+			{
+				Individual ind = i_individuals.get(i);
+				int slots = 0;
+				for (Individual slot : wheel)
+				{
+					if (slot == ind)
+						slots++;
+				}
+				shares[i] = (double) slots / wheel.length;
+			}
+			return shares;
+		}
+		
 		/**
 		   Returns a string representing the distribution of
 		   the population in the wheel.  Useful for troubleshooting.
@@ -113,18 +135,18 @@ public class Population<T extends Individual> implements Iterable<T>{
 			//TODO: Nice if each individual was not printed twice,
 			// but I'd rather do that than slow down performance
 			// or miss an operator alltogether.
-			String s = "WHEEL DIST: offset=" + calculateOffset();
+			StringBuilder sb = new StringBuilder("WHEEL DIST: offset=").append(calculateOffset());
 			Individual lastIndividual = null;
 			Individual individ;
 			for (int i=0; i<wheel.length; i++)
 			{
 				individ = wheel[i];
 				if (!individ.equals(lastIndividual))
-					s+= "\n\t(" + individ.toString() + ") " + individ.getFitness() + ": ";
+					sb.append("\n\t(").append(individ.toString()).append(") ").append(individ.getFitness()).append(": ");
 				lastIndividual = individ;
-				s += "X";
+				sb.append('X');
 			}
-			return s;
+			return sb.toString();
 		}
 	}
 	////End of wheel class.
@@ -174,6 +196,14 @@ public class Population<T extends Individual> implements Iterable<T>{
 		return i_individuals.get(anIndex);
 	}
 	
+	/**
+	   Replaces the individual at the specified index.
+	 */
+	public void setIndividualAt(int anIndex, T anIndividual)
+	{
+		i_individuals.set(anIndex, anIndividual);
+	}
+	
 	/**
 	   Adds the specified individual to the population.
 	 */
@@ -249,9 +279,30 @@ public class Population<T extends Individual> implements Iterable<T>{
 	 */
 	public String getDistributionString()
 	{
+		//A search stopped before its first round has not selected anything.
+		if (i_wheel == null)
+		{
+			i_wheel = new RouletteWheel();
+			i_wheel.recalculate();
+		}
 		return i_wheel.toString();
 	}
 
+	/**
+	   Returns the probability of selecting each individual, in the
+	   same order as the population.  Before the first selection,
+	   every individual has the same chance.
+	 */
+	public double[] getSelectionProbabilities()
+	{
+		if (i_wheel != null)
+			return i_wheel.getShares();
+		
+		double[] shares = new double[i_individuals.size()];
+		Arrays.fill(shares, 1.0 / shares.length);
+		return shares;
+	}
+
 	/**
 	   Returns an iterator that iterates over the list of
 	   elements (and allows use the simplified for loop).
@@ -0,0 +1,255 @@
+package gamsa.population;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import gamsa.scorer.Scorer;
+
+/**
+   Stands for an input in which some sequences are repeated by an
+   alignment of the distinct sequences, each row counting for all of
+   its copies.  Copies of a sequence are always aligned the same way,
+   so the sum of pairs of the full alignment can be had from the rows
+   of the short one: each pair of rows is scored once for every pair
+   of their copies, and each row against itself once for every pair of
+   its own copies.
+
+   Scorers need not be symmetric, so the pairs of copies are counted
+   in the order they come in the input.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class RowWeights
+{
+	//Row of the short alignment for each input sequence.
+	private int[] i_rows;
+
+	//Number of copies of each row.
+	private int[] i_copies;
+
+	//Pairs of copies of two rows in which the first row's copy comes
+	// first in the input.
+	private int[][] i_before;
+
+	private long i_fingerprint;
+
+	/**
+	   Constructor.  Takes the row of each input sequence.
+	 */
+	private RowWeights(int[] rows, int aRowCount)
+	{
+		i_rows = rows;
+		i_copies = new int[aRowCount];
+		i_before = new int[aRowCount][aRowCount];
+		for (int i=0; i<rows.length; i++)
+		{
+			for (int j=i+1; j<rows.length; j++)
+			{
+				if (rows[i] != rows[j])
+					i_before[rows[i]][rows[j]]++;
+			}
+			i_copies[rows[i]]++;
+			i_fingerprint = Sequence.mix(i_fingerprint + rows[i] + 1);
+		}
+	}
+
+	/**
+	   Returns the weights for the input.  Sequences are the same if
+	   they are the same after removing gaps.  The distinct sequences
+	   keep the order in which they first appear.
+	 */
+	public static RowWeights collapse(String[] inputSequences)
+	{
+		Map<String,Integer> rowsBySequence = new HashMap<String,Integer>();
+		int[] rows = new int[inputSequences.length];
+		for (int i=0; i<rows.length; i++)
+		{
+			String residues = inputSequences[i].replace("-", "");
+			Integer row = rowsBySequence.get(residues);
+			if (row == null)
+			{
+				row = rowsBySequence.size();
+				rowsBySequence.put(residues, row);
+			}
+			rows[i] = row;
+		}
+		return new RowWeights(rows, rowsBySequence.size());
+	}
+
+	/**
+	   Returns true if any sequence is repeated.
+	 */
+	public boolean hasDuplicates()
+	{
+		return i_copies.length < i_rows.length;
+	}
+
+	/**
+	   Returns the number of rows in the short alignment.
+	 */
+	public int getRowCount()
+	{
+		return i_copies.length;
+	}
+
+	/**
+	   Returns the number of input sequences.
+	 */
+	public int getInputCount()
+	{
+		return i_rows.length;
+	}
+
+	/**
+	   Returns the number of copies of the row.
+	 */
+	public int getCopies(int aRow)
+	{
+		return i_copies[aRow];
+	}
+
+	/**
+	   Returns a 64-bit fingerprint of the row of every input sequence.
+	   Alignments with the same rows but different weights have
+	   different fitness, so the fitness cache keys on both.
+	 */
+	public long getFingerprint()
+	{
+		return i_fingerprint;
+	}
+
+	/**
+	   Returns the sum of the pairs of copies over all pairs of
+	   different rows: the pairs of rows of the full alignment that are
+	   not copies of the same sequence.
+	 */
+	public long getTotalPairCount()
+	{
+		long pairs = (long) i_rows.length * (i_rows.length - 1) / 2;
+		for (int copies : i_copies)
+			pairs -= (long) copies * (copies - 1) / 2;
+		return pairs;
+	}
+
+	/**
+	   Returns the number of pairs of copies of the two rows.
+	 */
+	public int getPairCount(int aRow1, int aRow2)
+	{
+		return i_before[aRow1][aRow2] + i_before[aRow2][aRow1];
+	}
+
+	/**
+	   Returns the first copy of each distinct sequence.
+	 */
+	public String[] getDistinct(String[] inputSequences)
+	{
+		String[] distinct = new String[i_copies.length];
+		for (int i=0; i<i_rows.length; i++)
+		{
+			if (distinct[i_rows[i]] == null)
+				distinct[i_rows[i]] = inputSequences[i];
+		}
+		return distinct;
+	}
+
+	/**
+	   Returns a short alignment, with the row of the first copy of
+	   each distinct sequence in the full one.
+	 */
+	public Alignment collapse(Alignment aFull)
+	{
+		Sequence[] rows = new Sequence[i_copies.length];
+		for (int i=0; i<i_rows.length; i++)
+		{
+			if (rows[i_rows[i]] == null)
+				rows[i_rows[i]] = aFull.getSequenceAt(i);
+		}
+		Alignment collapsed = new Alignment();
+		for (Sequence row : rows)
+			collapsed.addSequence(row);
+		collapsed.setRowWeights(this);
+		return collapsed;
+	}
+
+	/**
+	   Returns the sequences with each one repeated as in the input.
+	 */
+	public String[] expand(String[] distinctSequences)
+	{
+		String[] full = new String[i_rows.length];
+		for (int i=0; i<full.length; i++)
+			full[i] = distinctSequences[i_rows[i]];
+		return full;
+	}
+
+	/**
+	   Returns the full alignment, with a row for every input sequence.
+	   Its fitness is the same as the short one's.
+	 */
+	public Alignment expand(Alignment aCollapsed)
+	{
+		Alignment full = new Alignment();
+		for (int i=0; i<i_rows.length; i++)
+			full.addSequence(aCollapsed.getSequenceAt(i_rows[i]));
+		return full;
+	}
+
+	/**
+	   Returns the scores of every pair of copies of two different rows.
+	 */
+	public double scorePair(Scorer aScorer, int aRow1, Sequence aSequence1, int aRow2, Sequence aSequence2)
+	{
+		double score = 0;
+		if (i_before[aRow1][aRow2] > 0)
+			score += i_before[aRow1][aRow2] * (double) aScorer.compareSequences(aSequence1, aSequence2);
+		if (i_before[aRow2][aRow1] > 0)
+			score += i_before[aRow2][aRow1] * (double) aScorer.compareSequences(aSequence2, aSequence1);
+		return score;
+	}
+
+	/**
+	   Returns the scores of every pair of copies of the one row.
+	 */
+	public double scoreCopies(Scorer aScorer, int aRow, Sequence aSequence)
+	{
+		int pairs = i_copies[aRow] * (i_copies[aRow] - 1) / 2;
+		return pairs == 0 ? 0 : pairs * (double) aScorer.compareSequences(aSequence, aSequence);
+	}
+
+	/**
+	   Self-check: an alignment of the distinct sequences, with weights,
+	   should score the same as the full alignment it stands for, with
+	   either scorer.  The same rows without weights must not be given
+	   the weighted fitness from the fitness cache.
+	 */
+	public static void main(String[] args)
+	{
+		String[] full = {"ACGTAC-GT", "-ACGTTGT-", "ACGTAC-GT", "AC-GTACTT", "-ACGTTGT-", "ACGTAC-GT"};
+		Scorer[] scorers = {new gamsa.scorer.DNAScorer(), new gamsa.scorer.Blosum62Scorer()};
+		boolean ok = true;
+		for (Scorer scorer : scorers)
+		{
+			gamsa.InfoCenter.getCenter().setScorer(scorer);
+			gamsa.InfoCenter.getCenter().setFitnessCache(new FitnessCache(100));
+			Alignment expanded = new Alignment();
+			for (String row : full)
+				expanded.addSequence(new Sequence(row));
+			RowWeights weights = collapse(full);
+			Alignment collapsed = weights.collapse(expanded);
+
+			Alignment unweighted = new Alignment();
+			for (int i=0; i<collapsed.getSize(); i++)
+				unweighted.addSequence(collapsed.getSequenceAt(i));
+			boolean same = collapsed.getFitness() == expanded.getFitness()
+					&& unweighted.getFitness() != collapsed.getFitness();
+			System.out.println(scorer.getClass().getSimpleName() + ": " + weights.getRowCount() + " weighted rows "
+					+ collapsed.getFitness() + ", " + full.length + " rows " + expanded.getFitness()
+					+ ", unweighted " + unweighted.getFitness()
+					+ (same ? " OK" : " FAILED"));
+			ok &= same;
+		}
+		if (!ok)
+			System.exit(1);
+	}
+}
@@ -1,5 +1,10 @@
 package gamsa.population;
 
+import java.util.Arrays;
+import java.util.Random;
+
+import gamsa.InfoCenter;
+
 /**
  * Represents a sequence of nucleotides or amino acids.
  * Gaps are indicated by '-'.
@@ -11,6 +16,15 @@ public class Sequence implements Cloneable
 	// Sequence of elements, including gaps.
 	char[] i_finalSequence;
 	
+	// Packed copy used for DNA scoring, built on first request.  It is
+	// kept alongside the elements rather than replacing them, so it
+	// speeds up scoring but adds to the memory of a row.
+	private volatile Object i_packedDNA;
+	private static final Object NOT_PACKABLE = new Object();
+	
+	// Zobrist-style hash of the elements and their positions, 0 until needed.
+	private volatile long i_fingerprint = 0;
+	
 	/**
      * Takes a String representing a sequence of Nucleotides
      * or Amino acids that already has gaps inserted.
@@ -39,6 +53,8 @@ public class Sequence implements Cloneable
         //Number of gaps in this sequence
         int numGaps = alignmentLength - inputSequence.length;
         
+        Random rand = InfoCenter.getCenter().getRandom();
+        
         //Insert spaces into the sequence.
 		for (int i=0; i<alignmentLength; i++)
 		{
@@ -46,7 +62,7 @@ public class Sequence implements Cloneable
             //If there are no more elements, get a gap.
             //Otherwise, roll the dice.
             if (numGaps==0 || (inputSequenceIndex<inputSequence.length
-                    && Math.random() > gapPercentage))
+                    && rand.nextDouble() > gapPercentage))
 			{
 				i_finalSequence[finalSequenceIndex++] = inputSequence[inputSequenceIndex++];
 			}
@@ -97,6 +113,65 @@ public class Sequence implements Cloneable
 		return new String(i_finalSequence);
 	}
 	
+	/**
+	 * Returns a 2-bit packed copy of this sequence, or null if it holds
+	 * anything other than 'A', 'C', 'G', 'T' and gaps.  Sequences are
+	 * not changed once built, so the packed copy is kept for reuse.
+	 */
+	public PackedDNASequence getPackedDNA()
+	{
+		Object packed = i_packedDNA;
+		if (packed == null)
+		{
+			packed = PackedDNASequence.pack(i_finalSequence);
+			if (packed == null)
+				packed = NOT_PACKABLE;
+			i_packedDNA = packed;
+		}
+		return packed == NOT_PACKABLE ? null : (PackedDNASequence) packed;
+	}
+	
+	/**
+	 * Returns a 64-bit fingerprint of this sequence.  Each (position, element)
+	 * pair has its own pseudo-random key, and the keys are XORed together,
+	 * so equal sequences always share a fingerprint and different ones
+	 * almost never do.
+	 */
+	public long getFingerprint()
+	{
+		long fingerprint = i_fingerprint;
+		if (fingerprint == 0)
+		{
+			for (int i=0; i<i_finalSequence.length; i++)
+				fingerprint ^= mix(((long) i << 16) | i_finalSequence[i]);
+			//0 is reserved for "not calculated yet".
+			if (fingerprint == 0)
+				fingerprint = 1;
+			i_fingerprint = fingerprint;
+		}
+		return fingerprint;
+	}
+	
+	/**
+	 * Scrambles the bits of a value (the SplitMix64 finalizer).  Used to
+	 * generate fingerprint keys without storing a table.
+	 */
+	static long mix(long z)
+	{
+		z += 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	/**
+	 * Returns true if this sequence has the same elements as the other.
+	 */
+	public boolean sameElements(Sequence other)
+	{
+		return Arrays.equals(i_finalSequence, other.i_finalSequence);
+	}
+	
 	/**
 	 * Returns the size of the sequence.
 	 */
@@ -0,0 +1,239 @@
+package gamsa.population;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import gamsa.InfoCenter;
+
+/**
+   Screens offspring with a cheap estimate of their fitness before
+   scoring them in full.  The estimate scores a random sample of the
+   pairs of rows and scales it up to the full number of pairs.  Only
+   children whose estimate could put them in the upper part of the
+   parent population (the threshold, plus a safety margin based on how
+   far off the estimates have been) are scored exactly.  The rest keep
+   their estimate as their fitness.  With row weights, the sample is
+   scaled up by the pairs of copies rather than the pairs of rows, and
+   the copies of each row against each other are scored in full.
+
+   A small share of the screened-out children is scored anyway, so that
+   the error of the estimate keeps being measured.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class TieredEvaluator
+{
+	//Number of errors needed before any child is screened out.
+	private static final int MIN_SAMPLES = 10;
+
+	private double i_pairFraction;
+	private double i_quantile;
+	private double i_margin;
+	private double i_auditRate;
+
+	//Pairs sampled for this generation.
+	private int[] i_rows1;
+	private int[] i_rows2;
+	private double i_scale;
+	private int i_rowCount;
+	private RowWeights i_weights;
+	private double i_threshold;
+
+	private long i_screened;
+	private long i_exact;
+
+	//Running error of the estimate (estimate - exact).
+	private long i_samples;
+	private double i_errorMean;
+	private double i_errorSquares;
+	private double i_absErrorTotal;
+
+	/**
+	   Constructor.  The pair fraction is the share of the pairs of rows
+	   used in the estimate, and the quantile the position in the parent
+	   population that a child must be able to reach to be scored exactly.
+	   The margin is the number of standard deviations of the estimate's
+	   error added to every estimate (after removing its average error)
+	   before it is compared.
+	 */
+	public TieredEvaluator(double aPairFraction, double aQuantile, double aMargin, double anAuditRate)
+	{
+		i_pairFraction = aPairFraction;
+		i_quantile = aQuantile;
+		i_margin = aMargin;
+		i_auditRate = anAuditRate;
+	}
+
+	/**
+	   Sets the threshold from the parents and picks the pairs of rows
+	   to sample for this generation's offspring.
+	 */
+	public void beginGeneration(Population<Alignment> parents)
+	{
+		if (parents.getPopulationSize() == 0)
+		{
+			i_rows1 = null;
+			return;
+		}
+		i_threshold = getQuantile(parents, i_quantile);
+
+		int rows = parents.getIndividualAt(0).getSize();
+		i_rowCount = rows;
+		i_weights = parents.getIndividualAt(0).getRowWeights();
+		int pairs = rows * (rows - 1) / 2;
+		int sampled = (int) Math.max(1, Math.round(i_pairFraction * pairs));
+		if (rows < 3 || sampled >= pairs)
+		{
+			//Nothing to gain.
+			i_rows1 = null;
+			return;
+		}
+
+		//Choose distinct pairs by a partial shuffle of all of them.
+		int[] all = new int[pairs];
+		for (int p=0; p<pairs; p++)
+			all[p] = p;
+		InfoCenter rand = InfoCenter.getCenter();
+		i_rows1 = new int[sampled];
+		i_rows2 = new int[sampled];
+		for (int p=0; p<sampled; p++)
+		{
+			int swap = p + rand.getRandomInt(pairs - p);
+			int pair = all[swap];
+			all[swap] = all[p];
+			all[p] = pair;
+
+			//Turn the pair number back into its rows.
+			int i = 0;
+			while (pair >= rows - 1 - i)
+			{
+				pair -= rows - 1 - i;
+				i++;
+			}
+			i_rows1[p] = i;
+			i_rows2[p] = i + 1 + pair;
+		}
+		i_scale = (double) pairs / sampled;
+		if (i_weights != null)
+		{
+			long sampledCopies = 0;
+			for (int p=0; p<sampled; p++)
+				sampledCopies += i_weights.getPairCount(i_rows1[p], i_rows2[p]);
+			i_scale = (double) i_weights.getTotalPairCount() / sampledCopies;
+		}
+	}
+
+	/**
+	   Gives the child either its exact fitness or an estimate.
+	   Children that already have a fitness are left alone.
+	 */
+	public void evaluate(Alignment child)
+	{
+		if (child.hasKnownFitness())
+			return;
+		if (i_rows1 == null || child.getSize() != i_rowCount || child.getRowWeights() != i_weights)
+		{
+			child.getFitness();
+			i_exact++;
+			return;
+		}
+
+		double estimate = child.scorePairs(i_rows1, i_rows2) * i_scale + child.getCopiesScore();
+		boolean audit = i_auditRate > 0 && InfoCenter.getCenter().getRandomInt(1000000) < i_auditRate * 1000000;
+		if (i_samples < MIN_SAMPLES || audit || estimate - i_errorMean + i_margin * getErrorStdDev() >= i_threshold)
+		{
+			recordError(estimate - child.getFitness());
+			i_exact++;
+		}
+		else
+		{
+			child.setApproximateFitness(estimate);
+			i_screened++;
+		}
+	}
+
+	/**
+	   Evaluates each of the children.
+	 */
+	public void evaluate(Alignment... children)
+	{
+		for (Alignment child : children)
+			evaluate(child);
+	}
+
+	/**
+	   Returns the fitness found at the specified position (0 to 1)
+	   in the sorted fitness values of the population.
+	 */
+	public static double getQuantile(Population<Alignment> aPopulation, double aQuantile)
+	{
+		List<Double> fitness = new ArrayList<Double>();
+		for (Alignment a : aPopulation)
+			fitness.add(a.getFitness());
+		Collections.sort(fitness);
+		int index = (int) Math.min(fitness.size() - 1, Math.floor(aQuantile * fitness.size()));
+		return fitness.get(Math.max(0, index));
+	}
+
+	/**
+	   Adds an error to the running statistics.
+	 */
+	private void recordError(double anError)
+	{
+		i_samples++;
+		double delta = anError - i_errorMean;
+		i_errorMean += delta / i_samples;
+		i_errorSquares += delta * (anError - i_errorMean);
+		i_absErrorTotal += Math.abs(anError);
+	}
+
+	/**
+	   Returns the number of children that kept an estimate.
+	 */
+	public long getScreenedCount()
+	{
+		return i_screened;
+	}
+
+	/**
+	   Returns the number of children that were scored exactly.
+	 */
+	public long getExactCount()
+	{
+		return i_exact;
+	}
+
+	/**
+	   Returns the number of children whose estimate was checked
+	   against the exact fitness.
+	 */
+	public long getErrorSamples()
+	{
+		return i_samples;
+	}
+
+	/**
+	   Returns the average error of the estimate (estimate - exact).
+	 */
+	public double getMeanError()
+	{
+		return i_errorMean;
+	}
+
+	/**
+	   Returns the average absolute error of the estimate.
+	 */
+	public double getMeanAbsoluteError()
+	{
+		return i_samples == 0 ? 0 : i_absErrorTotal / i_samples;
+	}
+
+	/**
+	   Returns the standard deviation of the error of the estimate.
+	 */
+	public double getErrorStdDev()
+	{
+		return i_samples < 2 ? 0 : Math.sqrt(i_errorSquares / (i_samples - 1));
+	}
+}
@@ -0,0 +1,262 @@
+package gamsa.profile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+   Decides the order in which sequences are merged when aligning
+   them progressively.  The most similar sequences (or groups) are
+   joined first, by average distance (UPGMA).
+
+   Distances come from counting the short words (k-mers) that two
+   sequences share, which is far quicker than aligning every pair.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class GuideTree
+{
+	/**
+	   A leaf (one input sequence) or the join of two subtrees.
+	 */
+	public static class Node
+	{
+		private int i_leaf;
+		private Node i_left;
+		private Node i_right;
+		private int i_size;
+
+		/**
+		   Creates a leaf for the input sequence at the index.
+		 */
+		Node(int aLeaf)
+		{
+			i_leaf = aLeaf;
+			i_size = 1;
+		}
+
+		/**
+		   Creates the join of two subtrees.
+		 */
+		Node(Node aLeft, Node aRight)
+		{
+			i_leaf = -1;
+			i_left = aLeft;
+			i_right = aRight;
+			i_size = aLeft.i_size + aRight.i_size;
+		}
+
+		/**
+		   Returns true if this is a single sequence.
+		 */
+		public boolean isLeaf()
+		{
+			return i_leaf >= 0;
+		}
+
+		/**
+		   Returns the index of the input sequence, for a leaf.
+		 */
+		public int getLeaf()
+		{
+			return i_leaf;
+		}
+
+		/**
+		   Returns the number of sequences under this node.
+		 */
+		public int getSize()
+		{
+			return i_size;
+		}
+
+		/**
+		   Returns the first subtree, or null for a leaf.
+		 */
+		public Node getLeft()
+		{
+			return i_left;
+		}
+
+		/**
+		   Returns the second subtree, or null for a leaf.
+		 */
+		public Node getRight()
+		{
+			return i_right;
+		}
+	}
+	////End of node class.
+
+	private Node i_root;
+
+	/**
+	   Builds the tree from a matrix of distances between the sequences.
+	 */
+	public GuideTree(double[][] aDistances)
+	{
+		int n = aDistances.length;
+		List<Node> clusters = new ArrayList<Node>();
+		List<double[]> distances = new ArrayList<double[]>();
+		for (int i=0; i<n; i++)
+		{
+			clusters.add(new Node(i));
+			distances.add(Arrays.copyOf(aDistances[i], n));
+		}
+
+		//Active clusters keep their slot; joined ones are set to null.
+		while (n > 1)
+		{
+			int bestI = -1;
+			int bestJ = -1;
+			double best = Double.POSITIVE_INFINITY;
+			for (int i=0; i<clusters.size(); i++)
+			{
+				if (clusters.get(i) == null)
+					continue;
+				for (int j=i+1; j<clusters.size(); j++)
+				{
+					if (clusters.get(j) != null && distances.get(i)[j] < best)
+					{
+						best = distances.get(i)[j];
+						bestI = i;
+						bestJ = j;
+					}
+				}
+			}
+
+			Node left = clusters.get(bestI);
+			Node right = clusters.get(bestJ);
+			Node joined = new Node(left, right);
+
+			//The joined cluster takes the first slot, at the average distance.
+			for (int k=0; k<clusters.size(); k++)
+			{
+				if (clusters.get(k) == null || k == bestI || k == bestJ)
+					continue;
+				double d = (distances.get(bestI)[k] * left.i_size + distances.get(bestJ)[k] * right.i_size)
+						/ joined.i_size;
+				distances.get(bestI)[k] = d;
+				distances.get(k)[bestI] = d;
+			}
+			clusters.set(bestI, joined);
+			clusters.set(bestJ, null);
+			n--;
+		}
+
+		for (Node node : clusters)
+		{
+			if (node != null)
+				i_root = node;
+		}
+	}
+
+	/**
+	   Returns the root of the tree.
+	 */
+	public Node getRoot()
+	{
+		return i_root;
+	}
+
+	/**
+	   Returns the distance between every pair of sequences: 1 minus the
+	   share of the words of length k that they have in common.
+	   Gaps in the sequences are ignored.
+	 */
+	public static double[][] getWordDistances(String[] aSequences, int k)
+	{
+		return getWordDistances(aSequences, k, null);
+	}
+
+	/**
+	   Returns the distance between every pair of sequences, as above.
+	   The rows of the matrix are worked out in parallel on the executor,
+	   or one after another if it is null.
+	 */
+	public static double[][] getWordDistances(String[] aSequences, int k, ExecutorService anExecutor)
+	{
+		int n = aSequences.length;
+		final List<Map<String,Integer>> words = new ArrayList<Map<String,Integer>>();
+		final int[] wordCounts = new int[n];
+		for (int i=0; i<n; i++)
+		{
+			String seq = aSequences[i].replace("-", "").toUpperCase();
+			Map<String,Integer> counts = new HashMap<String,Integer>();
+			for (int p=0; p+k<=seq.length(); p++)
+			{
+				String word = seq.substring(p, p + k);
+				Integer count = counts.get(word);
+				counts.put(word, count == null ? 1 : count + 1);
+			}
+			words.add(counts);
+			wordCounts[i] = Math.max(seq.length() - k + 1, 1);
+		}
+
+		//Each task fills in one row, right of the diagonal.
+		final double[][] distances = new double[n][n];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int row=0; row<n; row++)
+		{
+			final int i = row;
+			tasks.add(new Callable<Void>()
+			{
+				public Void call()
+				{
+					for (int j=i+1; j<distances.length; j++)
+					{
+						int shared = 0;
+						for (Map.Entry<String,Integer> entry : words.get(i).entrySet())
+						{
+							Integer other = words.get(j).get(entry.getKey());
+							if (other != null)
+								shared += Math.min(entry.getValue(), other);
+						}
+						distances[i][j] = 1 - (double) shared / Math.min(wordCounts[i], wordCounts[j]);
+					}
+					return null;
+				}
+			});
+		}
+
+		try
+		{
+			if (anExecutor == null)
+			{
+				for (Callable<Void> task : tasks)
+					task.call();
+			}
+			else
+			{
+				for (Future<Void> result : anExecutor.invokeAll(tasks))
+					result.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while finding distances", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException("Could not find distances", e.getCause());
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException("Could not find distances", e);
+		}
+
+		for (int i=0; i<n; i++)
+		{
+			for (int j=i+1; j<n; j++)
+				distances[j][i] = distances[i][j];
+		}
+		return distances;
+	}
+}
@@ -0,0 +1,83 @@
+package gamsa.profile;
+
+/**
+   A group of sequences that have been aligned with each other, seen
+   as a series of columns.  Each column records how many of the rows
+   hold each symbol, so that two groups can be aligned as wholes.
+
+   Symbols are stored as codes given out by a ProfileAligner, with -1
+   for a gap.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class Profile
+{
+	//Positions of the rows in the input.
+	private int[] i_members;
+
+	//Symbol codes of each row, -1 for a gap.
+	private int[][] i_rows;
+
+	//Number of rows holding each symbol, by column.
+	private float[][] i_counts;
+
+	/**
+	   Constructor.  All rows must be the same length.
+	 */
+	public Profile(int[] aMembers, int[][] aRows, int aSymbolCount)
+	{
+		i_members = aMembers;
+		i_rows = aRows;
+
+		int length = aRows[0].length;
+		i_counts = new float[length][aSymbolCount];
+		for (int[] row : aRows)
+		{
+			for (int col=0; col<length; col++)
+			{
+				if (row[col] >= 0)
+					i_counts[col][row[col]]++;
+			}
+		}
+	}
+
+	/**
+	   Returns the number of columns.
+	 */
+	public int getLength()
+	{
+		return i_counts.length;
+	}
+
+	/**
+	   Returns the number of rows.
+	 */
+	public int getRowCount()
+	{
+		return i_rows.length;
+	}
+
+	/**
+	   Returns the position in the input of each row.
+	 */
+	public int[] getMembers()
+	{
+		return i_members;
+	}
+
+	/**
+	   Returns the symbol codes of the specified row, -1 for a gap.
+	 */
+	public int[] getRow(int anIndex)
+	{
+		return i_rows[anIndex];
+	}
+
+	/**
+	   Returns the number of rows holding each symbol in the column.
+	 */
+	public float[] getCounts(int aColumn)
+	{
+		return i_counts[aColumn];
+	}
+}
@@ -0,0 +1,359 @@
+package gamsa.profile;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import gamsa.scorer.Scorer;
+
+/**
+   Aligns sequences progressively: pairs of profiles are aligned by
+   dynamic programming, following a guide tree, until every sequence
+   is in one alignment.  Columns are compared by the average score of
+   the scorer's substitutions between their symbols, and gaps cost
+   the scorer's open and extend penalties (half as much at either end,
+   as the scorers charge for leading and trailing gaps).
+
+   This gives a reasonable alignment quickly, but an early mistake is
+   never undone, so the result is meant as a starting point.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class ProfileAligner
+{
+	//States of the dynamic programming, and what the traceback records.
+	private static final int MATCH = 0;
+	private static final int GAP_IN_B = 1;
+	private static final int GAP_IN_A = 2;
+
+	private static final float NONE = Float.NEGATIVE_INFINITY;
+
+	//Symbols in the input, and the code for each.
+	private char[] i_symbols;
+	private Map<Character,Integer> i_codes = new HashMap<Character,Integer>();
+
+	//Substitution scores by symbol code.
+	private float[][] i_substitution;
+
+	private float i_gapOpen;
+	private float i_gapExtend;
+
+	/**
+	   Constructor.  Every symbol in the sequences is given a code.
+	 */
+	public ProfileAligner(Scorer aScorer, String[] aSequences)
+	{
+		StringBuilder symbols = new StringBuilder();
+		for (String seq : aSequences)
+		{
+			for (int i=0; i<seq.length(); i++)
+			{
+				char c = seq.charAt(i);
+				if (c != '-' && !i_codes.containsKey(c))
+				{
+					i_codes.put(c, symbols.length());
+					symbols.append(c);
+				}
+			}
+		}
+		i_symbols = symbols.toString().toCharArray();
+
+		int count = i_symbols.length;
+		i_substitution = new float[count][count];
+		for (int a=0; a<count; a++)
+		{
+			for (int b=0; b<count; b++)
+				i_substitution[a][b] = aScorer.getSubstitution(i_symbols[a], i_symbols[b]);
+		}
+		i_gapOpen = aScorer.getGapOpenPenalty();
+		i_gapExtend = aScorer.getGapExtendPenalty();
+	}
+
+	/**
+	   Returns the number of different symbols in the input.
+	 */
+	public int getSymbolCount()
+	{
+		return i_symbols.length;
+	}
+
+	/**
+	   Aligns all of the sequences, merging them in the order given by
+	   the tree.  Returns the aligned rows, in the same order as the
+	   input, with '-' for gaps.
+	 */
+	public String[] align(String[] aSequences, GuideTree aTree)
+	{
+		Profile profile = align(aSequences, aTree.getRoot());
+
+		String[] rows = new String[aSequences.length];
+		String[] aligned = getRows(profile);
+		for (int r=0; r<aligned.length; r++)
+			rows[profile.getMembers()[r]] = aligned[r];
+		return rows;
+	}
+
+	/**
+	   Returns the rows of the profile, in its own order, with '-' for gaps.
+	 */
+	public String[] getRows(Profile aProfile)
+	{
+		String[] rows = new String[aProfile.getRowCount()];
+		for (int r=0; r<rows.length; r++)
+		{
+			int[] codes = aProfile.getRow(r);
+			char[] row = new char[codes.length];
+			for (int col=0; col<codes.length; col++)
+				row[col] = codes[col] < 0 ? '-' : i_symbols[codes[col]];
+			rows[r] = new String(row);
+		}
+		return rows;
+	}
+
+	/**
+	   Returns the profile of the sequences under the node.
+	 */
+	private Profile align(String[] aSequences, GuideTree.Node aNode)
+	{
+		if (aNode.isLeaf())
+			return getProfile(aNode.getLeaf(), aSequences[aNode.getLeaf()]);
+		return align(align(aSequences, aNode.getLeft()), align(aSequences, aNode.getRight()));
+	}
+
+	/**
+	   Returns a profile holding just the one sequence.  Gaps already
+	   in it are dropped.
+	 */
+	public Profile getProfile(int anIndex, String aSequence)
+	{
+		String residues = aSequence.replace("-", "");
+		int[] row = new int[residues.length()];
+		for (int i=0; i<row.length; i++)
+			row[i] = i_codes.get(residues.charAt(i));
+		return new Profile(new int[] {anIndex}, new int[][] {row}, i_symbols.length);
+	}
+
+	/**
+	   Returns a profile of rows that are already aligned with each
+	   other, with '-' for gaps.  The members are the positions of the
+	   rows in the input.
+	 */
+	public Profile getProfile(int[] aMembers, String[] aRows)
+	{
+		int[][] rows = new int[aRows.length][];
+		for (int r=0; r<rows.length; r++)
+		{
+			rows[r] = new int[aRows[r].length()];
+			for (int col=0; col<rows[r].length; col++)
+			{
+				char c = aRows[r].charAt(col);
+				rows[r][col] = c == '-' ? -1 : i_codes.get(c);
+			}
+		}
+		return new Profile(aMembers, rows, i_symbols.length);
+	}
+
+	/**
+	   Returns the best alignment of the two profiles.  The columns of
+	   each profile are kept together.
+	 */
+	public Profile align(Profile a, Profile b)
+	{
+		float[][] aCounts = new float[a.getLength()][];
+		for (int col=0; col<aCounts.length; col++)
+			aCounts[col] = a.getCounts(col);
+		int[][] columns = alignColumns(aCounts, a.getRowCount(), b);
+		int length = columns[0].length;
+
+		int rows = a.getRowCount() + b.getRowCount();
+		int[] members = new int[rows];
+		int[][] merged = new int[rows][length];
+		for (int r=0; r<rows; r++)
+		{
+			boolean fromA = r < a.getRowCount();
+			Profile source = fromA ? a : b;
+			int sourceRow = fromA ? r : r - a.getRowCount();
+			int[] sourceColumns = columns[fromA ? 0 : 1];
+			int[] codes = source.getRow(sourceRow);
+			members[r] = source.getMembers()[sourceRow];
+			for (int col=0; col<length; col++)
+				merged[r][col] = sourceColumns[col] < 0 ? -1 : codes[sourceColumns[col]];
+		}
+		return new Profile(members, merged, i_symbols.length);
+	}
+
+	/**
+	   Returns the best alignment of a profile with another, where the
+	   first is given only by the counts of each of its columns and its
+	   number of rows, so that its rows need not exist.  For each column
+	   of the alignment, the first array holds the column of the first
+	   profile there, and the second that of the second; -1 for a gap.
+	 */
+	public int[][] alignColumns(float[][] aCounts, int aRowCount, Profile b)
+	{
+		int n = aCounts.length;
+		int m = b.getLength();
+		int symbols = i_symbols.length;
+		float pairs = aRowCount * b.getRowCount();
+
+		//Substitution score of each symbol against each column of b, and
+		// the number of residues in each column.
+		float[][] bScores = new float[m][symbols];
+		float[] bResidues = new float[m];
+		for (int j=0; j<m; j++)
+		{
+			float[] counts = b.getCounts(j);
+			for (int t=0; t<symbols; t++)
+				bResidues[j] += counts[t];
+			for (int s=0; s<symbols; s++)
+			{
+				float total = 0;
+				for (int t=0; t<symbols; t++)
+					total += counts[t] * i_substitution[s][t];
+				bScores[j][s] = total / pairs;
+			}
+		}
+
+		//Best score ending in each state, one row at a time.
+		float[] match = new float[m + 1];
+		float[] gapB = new float[m + 1];
+		float[] gapA = new float[m + 1];
+		float[] lastMatch = new float[m + 1];
+		float[] lastGapB = new float[m + 1];
+		float[] lastGapA = new float[m + 1];
+
+		//The state each state came from, packed two bits per state.
+		byte[][] trace = new byte[n + 1][m + 1];
+
+		for (int i=0; i<=n; i++)
+		{
+			float[] counts = i > 0 ? aCounts[i-1] : null;
+			float aResidues = 0;
+			for (int s=0; i>0 && s<symbols; s++)
+				aResidues += counts[s];
+			//Gaps in a before its first column or after its last cost half.
+			float openA = i == 0 || i == n ? i_gapOpen / 2 : i_gapOpen;
+			float extendA = i == 0 || i == n ? i_gapExtend / 2 : i_gapExtend;
+			for (int j=0; j<=m; j++)
+			{
+				float openB = j == 0 || j == m ? i_gapOpen / 2 : i_gapOpen;
+				float extendB = j == 0 || j == m ? i_gapExtend / 2 : i_gapExtend;
+				int from = 0;
+
+				if (i == 0 && j == 0)
+				{
+					match[j] = 0;
+					gapB[j] = NONE;
+					gapA[j] = NONE;
+					continue;
+				}
+
+				//Column i of a against column j of b.
+				match[j] = NONE;
+				if (i > 0 && j > 0)
+				{
+					float column = 0;
+					float[] scores = bScores[j-1];
+					for (int s=0; s<symbols; s++)
+						column += counts[s] * scores[s];
+					//Gaps already in either column, facing residues in the other.
+					column += ((aRowCount - aResidues) * bResidues[j-1]
+							+ aResidues * (b.getRowCount() - bResidues[j-1])) * i_gapExtend / pairs;
+					int prev = best(lastMatch[j-1], lastGapB[j-1], lastGapA[j-1]);
+					match[j] = column + value(prev, lastMatch[j-1], lastGapB[j-1], lastGapA[j-1]);
+					from |= prev;
+				}
+
+				//Column i of a against a gap in b.
+				gapB[j] = NONE;
+				if (i > 0)
+				{
+					float viaMatch = lastMatch[j] + openB;
+					float viaGapB = lastGapB[j] + extendB;
+					float viaGapA = lastGapA[j] + openB;
+					int prev = best(viaMatch, viaGapB, viaGapA);
+					gapB[j] = value(prev, viaMatch, viaGapB, viaGapA);
+					from |= prev << 2;
+				}
+
+				//Column j of b against a gap in a.
+				gapA[j] = NONE;
+				if (j > 0)
+				{
+					float viaMatch = match[j-1] + openA;
+					float viaGapB = gapB[j-1] + openA;
+					float viaGapA = gapA[j-1] + extendA;
+					int prev = best(viaMatch, viaGapB, viaGapA);
+					gapA[j] = value(prev, viaMatch, viaGapB, viaGapA);
+					from |= prev << 4;
+				}
+				trace[i][j] = (byte) from;
+			}
+
+			float[] swap = lastMatch;
+			lastMatch = match;
+			match = swap;
+			swap = lastGapB;
+			lastGapB = gapB;
+			gapB = swap;
+			swap = lastGapA;
+			lastGapA = gapA;
+			gapA = swap;
+		}
+
+		//Walk back from the end, building the columns in reverse.
+		int state = best(lastMatch[m], lastGapB[m], lastGapA[m]);
+		int[] aColumns = new int[n + m];
+		int[] bColumns = new int[n + m];
+		int length = 0;
+		int i = n;
+		int j = m;
+		while (i > 0 || j > 0)
+		{
+			int from = trace[i][j];
+			if (state == MATCH)
+			{
+				aColumns[length] = --i;
+				bColumns[length++] = --j;
+				state = from & 3;
+			}
+			else if (state == GAP_IN_B)
+			{
+				aColumns[length] = --i;
+				bColumns[length++] = -1;
+				state = (from >> 2) & 3;
+			}
+			else
+			{
+				aColumns[length] = -1;
+				bColumns[length++] = --j;
+				state = (from >> 4) & 3;
+			}
+		}
+
+		int[][] columns = new int[2][length];
+		for (int col=0; col<length; col++)
+		{
+			columns[0][col] = aColumns[length - 1 - col];
+			columns[1][col] = bColumns[length - 1 - col];
+		}
+		return columns;
+	}
+
+	/**
+	   Returns the state with the highest score.  Ties go to the match.
+	 */
+	private static int best(float aMatch, float aGapB, float aGapA)
+	{
+		if (aMatch >= aGapB && aMatch >= aGapA)
+			return MATCH;
+		return aGapB >= aGapA ? GAP_IN_B : GAP_IN_A;
+	}
+
+	/**
+	   Returns the score of the specified state.
+	 */
+	private static float value(int aState, float aMatch, float aGapB, float aGapA)
+	{
+		return aState == MATCH ? aMatch : aState == GAP_IN_B ? aGapB : aGapA;
+	}
+}
@@ -1,7 +1,6 @@
 package gamsa.scorer;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import gamsa.population.Sequence;
 
@@ -13,7 +12,7 @@ import gamsa.population.Sequence;
    
    @author Tom Austin and Amie Radenbaugh
  */
-public class Blosum62Scorer implements Scorer
+public class Blosum62Scorer implements ChunkScorer
 {
 	private static final int GAP_START_PENALTY = -12;
 	private static final int GAP_CONTINUE_PENALTY = -4;
@@ -44,94 +43,458 @@ public class Blosum62Scorer implements Scorer
 		 {-2, -2, -2, -3, -2, -3, -2, -3, -2, -1,  2, -2, -2, -1, -1, -1, -1,  3,  7,  2},  //Y
 		 {-2, -3, -3, -4, -3, -2, -4, -4, -3, -2, -2, -3, -3, -1, -3, -2, -3,  1,  2,  11}};//W
 	
-	//Used for a convenient lookup.
-	private static Map<String,Integer> i_scoreMap;
+	//Marks a pair of characters that is not in the matrix.
+	static final int NO_SCORE = Integer.MIN_VALUE;
+	
+	//Marks a state that cannot be reached when finding the best alignment.
+	// Low enough to stay below any real score, but not so low that adding
+	// penalties wraps around.
+	private static final int NONE = Integer.MIN_VALUE / 4;
+	
+	//States of the dynamic programming, as the traceback records them,
+	// and the flag for a state reached from the row before.
+	private static final int MATCH = 0;
+	private static final int FREE = 1;
+	private static final int S1_GAPS = 2;
+	private static final int S2_GAPS = 3;
+	private static final int S1_LEADING = 4;
+	private static final int S2_LEADING = 5;
+	private static final int STATES = 6;
+	private static final int UP = 8;
+	
+	//Used for a convenient lookup, indexed by the two characters.
+	// Lower case letters are included.
+	private static int[][] i_scoreTable;
+	
+	//Best score for each character against any amino acid, or 0.
+	private static int[] i_maxScores;
 	
 	/**
 	   Constructor.
 	 */
 	public Blosum62Scorer()
 	{
-		i_scoreMap = new HashMap<String,Integer>(); 
+		i_scoreTable = new int[128][128];
+		for (int[] row : i_scoreTable)
+			Arrays.fill(row, NO_SCORE);
+		
 		for (int i=0; i<PROTEIN_SYMBOLS.length; i++)
 		{
-			String protein1 = PROTEIN_SYMBOLS[i];
+			char protein1 = PROTEIN_SYMBOLS[i].charAt(0);
 			for (int j=0; j<PROTEIN_SYMBOLS.length; j++)
 			{
-				String protein2 = PROTEIN_SYMBOLS[j];
-				i_scoreMap.put(protein1+protein2, SCORING_MATRIX[i][j]);
-				i_scoreMap.put(protein2+protein1, SCORING_MATRIX[j][i]);
+				char protein2 = PROTEIN_SYMBOLS[j].charAt(0);
+				int score = SCORING_MATRIX[i][j];
+				i_scoreTable[protein1][protein2] = score;
+				i_scoreTable[Character.toLowerCase(protein1)][protein2] = score;
+				i_scoreTable[protein1][Character.toLowerCase(protein2)] = score;
+				i_scoreTable[Character.toLowerCase(protein1)][Character.toLowerCase(protein2)] = score;
 			}
 		}
+		
+		i_maxScores = new int[128];
+		for (int c=0; c<128; c++)
+		{
+			for (int score : i_scoreTable[c])
+				i_maxScores[c] = Math.max(i_maxScores[c], score);
+		}
 	}
 	
 	/**
-	   Calculates score of 2 sequences using BLOSUM62.
+	   Returns the matrix score for two characters, ignoring case,
+	   or NO_SCORE if either one is not an amino acid.
+	 */
+	static int lookup(char c1, char c2)
+	{
+		if (c1 >= 128)
+			c1 = Character.toUpperCase(c1);
+		if (c2 >= 128)
+			c2 = Character.toUpperCase(c2);
+		if (c1 >= 128 || c2 >= 128)
+			return NO_SCORE;
+		return i_scoreTable[c1][c2];
+	}
+	
+	/**
+	   Calculates score of 2 sequences using BLOSUM62.  Long
+	   sequences are scored in parallel chunks.
 	   @see gamsa.scorer.Scorer#compareSequences(gamsa.population.Sequence, gamsa.population.Sequence)
 	 */
 	public float compareSequences(Sequence seq1, Sequence seq2)
 	{
-		float score = 0;
-		
-		boolean s1Started = false;
-		boolean s2Started = false;
+		return ParallelPairScoring.compare(this, seq1, seq2);
+	}
+	
+	/**
+	   Returns the best matrix score for the character.  Anything
+	   that is not an amino acid is scored as a gap, so gives 0.
+	   @see gamsa.scorer.Scorer#getMaxSubstitution(char)
+	 */
+	public float getMaxSubstitution(char c)
+	{
+		if (c >= 128)
+			c = Character.toUpperCase(c);
+		return c < 128 ? i_maxScores[c] : 0;
+	}
+	
+	/**
+	   Returns the matrix score for the two characters.  Anything that
+	   is not an amino acid scores as a continued gap.
+	   @see gamsa.scorer.Scorer#getSubstitution(char, char)
+	 */
+	public float getSubstitution(char c1, char c2)
+	{
+		int score = lookup(c1, c2);
+		return score == NO_SCORE ? GAP_CONTINUE_PENALTY : score;
+	}
+	
+	/**
+	   @see gamsa.scorer.Scorer#getGapOpenPenalty()
+	 */
+	public float getGapOpenPenalty()
+	{
+		return GAP_START_PENALTY;
+	}
+	
+	/**
+	   @see gamsa.scorer.Scorer#getGapExtendPenalty()
+	 */
+	public float getGapExtendPenalty()
+	{
+		return GAP_CONTINUE_PENALTY;
+	}
+	
+	/**
+	   Walks the columns in the range the same way a full comparison
+	   would, but leaves the gaps that are still open at either end
+	   of the range to be scored once the neighbouring ranges are known.
+	   @see gamsa.scorer.ChunkScorer#summarize(gamsa.population.Sequence, gamsa.population.Sequence, int, int)
+	 */
+	public ChunkSummary summarize(Sequence seq1, Sequence seq2, int aStart, int anEnd)
+	{
+		GapRunSummary summary = new GapRunSummary();
 		
 		//Counters for the size of a gap.
 		int s1GapCount = 0;
 		int s2GapCount = 0;
 		
-		for (int i=0;i<seq1.getSize();i++)
+		for (int i=aStart; i<anEnd; i++)
 		{
-			char[] proteins = new char[2];
-			proteins[0] = seq1.getElementAt(i);
-			proteins[1] = seq2.getElementAt(i);
-			String key = new String(proteins).toUpperCase();
+			char protein1 = seq1.getElementAt(i);
+			char protein2 = seq2.getElementAt(i);
+			int val = lookup(protein1, protein2);
 			
-			int val = 0;
 			//No gaps
-			if (i_scoreMap.containsKey(key))
+			if (val != NO_SCORE)
 			{
-				val = i_scoreMap.get(key);
-
-				//Gap penalties are assessed when the gap is finished.
-				// Leading gaps are not counted
-				val += scoreGaps(s1Started, s2Started, s1GapCount, s2GapCount);
+				//Gap penalties are assessed when the gap is finished.  Gaps
+				// before the first match depend on the columns to the left.
+				if (summary.i_matched)
+				{
+					val += scoreGaps(true, true, s1GapCount, s2GapCount);
+				}
+				else
+				{
+					summary.i_leadGaps1 = s1GapCount;
+					summary.i_leadGaps2 = s2GapCount;
+					summary.i_matched = true;
+				}
 				s1GapCount = s2GapCount = 0;
-				s1Started = true;
-				s2Started = true;
+				summary.i_score += val;
+			}
+			//Both gaps -- ignore
+			else if (protein1 == '-' && protein2 == '-') {;}
+			//Gaps.  Penalties are not assessed until we know the size of the gap.
+			else if (protein1 == '-')
+			{
+				s1GapCount++;
+				if (!summary.i_matched)
+					summary.i_leadStarts2 = true;
 			}
-			//Gaps
 			else
 			{
-				//Gap penalties are not assessed until we know the size of the gap.
-				val = 0;
+				s2GapCount++;
+				if (!summary.i_matched)
+					summary.i_leadStarts1 = true;
+			}
+		}
+		
+		if (summary.i_matched)
+		{
+			summary.i_trailGaps1 = s1GapCount;
+			summary.i_trailGaps2 = s2GapCount;
+		}
+		else
+		{
+			summary.i_leadGaps1 = s1GapCount;
+			summary.i_leadGaps2 = s2GapCount;
+		}
+		return summary;
+	}
+
+	/**
+	   Finds the best alignment of the two sequences by dynamic
+	   programming, following the gap rules of compareSequences().
+	   Between two matched columns, the gaps only cost what the gaps
+	   in s2 would cost on their own, as long as there is at least one.
+	   So the gaps in s1 are only paid for when s2 has none, and there
+	   are separate states for each case.  Leading gaps are halved, and
+	   trailing gaps are scored once the last match is known.
+	   Characters that are not amino acids can never match; if there
+	   are any, leading gaps are allowed the lower penalty more often
+	   than they would get it, so the score is still an upper bound.
+	   @see gamsa.scorer.Scorer#getOptimalScore(java.lang.String, java.lang.String)
+	 */
+	public float getOptimalScore(String s1, String s2)
+	{
+		return fill(s1, s2, null, null);
+	}
+	
+	/**
+	   Finds the best alignment of two sequences with the dynamic
+	   programming of getOptimalScore(), remembering where each state
+	   came from.  Gaps in s1 between two matches are put before the
+	   gaps in s2, which compareSequences() does not mind.  Returns null
+	   for any other number of sequences, or if there are characters
+	   that are not amino acids, as the score is then only a bound.
+	   @see gamsa.scorer.Scorer#getOptimalAlignment(java.lang.String[])
+	 */
+	public String[] getOptimalAlignment(String[] sequences)
+	{
+		if (sequences.length != 2 || hasUnknowns(sequences[0]) || hasUnknowns(sequences[1]))
+			return null;
+		String s1 = sequences[0];
+		String s2 = sequences[1];
+		int n = s1.length();
+		int m = s2.length();
+		if ((long) (n + 1) * (m + 1) > Integer.MAX_VALUE)
+			return null;
+		
+		byte[][] trace = new byte[STATES][(n + 1) * (m + 1)];
+		int[] end = new int[2];
+		if (fill(s1, s2, trace, end) == NO_SCORE)
+			return null;
+		
+		//Whatever is left after the last match trails, s1's first.
+		StringBuilder row1 = new StringBuilder();
+		StringBuilder row2 = new StringBuilder();
+		for (int k=n; k>end[0]; k--)
+		{
+			row1.append(s1.charAt(k-1));
+			row2.append('-');
+		}
+		for (int k=m; k>end[1]; k--)
+		{
+			row1.append('-');
+			row2.append(s2.charAt(k-1));
+		}
+		
+		//Walk back to the start, building the rows in reverse.
+		int i = end[0];
+		int j = end[1];
+		int state = MATCH;
+		while (i > 0 || j > 0)
+		{
+			int from = trace[state][i * (m + 1) + j];
+			boolean up = (from & UP) != 0;
+			if (state == MATCH)
+			{
+				row1.append(s1.charAt(--i));
+				row2.append(s2.charAt(--j));
+			}
+			else if (up)
+			{
+				row1.append(s1.charAt(--i));
+				row2.append('-');
+			}
+			else
+			{
+				row1.append('-');
+				row2.append(s2.charAt(--j));
+			}
+			state = from & ~UP;
+		}
+		return new String[] {row1.reverse().toString(), row2.reverse().toString()};
+	}
+	
+	/**
+	   Fills in the table of getOptimalScore() and returns the best
+	   score.  If trace is given, it gets the state each state came
+	   from in each cell, with UP set if that was in the row before,
+	   and end gets the cell of the last match.
+	 */
+	private static int fill(String s1, String s2, byte[][] trace, int[] end)
+	{
+		int n = s1.length();
+		int m = s2.length();
+		boolean unknowns = hasUnknowns(s1) || hasUnknowns(s2);
+		
+		//Each state is kept for the previous row (i-1) and the current one (i).
+		//Last column was a match.  The start counts as a match.
+		int[][] match = new int[2][m + 1];
+		//Only gaps in s1 since the last match, not paid for yet because
+		// a gap in s2 will follow.
+		int[][] free = new int[2][m + 1];
+		//Only gaps in s1 since the last match, paid for.
+		int[][] s1Gaps = new int[2][m + 1];
+		//At least one gap in s2 since the last match.  Gaps in s1 are free.
+		int[][] s2Gaps = new int[2][m + 1];
+		//Leading gaps in s1 only, at half penalty.
+		int[][] s1Leading = new int[2][m + 1];
+		//Leading gaps in s2 only, at half penalty.
+		int[][] s2Leading = new int[2][m + 1];
+		
+		int best = NO_SCORE;
+		for (int i=0; i<=n; i++)
+		{
+			int cur = i & 1;
+			int prev = cur ^ 1;
+			for (int j=0; j<=m; j++)
+			{
+				boolean start = i == 0 && j == 0;
+				int matched = start ? 0 : NONE;
+				int f = NONE, g1 = NONE, g2 = NONE, l1 = NONE, l2 = NONE;
+				int matchedFrom = MATCH, fFrom = MATCH, g1From = MATCH, g2From = MATCH, l1From = MATCH, l2From = MATCH;
 				
-				//Both gaps -- ignore
-				if (key.equals("--")) {;}
-				else if (proteins[0] == '-')
+				if (i > 0 && j > 0)
 				{
-					s1GapCount++;
-					s2Started = true;
+					int value = lookup(s1.charAt(i-1), s2.charAt(j-1));
+					if (value != NO_SCORE)
+					{
+						int before = match[prev][j-1];
+						if (s1Gaps[prev][j-1] > before)
+						{
+							before = s1Gaps[prev][j-1];
+							matchedFrom = S1_GAPS;
+						}
+						if (s2Gaps[prev][j-1] > before)
+						{
+							before = s2Gaps[prev][j-1];
+							matchedFrom = S2_GAPS;
+						}
+						if (s1Leading[prev][j-1] > before)
+						{
+							before = s1Leading[prev][j-1];
+							matchedFrom = S1_LEADING;
+						}
+						if (s2Leading[prev][j-1] > before)
+						{
+							before = s2Leading[prev][j-1];
+							matchedFrom = S2_LEADING;
+						}
+						matched = value + before;
+					}
 				}
-				else
+				if (j > 0)
+				{
+					boolean afterStart = i == 0 && j == 1;
+					f = match[cur][j-1];
+					if (free[cur][j-1] > f)
+					{
+						f = free[cur][j-1];
+						fFrom = FREE;
+					}
+					g1 = afterStart ? NONE : match[cur][j-1] + GAP_START_PENALTY;
+					if (s1Gaps[cur][j-1] + GAP_CONTINUE_PENALTY > g1)
+					{
+						g1 = s1Gaps[cur][j-1] + GAP_CONTINUE_PENALTY;
+						g1From = S1_GAPS;
+					}
+					if (i == 0)
+					{
+						l1 = afterStart ? GAP_START_PENALTY / 2 : s1Leading[cur][j-1] + GAP_CONTINUE_PENALTY / 2;
+						l1From = afterStart ? MATCH : S1_LEADING;
+					}
+					g2 = s2Gaps[cur][j-1];
+					g2From = S2_GAPS;
+					if (unknowns)
+					{
+						l2 = s2Leading[cur][j-1];
+						l2From = S2_LEADING;
+					}
+				}
+				if (i > 0)
+				{
+					boolean afterStart = i == 1 && j == 0;
+					if (s2Gaps[prev][j] + GAP_CONTINUE_PENALTY > g2)
+					{
+						g2 = s2Gaps[prev][j] + GAP_CONTINUE_PENALTY;
+						g2From = S2_GAPS | UP;
+					}
+					if (free[prev][j] + GAP_START_PENALTY > g2)
+					{
+						g2 = free[prev][j] + GAP_START_PENALTY;
+						g2From = FREE | UP;
+					}
+					if (!afterStart && match[prev][j] + GAP_START_PENALTY > g2)
+					{
+						g2 = match[prev][j] + GAP_START_PENALTY;
+						g2From = MATCH | UP;
+					}
+					int above = afterStart ? GAP_START_PENALTY / 2 : s2Leading[prev][j] + GAP_CONTINUE_PENALTY / 2;
+					if (above > l2)
+					{
+						l2 = above;
+						l2From = (afterStart ? MATCH : S2_LEADING) | UP;
+					}
+				}
+				
+				match[cur][j] = matched;
+				free[cur][j] = f;
+				s1Gaps[cur][j] = g1;
+				s2Gaps[cur][j] = g2;
+				s1Leading[cur][j] = l1;
+				s2Leading[cur][j] = l2;
+				if (trace != null)
+				{
+					int cell = i * (m + 1) + j;
+					trace[MATCH][cell] = (byte) matchedFrom;
+					trace[FREE][cell] = (byte) fFrom;
+					trace[S1_GAPS][cell] = (byte) g1From;
+					trace[S2_GAPS][cell] = (byte) g2From;
+					trace[S1_LEADING][cell] = (byte) l1From;
+					trace[S2_LEADING][cell] = (byte) l2From;
+				}
+				
+				//Whatever is left after the last match trails.
+				if (matched > NONE)
 				{
-					s2GapCount++;
-					s1Started = true;
+					int score = matched + scoreGaps(false, false, m - j, n - i);
+					if (score > best)
+					{
+						best = score;
+						if (end != null)
+						{
+							end[0] = i;
+							end[1] = j;
+						}
+					}
 				}
 			}
-			score += val;
 		}
-		//Score any trailing gaps, at half penalty.
-		score += scoreGaps(false, false, s1GapCount, s2GapCount);
-		return score;
+		return best;
 	}
-
+	
+	/**
+	   Returns true if the sequence has anything other than amino acids.
+	 */
+	private static boolean hasUnknowns(String aSequence)
+	{
+		for (int i=0; i<aSequence.length(); i++)
+		{
+			char c = aSequence.charAt(i);
+			if (lookup(c, c) == NO_SCORE)
+				return true;
+		}
+		return false;
+	}
+	
 	/**
 	   Returns the penalty for the number of gaps.
 	   Leading and trailing gaps are punished only half, so the
 	   first 2 arguments specify that for each sequence.
 	 */
-	private int scoreGaps(boolean s1HalvePenalty, boolean s2HalvePenalty, int s1GapCount, int s2GapCount) {
+	static int scoreGaps(boolean s1HalvePenalty, boolean s2HalvePenalty, int s1GapCount, int s2GapCount) {
 		int gapPenalty = 0;
 		if (s1GapCount != 0)
 		{
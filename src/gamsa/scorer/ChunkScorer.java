@@ -0,0 +1,18 @@
+package gamsa.scorer;
+
+import gamsa.population.Sequence;
+
+/**
+   A scorer that can summarize any range of columns on its own, so
+   that one pair of sequences can be scored in pieces.
+   
+   @author Tom Austin and Amie Radenbaugh
+ */
+public interface ChunkScorer extends Scorer
+{
+	/**
+	   Returns a summary of columns aStart (inclusive) through
+	   anEnd (exclusive) of the two sequences.
+	 */
+	public ChunkSummary summarize(Sequence s1, Sequence s2, int aStart, int anEnd);
+}
@@ -0,0 +1,24 @@
+package gamsa.scorer;
+
+/**
+   Summary of how a run of columns scores for a pair of sequences.
+   Summaries of neighbouring runs can be combined, and combining is
+   associative, so a long pair can be split into chunks that are
+   scored independently and merged afterwards.
+   
+   @author Tom Austin and Amie Radenbaugh
+ */
+public abstract class ChunkSummary
+{
+	/**
+	   Returns the summary for this run of columns followed directly
+	   by the specified run.  Neither summary is changed.
+	 */
+	public abstract ChunkSummary combine(ChunkSummary right);
+	
+	/**
+	   Returns the score of the pair, treating this summary as
+	   covering all of the columns.
+	 */
+	public abstract float getScore();
+}
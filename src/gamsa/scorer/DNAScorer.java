@@ -1,5 +1,7 @@
 package gamsa.scorer;
 
+import gamsa.InfoCenter;
+import gamsa.population.PackedDNASequence;
 import gamsa.population.Sequence;
 
 /**
@@ -9,7 +11,7 @@ import gamsa.population.Sequence;
  * 
  * @author Amie Radenbaugh and Tom Austin
  */
-public class DNAScorer implements Scorer
+public class DNAScorer implements ChunkScorer
 {	
 	/**
 	 * Returns the score between 2 given DNA sequences.  Loops through
@@ -28,6 +30,17 @@ public class DNAScorer implements Scorer
 	 */
 	public float compareSequences(Sequence seq1, Sequence seq2)
 	{
+		// Very long pairs are split up and scored in parallel.
+		int threshold = InfoCenter.getCenter().getParallelScoringThreshold();
+		if (threshold > 0 && seq1.getSize() >= threshold)
+			return ParallelPairScoring.compare(this, seq1, seq2);
+		
+		// Plain nucleotide sequences are compared 32 columns at a time.
+		PackedDNASequence packed1 = seq1.getPackedDNA();
+		PackedDNASequence packed2 = seq2.getPackedDNA();
+		if (packed1 != null && packed2 != null && packed1.getSize() == packed2.getSize())
+			return comparePacked(packed1, packed2);
+		
 		float score = 0;
 		
 		// Translate leading and trailing gaps so that we know to ignore them
@@ -35,36 +48,407 @@ public class DNAScorer implements Scorer
 		seq2 = seq2.getSequenceWithEdgeGapsTranslated();
 		
 		for (int i=0;i<seq1.getSize();i++)
+			score += scoreColumn(seq1.getElementAt(i), seq2.getElementAt(i));
+		
+		return score;
+	}
+	
+	/**
+	 * Returns the score of one column, where '.' stands for a leading
+	 * or trailing gap.
+	 */
+	private static int scoreColumn(char comparingChar, char tempChar)
+	{
+		if (comparingChar == '-' && tempChar == '-')
 		{
-			char comparingChar = seq1.getElementAt(i);
-			char tempChar = seq2.getElementAt(i);
-			if (comparingChar == '-' && tempChar == '-')
+			// aligned gaps -- ignore.
+			return 0;
+		}
+		else if (comparingChar == '.' || tempChar == '.')
+		{
+			// Leading or trailing gaps.  Punish these, but at a lesser rate.
+			return -1;
+		}
+		else if (comparingChar == tempChar)
+		{
+			// match
+			return 1;
+		}
+		else if (comparingChar == '-' || tempChar == '-')
+		{
+			// gap in one.
+			return -2;
+		}
+		else
+		{
+			// mismatch
+			return -1;
+		}
+	}
+	
+	/**
+	 * A nucleotide scores at most +1 (a match).  Gaps never score
+	 * above 0.
+	 * @see gamsa.scorer.Scorer#getMaxSubstitution(char)
+	 */
+	public float getMaxSubstitution(char c)
+	{
+		return c == '-' || c == '.' ? 0 : 1;
+	}
+	
+	/**
+	 * Finds the best alignment of the two sequences by dynamic
+	 * programming.  A gap costs -1 before the first or after the last
+	 * nucleotide of its sequence and -2 anywhere else, the same as in
+	 * compareSequences().  Columns where both sequences have a gap never
+	 * score above 0, so they are left out.
+	 * @see gamsa.scorer.Scorer#getOptimalScore(java.lang.String, java.lang.String)
+	 */
+	public float getOptimalScore(String s1, String s2)
+	{
+		int n = s1.length();
+		int m = s2.length();
+		int[] previous = new int[m + 1];
+		int[] current = new int[m + 1];
+		
+		//Leading gaps in s1.
+		for (int j=1; j<=m; j++)
+			previous[j] = previous[j-1] - 1;
+		
+		for (int i=1; i<=n; i++)
+		{
+			char c1 = s1.charAt(i-1);
+			//A gap in s1 is an edge gap once all of s1 is used.
+			int s1Gap = i == n ? -1 : -2;
+			current[0] = previous[0] - 1;
+			for (int j=1; j<=m; j++)
 			{
-				// aligned gaps -- ignore.
+				//A gap in s2 is an edge gap before or after all of s2.
+				int s2Gap = j == m ? -1 : -2;
+				int best = previous[j-1] + (c1 == s2.charAt(j-1) ? 1 : -1);
+				best = Math.max(best, previous[j] + s2Gap);
+				best = Math.max(best, current[j-1] + s1Gap);
+				current[j] = best;
 			}
-			else if (comparingChar == '.' || tempChar == '.')
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[m];
+	}
+	
+	/**
+	 * Finds the best alignment of two or three sequences by dynamic
+	 * programming.  Each column takes the next nucleotide from some of
+	 * the sequences and a gap from the rest.  Whether a gap is a leading
+	 * or trailing one depends only on how much of its sequence is used,
+	 * and every column of a gap costs the same, so the score of a column
+	 * never depends on the columns before it and the sum of pairs is
+	 * found exactly.  Columns of gaps only never score above 0, so they
+	 * are left out.
+	 * @see gamsa.scorer.Scorer#getOptimalAlignment(java.lang.String[])
+	 */
+	public String[] getOptimalAlignment(String[] sequences)
+	{
+		int count = sequences.length;
+		if (count < 2 || count > 3)
+			return null;
+		
+		//Cells are numbered with the last sequence's position changing fastest.
+		int[] lengths = new int[count];
+		int[] strides = new int[count];
+		long cells = 1;
+		for (int r=count-1; r>=0; r--)
+		{
+			lengths[r] = sequences[r].length();
+			strides[r] = (int) cells;
+			cells *= lengths[r] + 1;
+			if (cells > Integer.MAX_VALUE)
+				return null;
+		}
+		
+		int[] best = new int[(int) cells];
+		//Which sequences gave a nucleotide to the last column, one bit each.
+		byte[] moves = new byte[(int) cells];
+		int[] position = new int[count];
+		char[] column = new char[count];
+		for (int cell=1; cell<cells; cell++)
+		{
+			//Step to the next cell's position.
+			for (int r=count-1; ++position[r] > lengths[r]; r--)
+				position[r] = 0;
+			
+			best[cell] = Integer.MIN_VALUE;
+			for (int move=1; move<(1 << count); move++)
 			{
-				// Leading or trailing gaps.  Punish these, but at a lesser rate.
-				score -= 1;
+				int from = cell;
+				boolean possible = true;
+				for (int r=0; r<count && possible; r++)
+				{
+					if ((move & (1 << r)) == 0)
+						column[r] = position[r] == 0 || position[r] == lengths[r] ? '.' : '-';
+					else if (position[r] == 0)
+						possible = false;
+					else
+					{
+						column[r] = sequences[r].charAt(position[r] - 1);
+						from -= strides[r];
+					}
+				}
+				if (!possible)
+					continue;
+				
+				int score = best[from];
+				for (int a=0; a<count; a++)
+				{
+					for (int b=a+1; b<count; b++)
+						score += scoreColumn(column[a], column[b]);
+				}
+				if (score > best[cell])
+				{
+					best[cell] = score;
+					moves[cell] = (byte) move;
+				}
 			}
-			else if (comparingChar == tempChar)
+		}
+		
+		//Walk back from the end, building the rows in reverse.
+		StringBuilder[] rows = new StringBuilder[count];
+		for (int r=0; r<count; r++)
+		{
+			rows[r] = new StringBuilder();
+			position[r] = lengths[r];
+		}
+		for (int cell=(int) cells - 1; cell>0; )
+		{
+			int move = moves[cell];
+			for (int r=0; r<count; r++)
+			{
+				if ((move & (1 << r)) == 0)
+					rows[r].append('-');
+				else
+				{
+					rows[r].append(sequences[r].charAt(--position[r]));
+					cell -= strides[r];
+				}
+			}
+		}
+		String[] aligned = new String[count];
+		for (int r=0; r<count; r++)
+			aligned[r] = rows[r].reverse().toString();
+		return aligned;
+	}
+	
+	/**
+	 * Nucleotides score +1 for a match and -1 for a mismatch.
+	 * @see gamsa.scorer.Scorer#getSubstitution(char, char)
+	 */
+	public float getSubstitution(char c1, char c2)
+	{
+		return c1 == c2 ? 1 : -1;
+	}
+	
+	/**
+	 * Every column of a gap costs -2, so opening one costs no more.
+	 * @see gamsa.scorer.Scorer#getGapOpenPenalty()
+	 */
+	public float getGapOpenPenalty()
+	{
+		return -2;
+	}
+	
+	/**
+	 * @see gamsa.scorer.Scorer#getGapExtendPenalty()
+	 */
+	public float getGapExtendPenalty()
+	{
+		return -2;
+	}
+	
+	/**
+	 * Scores two packed sequences of the same length, using the same rules
+	 * as compareSequences.  Each word covers 32 columns, with a column's
+	 * flag held in the low bit of its 2-bit slot.
+	 */
+	private float comparePacked(PackedDNASequence seq1, PackedDNASequence seq2)
+	{
+		int score = 0;
+		long valid, edges, interior, gaps1, gaps2, bothBases, diff;
+		
+		for (int w=0; w<seq1.getWordCount(); w++)
+		{
+			valid = seq1.getValidWord(w);
+			edges = (seq1.getEdgeWord(w) | seq2.getEdgeWord(w)) & valid;
+			interior = valid & ~edges;
+			gaps1 = seq1.getGapWord(w);
+			gaps2 = seq2.getGapWord(w);
+			
+			// Both bases present, and whether the 2-bit codes differ.
+			bothBases = interior & ~gaps1 & ~gaps2;
+			diff = seq1.getBaseWord(w) ^ seq2.getBaseWord(w);
+			diff = (diff | (diff >>> 1)) & PackedDNASequence.EVEN_BITS;
+			
+			int mismatches = Long.bitCount(bothBases & diff);
+			int matches = Long.bitCount(bothBases) - mismatches;
+			
+			// Aligned interior gaps score 0, so only gap/base columns count here.
+			int gapColumns = Long.bitCount(interior & (gaps1 ^ gaps2));
+			
+			score += matches - mismatches - 2 * gapColumns - Long.bitCount(edges);
+		}
+		return score;
+	}
+	
+	/**
+	 * Counts the columns in the range by kind.  Whether a gap is a leading
+	 * or trailing gap is decided when the chunks are combined.
+	 * @see gamsa.scorer.ChunkScorer#summarize(gamsa.population.Sequence, gamsa.population.Sequence, int, int)
+	 */
+	public ChunkSummary summarize(Sequence seq1, Sequence seq2, int aStart, int anEnd)
+	{
+		PackedDNASequence packed1 = seq1.getPackedDNA();
+		PackedDNASequence packed2 = seq2.getPackedDNA();
+		if (packed1 != null && packed2 != null && packed1.getSize() == packed2.getSize()
+				&& aStart % PackedDNASequence.COLUMNS_PER_WORD == 0)
+			return summarizePacked(packed1, packed2, aStart, anEnd);
+		
+		EdgeGapSummary summary = new EdgeGapSummary();
+		int first1 = -1, last1 = -1, first2 = -1, last2 = -1;
+		for (int i=aStart; i<anEnd; i++)
+		{
+			if (seq1.getElementAt(i) != '-')
 			{
-				// match
-				score += 1;
+				if (first1 == -1) first1 = i;
+				last1 = i;
 			}
-			else if (comparingChar == '-' || tempChar == '-')
+			if (seq2.getElementAt(i) != '-')
 			{
-				// gap in one.
-				score -= 2;
+				if (first2 == -1) first2 = i;
+				last2 = i;
 			}
+		}
+		summary.i_has1 = first1 != -1;
+		summary.i_has2 = first2 != -1;
+		
+		for (int i=aStart; i<anEnd; i++)
+		{
+			char comparingChar = seq1.getElementAt(i);
+			char tempChar = seq2.getElementAt(i);
+			int kind;
+			if (comparingChar == '-' && tempChar == '-')
+				kind = EdgeGapSummary.BOTH_GAPS;
+			else if (comparingChar == '.' || tempChar == '.')
+				kind = EdgeGapSummary.DOT;
+			else if (comparingChar == tempChar)
+				kind = EdgeGapSummary.MATCH;
+			else if (comparingChar == '-')
+				kind = EdgeGapSummary.GAP_IN_FIRST;
+			else if (tempChar == '-')
+				kind = EdgeGapSummary.GAP_IN_SECOND;
 			else
+				kind = EdgeGapSummary.MISMATCH;
+			
+			summary.i_counts[EdgeGapSummary.index(position(i, first1, last1),
+					position(i, first2, last2), kind)]++;
+		}
+		return summary;
+	}
+	
+	/**
+	 * Returns where a column sits relative to the first and last
+	 * nucleotide of its sequence within a chunk.
+	 */
+	private static int position(int aColumn, int aFirst, int aLast)
+	{
+		if (aFirst == -1)
+			return EdgeGapSummary.NO_NUCLEOTIDES;
+		if (aColumn < aFirst)
+			return EdgeGapSummary.BEFORE;
+		if (aColumn > aLast)
+			return EdgeGapSummary.AFTER;
+		return EdgeGapSummary.BETWEEN;
+	}
+	
+	/**
+	 * Packed version of summarize, 32 columns at a time.  The range must
+	 * start on a word boundary.
+	 */
+	private ChunkSummary summarizePacked(PackedDNASequence seq1, PackedDNASequence seq2, int aStart, int anEnd)
+	{
+		EdgeGapSummary summary = new EdgeGapSummary();
+		int first1 = seq1.findFirstBase(aStart, anEnd);
+		int last1 = seq1.findLastBase(aStart, anEnd);
+		int first2 = seq2.findFirstBase(aStart, anEnd);
+		int last2 = seq2.findLastBase(aStart, anEnd);
+		summary.i_has1 = first1 != -1;
+		summary.i_has2 = first2 != -1;
+		
+		long[] positions1 = new long[4];
+		long[] positions2 = new long[4];
+		long[] kinds = new long[EdgeGapSummary.KINDS];
+		int between = EdgeGapSummary.index(EdgeGapSummary.BETWEEN, EdgeGapSummary.BETWEEN, 0);
+		
+		int wordCount = (anEnd + PackedDNASequence.COLUMNS_PER_WORD - 1) / PackedDNASequence.COLUMNS_PER_WORD;
+		for (int w=aStart / PackedDNASequence.COLUMNS_PER_WORD; w<wordCount; w++)
+		{
+			int wordStart = w * PackedDNASequence.COLUMNS_PER_WORD;
+			long valid = PackedDNASequence.lowColumns(anEnd - wordStart);
+			long gaps1 = seq1.getGapWord(w);
+			long gaps2 = seq2.getGapWord(w);
+			long diff = seq1.getBaseWord(w) ^ seq2.getBaseWord(w);
+			diff = (diff | (diff >>> 1)) & PackedDNASequence.EVEN_BITS;
+			long bothBases = valid & ~gaps1 & ~gaps2;
+			
+			kinds[EdgeGapSummary.MATCH] = bothBases & ~diff;
+			kinds[EdgeGapSummary.MISMATCH] = bothBases & diff;
+			kinds[EdgeGapSummary.GAP_IN_FIRST] = valid & gaps1 & ~gaps2;
+			kinds[EdgeGapSummary.GAP_IN_SECOND] = valid & gaps2 & ~gaps1;
+			kinds[EdgeGapSummary.BOTH_GAPS] = valid & gaps1 & gaps2;
+			
+			positionMasks(positions1, first1, last1, wordStart, valid);
+			positionMasks(positions2, first2, last2, wordStart, valid);
+			
+			//Most words lie between the first and last nucleotide of both sequences.
+			if (positions1[EdgeGapSummary.BETWEEN] == valid && positions2[EdgeGapSummary.BETWEEN] == valid)
 			{
-				// mismatch
-				score += -1;
+				for (int k=0; k<EdgeGapSummary.DOT; k++)
+					summary.i_counts[between + k] += Long.bitCount(kinds[k]);
+				continue;
+			}
+			
+			for (int p1=0; p1<4; p1++)
+			{
+				if (positions1[p1] == 0) continue;
+				for (int p2=0; p2<4; p2++)
+				{
+					long both = positions1[p1] & positions2[p2];
+					if (both == 0) continue;
+					int i = EdgeGapSummary.index(p1, p2, 0);
+					for (int k=0; k<EdgeGapSummary.DOT; k++)
+						summary.i_counts[i + k] += Long.bitCount(both & kinds[k]);
+				}
 			}
 		}
-		
-		return score;
+		return summary;
 	}
 	
+	/**
+	 * Fills in, for one word, which columns sit before, between and after
+	 * the first and last nucleotide of a sequence within a chunk.
+	 */
+	private static void positionMasks(long[] masks, int aFirst, int aLast, int aWordStart, long aValid)
+	{
+		if (aFirst == -1)
+		{
+			masks[EdgeGapSummary.BEFORE] = masks[EdgeGapSummary.BETWEEN] = masks[EdgeGapSummary.AFTER] = 0;
+			masks[EdgeGapSummary.NO_NUCLEOTIDES] = aValid;
+			return;
+		}
+		long before = PackedDNASequence.lowColumns(aFirst - aWordStart);
+		long upToLast = PackedDNASequence.lowColumns(aLast + 1 - aWordStart);
+		masks[EdgeGapSummary.BEFORE] = before & aValid;
+		masks[EdgeGapSummary.BETWEEN] = upToLast & ~before & aValid;
+		masks[EdgeGapSummary.AFTER] = ~upToLast & aValid;
+		masks[EdgeGapSummary.NO_NUCLEOTIDES] = 0;
+	}
 }
\ No newline at end of file
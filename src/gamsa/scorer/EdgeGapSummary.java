@@ -0,0 +1,130 @@
+package gamsa.scorer;
+
+/**
+   Chunk summary for DNAScorer.  Every column scores on its own, except
+   that a gap counts as a leading or trailing gap when there is no
+   nucleotide before it (or after it) anywhere in the sequence.  Within
+   one chunk that is only known for the gaps between the chunk's own
+   first and last nucleotide, so the columns are counted by kind and by
+   where they sit relative to those nucleotides, and are scored once
+   the whole pair has been combined.
+   
+   @author Amie Radenbaugh and Tom Austin
+ */
+class EdgeGapSummary extends ChunkSummary
+{
+	//Where a column sits in one of the sequences, relative to the
+	// nucleotides in the chunk.
+	static final int BEFORE = 0;
+	static final int BETWEEN = 1;
+	static final int AFTER = 2;
+	static final int NO_NUCLEOTIDES = 3;
+	
+	//Kinds of column.
+	static final int MATCH = 0;
+	static final int MISMATCH = 1;
+	static final int GAP_IN_FIRST = 2;
+	static final int GAP_IN_SECOND = 3;
+	static final int BOTH_GAPS = 4;
+	//A literal '.' in either sequence always scores as an edge gap.
+	static final int DOT = 5;
+	static final int KINDS = 6;
+	
+	//Whether each sequence has a nucleotide in the chunk.
+	boolean i_has1;
+	boolean i_has2;
+	
+	//Column counts, indexed by count(position1, position2, kind).
+	int[] i_counts = new int[4 * 4 * KINDS];
+	
+	/**
+	   Returns the index for the specified positions and kind.
+	 */
+	static int index(int aPosition1, int aPosition2, int aKind)
+	{
+		return (aPosition1 * 4 + aPosition2) * KINDS + aKind;
+	}
+	
+	/**
+	   @see gamsa.scorer.ChunkSummary#combine(gamsa.scorer.ChunkSummary)
+	 */
+	@Override
+	public ChunkSummary combine(ChunkSummary other)
+	{
+		EdgeGapSummary right = (EdgeGapSummary) other;
+		EdgeGapSummary result = new EdgeGapSummary();
+		result.i_has1 = i_has1 || right.i_has1;
+		result.i_has2 = i_has2 || right.i_has2;
+		
+		for (int p1=0; p1<4; p1++)
+		{
+			for (int p2=0; p2<4; p2++)
+			{
+				int leftTo = index(leftPosition(p1, right.i_has1), leftPosition(p2, right.i_has2), 0);
+				int rightTo = index(rightPosition(p1, i_has1), rightPosition(p2, i_has2), 0);
+				for (int k=0; k<KINDS; k++)
+				{
+					result.i_counts[leftTo + k] += i_counts[index(p1, p2, k)];
+					result.i_counts[rightTo + k] += right.i_counts[index(p1, p2, k)];
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	   Returns the new position of a column from the left chunk.
+	 */
+	private static int leftPosition(int aPosition, boolean rightHasNucleotides)
+	{
+		if (!rightHasNucleotides)
+			return aPosition;
+		if (aPosition == AFTER)
+			return BETWEEN;
+		if (aPosition == NO_NUCLEOTIDES)
+			return BEFORE;
+		return aPosition;
+	}
+	
+	/**
+	   Returns the new position of a column from the right chunk.
+	 */
+	private static int rightPosition(int aPosition, boolean leftHasNucleotides)
+	{
+		if (!leftHasNucleotides)
+			return aPosition;
+		if (aPosition == BEFORE)
+			return BETWEEN;
+		if (aPosition == NO_NUCLEOTIDES)
+			return AFTER;
+		return aPosition;
+	}
+	
+	/**
+	   Any gap that is not between two nucleotides of its own sequence is
+	   a leading or trailing gap.
+	   @see gamsa.scorer.ChunkSummary#getScore()
+	 */
+	@Override
+	public float getScore()
+	{
+		int score = 0;
+		for (int p1=0; p1<4; p1++)
+		{
+			boolean edge1 = p1 != BETWEEN;
+			for (int p2=0; p2<4; p2++)
+			{
+				boolean edge2 = p2 != BETWEEN;
+				int i = index(p1, p2, 0);
+				
+				score += i_counts[i + MATCH];
+				score -= i_counts[i + MISMATCH];
+				score -= i_counts[i + GAP_IN_FIRST] * (edge1 ? 1 : 2);
+				score -= i_counts[i + GAP_IN_SECOND] * (edge2 ? 1 : 2);
+				score -= (edge1 || edge2) ? i_counts[i + BOTH_GAPS] : 0;
+				score -= i_counts[i + DOT];
+			}
+		}
+		return score;
+	}
+}
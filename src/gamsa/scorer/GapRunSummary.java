@@ -0,0 +1,110 @@
+package gamsa.scorer;
+
+/**
+   Chunk summary for scorers with affine gap penalties, such as
+   Blosum62Scorer.  A gap is only scored once the column that closes
+   it is reached, and leading gaps are scored at half rate, so the
+   gaps that are open at either end of a chunk are kept as counts
+   until the chunks around them are known.
+   
+   @author Tom Austin and Amie Radenbaugh
+ */
+class GapRunSummary extends ChunkSummary
+{
+	//Whether any column in the chunk had residues in both sequences.
+	boolean i_matched;
+	
+	//Gap counts before the first match (or for the whole chunk, if there
+	// was no match), and whether those gaps started the other sequence.
+	int i_leadGaps1;
+	int i_leadGaps2;
+	boolean i_leadStarts1;
+	boolean i_leadStarts2;
+	
+	//Score of the matches, plus the gaps closed after the first match.
+	int i_score;
+	
+	//Gap counts after the last match.
+	int i_trailGaps1;
+	int i_trailGaps2;
+	
+	/**
+	   @see gamsa.scorer.ChunkSummary#combine(gamsa.scorer.ChunkSummary)
+	 */
+	@Override
+	public ChunkSummary combine(ChunkSummary other)
+	{
+		GapRunSummary right = (GapRunSummary) other;
+		GapRunSummary result = new GapRunSummary();
+		
+		if (!right.i_matched)
+		{
+			//Right side only extends the gaps still open on the left.
+			result.copy(this);
+			if (i_matched)
+			{
+				result.i_trailGaps1 += right.i_leadGaps1;
+				result.i_trailGaps2 += right.i_leadGaps2;
+			}
+			else
+			{
+				result.i_leadGaps1 += right.i_leadGaps1;
+				result.i_leadGaps2 += right.i_leadGaps2;
+				result.i_leadStarts1 |= right.i_leadStarts1;
+				result.i_leadStarts2 |= right.i_leadStarts2;
+			}
+		}
+		else if (!i_matched)
+		{
+			//Left side becomes part of the leading gaps on the right.
+			result.copy(right);
+			result.i_leadGaps1 += i_leadGaps1;
+			result.i_leadGaps2 += i_leadGaps2;
+			result.i_leadStarts1 |= i_leadStarts1;
+			result.i_leadStarts2 |= i_leadStarts2;
+		}
+		else
+		{
+			//The gap between the last match on the left and the first match
+			// on the right is closed now, with both sequences started.
+			result.copy(this);
+			result.i_score += right.i_score + Blosum62Scorer.scoreGaps(true, true,
+					i_trailGaps1 + right.i_leadGaps1, i_trailGaps2 + right.i_leadGaps2);
+			result.i_trailGaps1 = right.i_trailGaps1;
+			result.i_trailGaps2 = right.i_trailGaps2;
+		}
+		return result;
+	}
+	
+	/**
+	   Leading gaps are closed by the first match, at half penalty unless
+	   the other sequence had already started.  Trailing gaps are always
+	   at half penalty.
+	   @see gamsa.scorer.ChunkSummary#getScore()
+	 */
+	@Override
+	public float getScore()
+	{
+		if (!i_matched)
+			return Blosum62Scorer.scoreGaps(false, false, i_leadGaps1, i_leadGaps2);
+		
+		return i_score
+			+ Blosum62Scorer.scoreGaps(i_leadStarts1, i_leadStarts2, i_leadGaps1, i_leadGaps2)
+			+ Blosum62Scorer.scoreGaps(false, false, i_trailGaps1, i_trailGaps2);
+	}
+	
+	/**
+	   Copies all fields from the specified summary.
+	 */
+	private void copy(GapRunSummary other)
+	{
+		i_matched = other.i_matched;
+		i_leadGaps1 = other.i_leadGaps1;
+		i_leadGaps2 = other.i_leadGaps2;
+		i_leadStarts1 = other.i_leadStarts1;
+		i_leadStarts2 = other.i_leadStarts2;
+		i_score = other.i_score;
+		i_trailGaps1 = other.i_trailGaps1;
+		i_trailGaps2 = other.i_trailGaps2;
+	}
+}
@@ -0,0 +1,88 @@
+package gamsa.scorer;
+
+import java.util.concurrent.RecursiveTask;
+
+import gamsa.InfoCenter;
+import gamsa.population.Sequence;
+
+/**
+   Scores a single pair of long sequences by splitting the columns into
+   chunks, summarizing the chunks on the fork-join pool, and combining
+   the summaries.  Short pairs are summarized in one piece on the
+   calling thread.
+   
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class ParallelPairScoring
+{
+	//Chunks are kept to a multiple of this, so that packed words are never split.
+	private static final int CHUNK_ALIGNMENT = 64;
+	
+	//Smallest chunk worth handing to another thread.
+	private static final int MIN_CHUNK_SIZE = 1024;
+	
+	/**
+	   Task that summarizes a range of columns, splitting it in half
+	   until it is no bigger than the chunk size.
+	 */
+	private static class ChunkTask extends RecursiveTask<ChunkSummary>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private ChunkScorer i_scorer;
+		private Sequence i_seq1;
+		private Sequence i_seq2;
+		private int i_start;
+		private int i_end;
+		private int i_chunkSize;
+		
+		public ChunkTask(ChunkScorer scorer, Sequence s1, Sequence s2, int aStart, int anEnd, int aChunkSize)
+		{
+			i_scorer = scorer;
+			i_seq1 = s1;
+			i_seq2 = s2;
+			i_start = aStart;
+			i_end = anEnd;
+			i_chunkSize = aChunkSize;
+		}
+		
+		@Override
+		protected ChunkSummary compute()
+		{
+			if (i_end - i_start <= i_chunkSize)
+				return i_scorer.summarize(i_seq1, i_seq2, i_start, i_end);
+			
+			//Split on a chunk boundary.
+			int chunks = (i_end - i_start + i_chunkSize - 1) / i_chunkSize;
+			int middle = i_start + (chunks / 2) * i_chunkSize;
+			
+			ChunkTask left = new ChunkTask(i_scorer, i_seq1, i_seq2, i_start, middle, i_chunkSize);
+			ChunkTask right = new ChunkTask(i_scorer, i_seq1, i_seq2, middle, i_end, i_chunkSize);
+			right.fork();
+			ChunkSummary leftSummary = left.compute();
+			return leftSummary.combine(right.join());
+		}
+	}
+	
+	/**
+	   Returns the score for the two sequences.  If they are at least as
+	   long as the threshold set in the InfoCenter, and there is more than
+	   one thread to use, the columns are scored in parallel.
+	 */
+	public static float compare(ChunkScorer scorer, Sequence s1, Sequence s2)
+	{
+		InfoCenter center = InfoCenter.getCenter();
+		int length = s1.getSize();
+		int threshold = center.getParallelScoringThreshold();
+		
+		if (threshold <= 0 || length < threshold || center.getPool().getParallelism() < 2)
+			return scorer.summarize(s1, s2, 0, length).getScore();
+		
+		//Aim for a few chunks per thread, so that uneven chunks balance out.
+		int chunkSize = length / (4 * center.getPool().getParallelism());
+		chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize);
+		chunkSize = (chunkSize + CHUNK_ALIGNMENT - 1) / CHUNK_ALIGNMENT * CHUNK_ALIGNMENT;
+		
+		return center.getPool().invoke(new ChunkTask(scorer, s1, s2, 0, length, chunkSize)).getScore();
+	}
+}
@@ -12,4 +12,46 @@ public interface Scorer
 	   Returns a score for the 2 sequences, as they are aligned.
 	 */
 	public float compareSequences(Sequence s1, Sequence s2);
+	
+	/**
+	   Returns the highest score a column holding the specified
+	   character can add to a pair, whatever it is aligned with.
+	   Gaps (and anything else that can only be penalized) give 0.
+	 */
+	public float getMaxSubstitution(char c);
+	
+	/**
+	   Returns the best score that any alignment of the two
+	   sequences (given without gaps) could get.
+	 */
+	public float getOptimalScore(String s1, String s2);
+	
+	/**
+	   Returns the rows, with '-' for gaps, of an alignment of the
+	   sequences (given without gaps) that no other alignment scores
+	   higher than.  Returns null if the scorer cannot find one for this
+	   many sequences, or for the characters in them.  The work grows
+	   with the product of the lengths, so callers should keep to small
+	   inputs.
+	 */
+	public String[] getOptimalAlignment(String[] sequences);
+	
+	/**
+	   Returns the score for aligning two characters, neither of
+	   which is a gap.
+	 */
+	public float getSubstitution(char c1, char c2);
+	
+	/**
+	   Returns the penalty (0 or less) for the first column of a gap.
+	   A gap of n columns costs the open penalty plus n-1 times the
+	   extend penalty.  Gaps at either end of a sequence may cost
+	   less; see compareSequences().
+	 */
+	public float getGapOpenPenalty();
+	
+	/**
+	   Returns the penalty (0 or less) for each further column of a gap.
+	 */
+	public float getGapExtendPenalty();
 }
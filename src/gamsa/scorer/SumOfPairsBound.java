@@ -0,0 +1,72 @@
+package gamsa.scorer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import gamsa.InfoCenter;
+
+/**
+   Computes an upper bound on the fitness of any alignment of a set of
+   sequences: the sum, over every pair, of the best score the pair
+   could get if it were aligned on its own.  The pairs are independent,
+   so they are scored on the InfoCenter's pool.
+
+   @author Tom Austin and Amie Radenbaugh
+ */
+public class SumOfPairsBound
+{
+	/**
+	   Task that finds the best score for one pair.
+	 */
+	private static class PairTask implements Callable<Float>
+	{
+		private Scorer i_scorer;
+		private String i_seq1;
+		private String i_seq2;
+		
+		public PairTask(Scorer scorer, String s1, String s2)
+		{
+			i_scorer = scorer;
+			i_seq1 = s1;
+			i_seq2 = s2;
+		}
+		
+		public Float call()
+		{
+			return i_scorer.getOptimalScore(i_seq1, i_seq2);
+		}
+	}
+	
+	/**
+	   Returns the bound for the input sequences (without gaps).
+	 */
+	public static double compute(Scorer scorer, String[] inputSequences)
+	{
+		List<PairTask> tasks = new ArrayList<PairTask>();
+		for (int i=0; i<inputSequences.length; i++)
+		{
+			for (int j=i+1; j<inputSequences.length; j++)
+				tasks.add(new PairTask(scorer, inputSequences[i], inputSequences[j]));
+		}
+		
+		double bound = 0;
+		try
+		{
+			for (Future<Float> result : InfoCenter.getCenter().getPool().invokeAll(tasks))
+				bound += result.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while computing the bound", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException("Could not compute the bound", e.getCause());
+		}
+		return bound;
+	}
+}